@@ -0,0 +1,58 @@
+#!/usr/bin/env bash
+# Время от запуска JVM до первого успешного GET /api/visits: обычный старт против fast-startup.
+# Сначала: docker-compose up -d && mvn -Pfast-startup package -DskipTests
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+RUNS=${RUNS:-5}
+PORT=${PORT:-8080}
+JAR=target/VisitTracking-0.0.1-SNAPSHOT.jar
+FAST_DIR=target/fast-startup
+URL="http://localhost:${PORT}/api/visits"
+
+if [[ ! -f "$JAR" || ! -f "$FAST_DIR/application.jsa" ]]; then
+    echo "Build with: mvn -Pfast-startup package -DskipTests" >&2
+    exit 1
+fi
+
+now_ms() {
+    date +%s%3N
+}
+
+# $1 - рабочая директория, остальное - аргументы java
+measure() {
+    local dir=$1
+    shift
+    local start pid
+    start=$(now_ms)
+    (cd "$dir" && exec java "$@" --server.port="$PORT" > /dev/null 2>&1) &
+    pid=$!
+    until curl -sf -o /dev/null "$URL"; do
+        if ! kill -0 "$pid" 2> /dev/null; then
+            echo "application exited before serving $URL" >&2
+            exit 1
+        fi
+        sleep 0.05
+    done
+    echo $(( $(now_ms) - start ))
+    kill "$pid"
+    wait "$pid" 2> /dev/null || true
+}
+
+report() {
+    local name=$1
+    shift
+    local total=0 best= time
+    for _ in $(seq "$RUNS"); do
+        time=$(measure "$@")
+        total=$(( total + time ))
+        if [[ -z "$best" || "$time" -lt "$best" ]]; then
+            best=$time
+        fi
+    done
+    printf '%-14s avg %6d ms   best %6d ms   (%d runs)\n' "$name" $(( total / RUNS )) "$best" "$RUNS"
+}
+
+report "default" . -jar "$JAR"
+report "fast-startup" "$FAST_DIR" -XX:SharedArchiveFile=application.jsa -Dspring.aot.enabled=true \
+    -jar VisitTracking-0.0.1-SNAPSHOT.jar
@@ -0,0 +1,98 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.exception.OverloadedException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bulkhead с адаптивным лимитом параллельности (AIMD): если запрос простоял в очереди
+ * дольше queueTarget, он отклоняется с 503, а лимит уменьшается мультипликативно;
+ * запросы, прождавшие меньше половины queueTarget (в т.ч. постоявшие в очереди), понемногу
+ * поднимают лимит обратно до maxLimit. При постоянной очереди лимит так не залипает на minLimit.
+ */
+@Slf4j
+class AdaptiveLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long queueTargetNanos;
+    private final long retryAfterSeconds;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+
+    AdaptiveLimiter(String name, int minLimit, int maxLimit, Duration queueTarget, Duration retryAfter) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.queueTargetNanos = queueTarget.toNanos();
+        this.retryAfterSeconds = Math.max(1, retryAfter.toSeconds());
+        this.limit = maxLimit;
+    }
+
+    <T> T call(Supplier<T> action) {
+        long waitedNanos = acquire();
+        try {
+            return action.get();
+        } finally {
+            release(waitedNanos);
+        }
+    }
+
+    // Текущий лимит, для тестов
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Возвращает время ожидания в очереди
+    private long acquire() {
+        long started = System.nanoTime();
+        long deadline = started + queueTargetNanos;
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                    log.warn("Shedding {} request: queueing exceeded target, limit lowered to {}", name, (int) limit);
+                    throw new OverloadedException("Service is overloaded, retry later", retryAfterSeconds);
+                }
+                released.awaitNanos(remaining);
+            }
+            inFlight++;
+            return System.nanoTime() - started;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException("Interrupted while waiting for capacity", retryAfterSeconds);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long waitedNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            // Ожидание между половиной цели и целью лимит не меняет: запас до отказов
+            if (waitedNanos < queueTargetNanos / 2) {
+                // Аддитивный рост: примерно +1 к лимиту за "окно" из limit запросов
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
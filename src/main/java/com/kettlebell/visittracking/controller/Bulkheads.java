@@ -0,0 +1,35 @@
+package com.kettlebell.visittracking.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Раздельные лимиты для чтения и записи: тяжелые выборки списка не могут занять
+ * все соединения Hikari и заблокировать бронирования.
+ */
+@Component
+class Bulkheads {
+    private final AdaptiveLimiter read;
+    private final AdaptiveLimiter write;
+
+    Bulkheads(@Value("${visit.admission.read.min-limit:1}") int readMinLimit,
+              @Value("${visit.admission.read.max-limit:6}") int readMaxLimit,
+              @Value("${visit.admission.read.queue-target:50ms}") Duration readQueueTarget,
+              @Value("${visit.admission.write.min-limit:1}") int writeMinLimit,
+              @Value("${visit.admission.write.max-limit:4}") int writeMaxLimit,
+              @Value("${visit.admission.write.queue-target:50ms}") Duration writeQueueTarget,
+              @Value("${visit.admission.retry-after:1s}") Duration retryAfter) {
+        this.read = new AdaptiveLimiter("read", readMinLimit, readMaxLimit, readQueueTarget, retryAfter);
+        this.write = new AdaptiveLimiter("write", writeMinLimit, writeMaxLimit, writeQueueTarget, retryAfter);
+    }
+
+    AdaptiveLimiter read() {
+        return read;
+    }
+
+    AdaptiveLimiter write() {
+        return write;
+    }
+}
@@ -0,0 +1,40 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.controller.dto.DoctorScheduleDto;
+import com.kettlebell.visittracking.controller.dto.DoctorStatsDto;
+import com.kettlebell.visittracking.controller.record.DoctorScheduleRequest;
+import com.kettlebell.visittracking.controller.record.DoctorStatsRequest;
+import com.kettlebell.visittracking.service.DoctorScheduleService;
+import com.kettlebell.visittracking.service.DoctorStatsService;
+import com.kettlebell.visittracking.service.ScheduleStreamService;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+@RestController
+@RequestMapping("/api/doctors")
+@RequiredArgsConstructor
+class DoctorController {
+    private final DoctorStatsService doctorStatsService;
+    private final DoctorScheduleService doctorScheduleService;
+    private final ScheduleStreamService scheduleStreamService;
+    private final Bulkheads bulkheads;
+
+    @GetMapping("/{id}/stats")
+    public DoctorStatsDto getStats(@PathVariable Integer id, @Valid DoctorStatsRequest request) {
+        return bulkheads.read().call(() -> doctorStatsService.findStats(id, request.from(), request.to()));
+    }
+
+    @GetMapping("/{id}/visits")
+    public DoctorScheduleDto getDaySchedule(@PathVariable Integer id, @Valid DoctorScheduleRequest request) {
+        return bulkheads.read().call(() -> doctorScheduleService.findDay(id, request.date()));
+    }
+
+    // Поток не занимает bulkhead: соединение асинхронное и не держит ни поток, ни соединение с БД
+    @GetMapping(path = "/{id}/schedule/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamSchedule(@PathVariable Integer id) {
+        return scheduleStreamService.subscribe(id);
+    }
+}
@@ -1,11 +1,17 @@
 package com.kettlebell.visittracking.controller;
 
 import com.kettlebell.visittracking.exception.BrookedTimeException;
+import com.kettlebell.visittracking.exception.IdempotencyKeyInProgressException;
+import com.kettlebell.visittracking.exception.IdempotencyKeyMismatchException;
+import com.kettlebell.visittracking.exception.InvalidCursorException;
 import com.kettlebell.visittracking.exception.InvalidTimeFormatException;
 import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
 import com.kettlebell.visittracking.exception.NotFoundException;
+import com.kettlebell.visittracking.exception.OverloadedException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -30,7 +36,8 @@ public class GlobalExceptionHandler {
         return ResponseEntity.badRequest().body(errors);
     }
 
-    @ExceptionHandler({BrookedTimeException.class, InvalidTimeFormatException.class, InvalidTimeRangeException.class})
+    @ExceptionHandler({BrookedTimeException.class, InvalidTimeFormatException.class, InvalidTimeRangeException.class,
+            InvalidCursorException.class})
     public ResponseEntity<Map<String, Object>> handleAppException(RuntimeException ex) {
         log.warn("CustomException: {}", ex.getMessage());
         return buildErrorResponse(ex.getMessage(), HttpStatus.BAD_REQUEST);
@@ -42,6 +49,32 @@ public class GlobalExceptionHandler {
         return buildErrorResponse(ex.getMessage(), HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler(IdempotencyKeyMismatchException.class)
+    public ResponseEntity<Map<String, Object>> handleIdempotencyKeyMismatchException(IdempotencyKeyMismatchException ex) {
+        log.warn("IdempotencyKeyMismatchException: {}", ex.getMessage());
+        return buildErrorResponse(ex.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+
+    @ExceptionHandler(IdempotencyKeyInProgressException.class)
+    public ResponseEntity<Map<String, Object>> handleIdempotencyKeyInProgressException(IdempotencyKeyInProgressException ex) {
+        log.warn("IdempotencyKeyInProgressException: {}", ex.getMessage());
+        ResponseEntity<Map<String, Object>> response = buildErrorResponse(ex.getMessage(), HttpStatus.CONFLICT);
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(response.getBody());
+    }
+
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleOverloadedException(OverloadedException ex) {
+        log.warn("OverloadedException: {}", ex.getMessage());
+        ResponseEntity<Map<String, Object>> response = buildErrorResponse(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE);
+        return ResponseEntity.status(response.getStatusCode())
+                .headers(response.getHeaders())
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                .body(response.getBody());
+    }
+
     @ExceptionHandler(HandlerMethodValidationException.class)
     public ResponseEntity<Map<String, Object>> handleHandlerMethodValidationException(HandlerMethodValidationException ex) {
         log.warn("HandlerMethodValidationException: {}, {}", ex.getMessage(), ex.getAllValidationResults());
@@ -61,6 +94,7 @@ public class GlobalExceptionHandler {
         errorResponse.put("error", status.getReasonPhrase());
         errorResponse.put("message", message);
 
-        return new ResponseEntity<>(errorResponse, status);
+        // JSON и для клиентов SSE (Accept: text/event-stream), иначе ошибка теряется на согласовании типа
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(errorResponse);
     }
 }
@@ -0,0 +1,74 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.controller.dto.RootDto;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight для списка пациентов: одновременные запросы с одинаковыми параметрами
+ * ждут один и тот же запрос к БД и получают его результат. После завершения запроса
+ * ничего не хранится - это не кеш, следующий запрос снова идет в БД.
+ */
+@Component
+class ListingCoalescer {
+    private final ConcurrentMap<Key, CompletableFuture<RootDto>> inFlight = new ConcurrentHashMap<>();
+    private final Counter executed;
+    private final Counter coalesced;
+
+    ListingCoalescer(MeterRegistry meterRegistry) {
+        this.executed = Counter.builder("visit.listing.queries")
+                .description("Listing queries sent to the database")
+                .tag("result", "executed")
+                .register(meterRegistry);
+        this.coalesced = Counter.builder("visit.listing.queries")
+                .description("Listing requests served by another request's in-flight query")
+                .tag("result", "coalesced")
+                .register(meterRegistry);
+    }
+
+    RootDto execute(String search, Set<Integer> doctorIds, LocalDate from, LocalDate to, int page, int size,
+                    Supplier<RootDto> query) {
+        Key key = new Key(search, doctorIds, from, to, page, size);
+        CompletableFuture<RootDto> own = new CompletableFuture<>();
+        CompletableFuture<RootDto> leader = inFlight.putIfAbsent(key, own);
+        if (leader != null) {
+            coalesced.increment();
+            return await(leader);
+        }
+        try {
+            executed.increment();
+            // Результат отдается нескольким запросам сразу и дальше не изменяется
+            RootDto result = query.get();
+            own.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private static RootDto await(CompletableFuture<RootDto> leader) {
+        try {
+            return leader.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private record Key(String search, Set<Integer> doctorIds, LocalDate from, LocalDate to, int page, int size) {
+    }
+}
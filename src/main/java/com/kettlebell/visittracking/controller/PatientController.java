@@ -0,0 +1,22 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.controller.dto.PatientVisitsDto;
+import com.kettlebell.visittracking.controller.record.PatientVisitsRequest;
+import com.kettlebell.visittracking.service.PatientVisitService;
+import jakarta.validation.Valid;
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/api/patients")
+@RequiredArgsConstructor
+class PatientController {
+    private final PatientVisitService patientVisitService;
+    private final Bulkheads bulkheads;
+
+    @GetMapping("/{id}/visits")
+    public PatientVisitsDto getVisits(@PathVariable Integer id, @Valid PatientVisitsRequest request) {
+        int size = request.size() != null ? request.size() : 20;
+        return bulkheads.read().call(() -> patientVisitService.findHistory(id, request.cursor(), size));
+    }
+}
@@ -0,0 +1,57 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.controller.dto.RecordingStatusDto;
+import com.kettlebell.visittracking.service.JfrRecorder;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * /actuator/recording: POST - запустить запись JFR (maxAge, maxSize), GET - скачать дамп (.jfr),
+ * DELETE - остановить. Без записи GET и DELETE отвечают 404. Доступен, только если добавлен
+ * в management.endpoints.web.exposure.include.
+ */
+@Component
+@Endpoint(id = "recording")
+@RequiredArgsConstructor
+class RecordingEndpoint {
+    private final JfrRecorder recorder;
+
+    @WriteOperation
+    public RecordingStatusDto start(@Nullable Duration maxAge, @Nullable DataSize maxSize) {
+        return recorder.start(maxAge, maxSize);
+    }
+
+    @ReadOperation(produces = "application/octet-stream")
+    public Resource dump() {
+        Path file = recorder.dump();
+        if (file == null) {
+            return null;
+        }
+        try {
+            // Временный файл удаляется, когда ответ дописан и поток закрыт
+            return new InputStreamResource(Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @DeleteOperation
+    public RecordingStatusDto stop() {
+        return recorder.stop();
+    }
+}
@@ -0,0 +1,94 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.service.RequestTimings;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Заголовок Server-Timing для /api: ожидание соединения (pool), JDBC (db, число запросов
+ * в desc), гидратация (hydrate), маппинг в DTO (map), сериализация (ser), остальное (app)
+ * и общее время (total). Тело буферизуется, чтобы заголовок учел сериализацию; SSE-потоки
+ * не трогаются. Запросы дольше порога пишутся в журнал одной строкой key=value.
+ */
+@Slf4j
+@Component
+class ServerTimingFilter extends OncePerRequestFilter {
+    static final String HEADER = "Server-Timing";
+
+    private final boolean enabled;
+    private final long slowThresholdNanos;
+
+    ServerTimingFilter(@Value("${visit.timing.enabled:true}") boolean enabled,
+                       @Value("${visit.timing.slow-threshold:500ms}") Duration slowThreshold) {
+        this.enabled = enabled;
+        this.slowThresholdNanos = slowThreshold.toNanos();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !enabled || !path.startsWith("/api/") || path.endsWith("/stream");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        RequestTimings timings = RequestTimings.begin();
+        ContentCachingResponseWrapper buffered = new ContentCachingResponseWrapper(response);
+        try {
+            chain.doFilter(request, buffered);
+        } finally {
+            RequestTimings.end();
+        }
+        long ended = System.nanoTime();
+        if (!response.isCommitted()) {
+            response.setHeader(HEADER, serverTiming(timings, ended));
+        }
+        buffered.copyBodyToResponse();
+        if (timings.totalNanos(ended) >= slowThresholdNanos) {
+            log.warn("Slow request method={} uri={} query={} status={} total={} pool={} db={} statements={} "
+                            + "hydrate={} map={} ser={}",
+                    request.getMethod(), request.getRequestURI(), request.getQueryString(), response.getStatus(),
+                    millis(timings.totalNanos(ended)), millis(timings.connectionNanos()),
+                    millis(timings.statementNanos()), timings.statements(), millis(timings.hydrationNanos()),
+                    millis(timings.mappingNanos()), millis(timings.serializationNanos(ended)));
+        }
+    }
+
+    static String serverTiming(RequestTimings timings, long endNanos) {
+        long total = timings.totalNanos(endNanos);
+        long serialization = timings.serializationNanos(endNanos);
+        long accounted = timings.connectionNanos() + timings.statementNanos() + timings.hydrationNanos()
+                + timings.mappingNanos() + serialization;
+        StringBuilder header = new StringBuilder()
+                .append("pool;dur=").append(millis(timings.connectionNanos()))
+                .append(", db;dur=").append(millis(timings.statementNanos()))
+                .append(";desc=\"").append(timings.statements()).append(" statements\"");
+        if (timings.hydrationNanos() > 0) {
+            header.append(", hydrate;dur=").append(millis(timings.hydrationNanos()));
+        }
+        if (timings.mappingNanos() > 0) {
+            header.append(", map;dur=").append(millis(timings.mappingNanos()));
+        }
+        // Параллельные выборки по шардам могут дать db больше total - тогда app нулевой
+        return header.append(", ser;dur=").append(millis(serialization))
+                .append(", app;dur=").append(millis(Math.max(0, total - accounted)))
+                .append(", total;dur=").append(millis(total))
+                .toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1_000_000.0);
+    }
+}
@@ -1,14 +1,23 @@
 package com.kettlebell.visittracking.controller;
 
+import com.kettlebell.visittracking.controller.dto.CompactRootDto;
+import com.kettlebell.visittracking.controller.dto.VisitChangesDto;
 import com.kettlebell.visittracking.controller.record.PatientsRequest;
+import com.kettlebell.visittracking.controller.record.VisitChangesRequest;
 import com.kettlebell.visittracking.controller.record.VisitResponse;
 import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitSeriesRequest;
+import com.kettlebell.visittracking.controller.record.VisitSeriesResponse;
 import com.kettlebell.visittracking.controller.dto.RootDto;
+import com.kettlebell.visittracking.service.IdempotencyStore;
+import com.kettlebell.visittracking.service.VisitSeriesService;
 import com.kettlebell.visittracking.service.VisitService;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Size;
 import lombok.RequiredArgsConstructor;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,11 +25,31 @@ import org.springframework.web.bind.annotation.*;
 @RequestMapping("/api/visits")
 @RequiredArgsConstructor
 class VisitController {
+    static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+
     private final VisitService visitService;
+    private final VisitSeriesService visitSeriesService;
+    private final Bulkheads bulkheads;
+    private final ListingCoalescer listingCoalescer;
+    private final IdempotencyStore idempotencyStore;
 
     @PostMapping()
-    public VisitResponse createVisit(@Valid @RequestBody VisitRequest request) {
-        return visitService.createVisit(request);
+    public VisitResponse createVisit(@Valid @RequestBody VisitRequest request,
+                                     @RequestHeader(name = "Idempotency-Key", required = false)
+                                     @Size(max = 64, message = "Idempotency key must not exceed 64 characters.")
+                                     String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return bulkheads.write().call(() -> visitService.createVisit(request));
+        }
+        // Повтор с тем же ключом получает сохраненный ответ без повторного бронирования. Дубли
+        // ждут первый запрос вне bulkhead: ожидание не занимает слот записи
+        return idempotencyStore.execute(idempotencyKey, IdempotencyStore.requestHash(request),
+                () -> bulkheads.write().call(() -> visitService.createVisit(request)));
+    }
+
+    @PostMapping("/series")
+    public VisitSeriesResponse createSeries(@Valid @RequestBody VisitSeriesRequest request) {
+        return bulkheads.write().call(() -> visitSeriesService.createSeries(request));
     }
 
     @GetMapping
@@ -29,6 +58,22 @@ class VisitController {
                 request.page() != null ? request.page() : 0,
                 request.size() != null ? request.size() : 10
         );
-        return ResponseEntity.ok(visitService.findPatientsWithLastVisits(request.search(), request.doctorIds(), pageable));
+        // Дубли ждут уже идущий запрос вне bulkhead: они не занимают ни слот, ни соединение
+        return ResponseEntity.ok(listingCoalescer.execute(request.search(), request.doctorIds(),
+                request.from(), request.to(), pageable.getPageNumber(), pageable.getPageSize(),
+                () -> bulkheads.read().call(() -> visitService.findPatientsWithLastVisits(
+                        request.search(), request.doctorIds(), request.from(), request.to(), pageable))));
+    }
+
+    // Accept: application/cbor или application/x-jackson-smile; JSON остается в прежнем виде
+    @GetMapping(produces = {MediaType.APPLICATION_CBOR_VALUE, APPLICATION_SMILE_VALUE})
+    public ResponseEntity<CompactRootDto> getPatientsCompact(@Valid PatientsRequest request) {
+        return ResponseEntity.ok(CompactRootDto.of(getPatients(request).getBody()));
+    }
+
+    @GetMapping("/changes")
+    public VisitChangesDto getChanges(@Valid VisitChangesRequest request) {
+        return bulkheads.read().call(() ->
+                visitService.findChangedPatients(request.since(), request.search(), request.doctorIds()));
     }
 }
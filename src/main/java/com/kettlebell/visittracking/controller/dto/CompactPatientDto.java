@@ -0,0 +1,16 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CompactPatientDto {
+    private String firstName;
+    private String lastName;
+    private List<CompactVisitDto> lastVisits;
+}
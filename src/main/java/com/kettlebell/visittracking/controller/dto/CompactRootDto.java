@@ -0,0 +1,42 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ответ списка для бинарных форматов (CBOR, Smile): каждый врач записан один раз
+ * в doctors, визиты ссылаются на него по индексу.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CompactRootDto {
+    private List<DoctorDto> doctors;
+    private List<CompactPatientDto> data;
+    private Integer count;
+    private String syncToken;
+
+    public static CompactRootDto of(RootDto root) {
+        List<DoctorDto> doctors = new ArrayList<>();
+        Map<DoctorDto, Integer> doctorIndex = new HashMap<>();
+        List<CompactPatientDto> patients = new ArrayList<>(root.getData().size());
+        for (PatientDto patient : root.getData()) {
+            List<CompactVisitDto> visits = new ArrayList<>(patient.getLastVisits().size());
+            for (VisitDto visit : patient.getLastVisits()) {
+                Integer index = doctorIndex.computeIfAbsent(visit.getDoctor(), doctor -> {
+                    doctors.add(doctor);
+                    return doctors.size() - 1;
+                });
+                visits.add(new CompactVisitDto(visit.getStart(), visit.getEnd(), index));
+            }
+            patients.add(new CompactPatientDto(patient.getFirstName(), patient.getLastName(), visits));
+        }
+        return new CompactRootDto(doctors, patients, root.getCount(), root.getSyncToken());
+    }
+}
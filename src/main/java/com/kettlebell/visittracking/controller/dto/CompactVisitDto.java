@@ -0,0 +1,15 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CompactVisitDto {
+    private String start;
+    private String end;
+    // Индекс в CompactRootDto.doctors
+    private Integer doctor;
+}
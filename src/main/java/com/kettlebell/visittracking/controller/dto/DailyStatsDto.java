@@ -0,0 +1,15 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DailyStatsDto {
+    private String date;
+    private Integer visits;
+    private Long bookedMinutes;
+    private Integer uniquePatients;
+}
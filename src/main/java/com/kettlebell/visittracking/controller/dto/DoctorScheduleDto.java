@@ -0,0 +1,18 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DoctorScheduleDto {
+    private Integer doctorId;
+    private String timezone;
+    private String date;
+    private List<DoctorVisitDto> data;
+    private Integer count;
+}
@@ -0,0 +1,17 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DoctorVisitDto {
+    private Integer id;
+    private String start;
+    private String end;
+    private Integer patientId;
+    private String patientFirstName;
+    private String patientLastName;
+}
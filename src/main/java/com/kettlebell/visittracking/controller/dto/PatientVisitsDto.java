@@ -0,0 +1,16 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PatientVisitsDto {
+    private List<PatientVisitDto> data;
+    private Integer count;
+    private String nextCursor;
+}
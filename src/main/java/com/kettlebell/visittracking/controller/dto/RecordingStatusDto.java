@@ -0,0 +1,16 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecordingStatusDto {
+    private String state;
+    private String startTime;
+    private Long maxAgeSeconds;
+    private Long maxSizeBytes;
+    private Long sizeBytes;
+}
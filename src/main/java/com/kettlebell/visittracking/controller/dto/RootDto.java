@@ -12,9 +12,15 @@ import java.util.List;
 public class RootDto {
     private List<PatientDto> data;
     private Integer count;
+    private String syncToken;
 
     public RootDto(List<PatientDto> data) {
         this.data = data;
         this.count = data.size();
     }
+
+    public RootDto(List<PatientDto> data, String syncToken) {
+        this(data);
+        this.syncToken = syncToken;
+    }
 }
@@ -0,0 +1,17 @@
+package com.kettlebell.visittracking.controller.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VisitChangesDto {
+    private List<PatientDto> data;
+    private Integer count;
+    private String syncToken;
+    private Boolean fullResync;
+}
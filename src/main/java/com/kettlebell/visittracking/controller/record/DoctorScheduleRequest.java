@@ -0,0 +1,12 @@
+package com.kettlebell.visittracking.controller.record;
+
+import jakarta.validation.constraints.NotNull;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDate;
+
+public record DoctorScheduleRequest(
+        @NotNull(message = "Date is required")
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate date
+) {}
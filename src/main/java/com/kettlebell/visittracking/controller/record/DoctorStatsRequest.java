@@ -0,0 +1,15 @@
+package com.kettlebell.visittracking.controller.record;
+
+import jakarta.validation.constraints.NotNull;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.time.LocalDate;
+
+public record DoctorStatsRequest(
+        @NotNull(message = "From date is required")
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate from,
+        @NotNull(message = "To date is required")
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate to
+) {}
@@ -0,0 +1,13 @@
+package com.kettlebell.visittracking.controller.record;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import org.hibernate.validator.constraints.Length;
+
+public record PatientVisitsRequest(
+        @Length(max = 64, message = "Cursor must not exceed 64 characters.")
+        String cursor,
+        @Min(value = 1, message = "Minimum page size is 1.")
+        @Max(value = 100, message = "Maximum page size is 100.")
+        Integer size
+) {}
@@ -3,7 +3,9 @@ package com.kettlebell.visittracking.controller.record;
 import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import org.hibernate.validator.constraints.Length;
+import org.springframework.format.annotation.DateTimeFormat;
 
+import java.time.LocalDate;
 import java.util.Set;
 
 public record PatientsRequest(
@@ -14,5 +16,10 @@ public record PatientsRequest(
         Integer page,
         @Min(value = 10, message = "Minimum page size is 10.")
         @Max(value = 100, message = "Maximum page size is 100.")
-        Integer size
+        Integer size,
+        // Даты визитов (включительно) в таймзоне врача
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate from,
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        LocalDate to
 ) {}
@@ -0,0 +1,15 @@
+package com.kettlebell.visittracking.controller.record;
+
+import jakarta.validation.constraints.NotBlank;
+import org.hibernate.validator.constraints.Length;
+
+import java.util.Set;
+
+public record VisitChangesRequest(
+        @NotBlank(message = "Sync token is required.")
+        @Length(max = 512, message = "Sync token must not exceed 512 characters.")
+        String since,
+        @Length(max = 20, message = "Search query must not exceed 20 characters.")
+        String search,
+        Set<Integer> doctorIds
+) {}
@@ -9,4 +9,8 @@ public class VisitResponse {
     public VisitResponse(Visit visit) {
         this.id = visit.getId();
     }
+
+    public VisitResponse(Integer id) {
+        this.id = id;
+    }
 }
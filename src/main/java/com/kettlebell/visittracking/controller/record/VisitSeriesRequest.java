@@ -0,0 +1,32 @@
+package com.kettlebell.visittracking.controller.record;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Positive;
+
+// start/end - первый визит серии в таймзоне врача; следующие - через interval дней или недель
+public record VisitSeriesRequest(
+        @NotBlank(message = "Start time is required")
+        String start,
+        @NotBlank(message = "End time is required")
+        String end,
+        @NotNull(message = "Patient ID is required")
+        @Positive(message = "Patient ID must be a positive number")
+        Integer patientId,
+        @NotNull(message = "Doctor ID is required")
+        @Positive(message = "Doctor ID must be a positive number")
+        Integer doctorId,
+        @NotNull(message = "Frequency is required")
+        @Pattern(regexp = "DAILY|WEEKLY", message = "Frequency must be DAILY or WEEKLY")
+        String frequency,
+        @Min(value = 1, message = "Minimum interval is 1.")
+        @Max(value = 52, message = "Maximum interval is 52.")
+        Integer interval,
+        @NotNull(message = "Count is required")
+        @Min(value = 1, message = "Minimum count is 1.")
+        @Max(value = 104, message = "Maximum count is 104.")
+        Integer count) {
+}
@@ -0,0 +1,7 @@
+package com.kettlebell.visittracking.controller.record;
+
+import java.util.List;
+
+// Id визитов серии в порядке начала
+public record VisitSeriesResponse(List<Integer> ids) {
+}
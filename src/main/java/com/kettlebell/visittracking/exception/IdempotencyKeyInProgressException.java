@@ -0,0 +1,14 @@
+package com.kettlebell.visittracking.exception;
+
+import lombok.Getter;
+
+@Getter
+public class IdempotencyKeyInProgressException extends RuntimeException {
+    private final long retryAfterSeconds;
+
+    public IdempotencyKeyInProgressException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+}
@@ -0,0 +1,8 @@
+package com.kettlebell.visittracking.exception;
+
+public class IdempotencyKeyMismatchException extends RuntimeException {
+    public IdempotencyKeyMismatchException(String message) {
+        super(message);
+    }
+
+}
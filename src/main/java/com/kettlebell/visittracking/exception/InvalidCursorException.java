@@ -0,0 +1,8 @@
+package com.kettlebell.visittracking.exception;
+
+public class InvalidCursorException extends RuntimeException {
+    public InvalidCursorException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.repository.entity.DoctorDailyStats;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface DoctorDailyStatsRepository extends JpaRepository<DoctorDailyStats, DoctorDailyStats.Key> {
+    // Диапазон по первичному ключу (doctor_id, local_date) - не зависит от размера visits
+    @Query("""
+    SELECT s FROM DoctorDailyStats s
+    WHERE s.doctorId = :doctorId AND s.localDate BETWEEN :from AND :to
+    ORDER BY s.localDate
+""")
+    List<DoctorDailyStats> findByDoctorAndDateRange(@Param("doctorId") Integer doctorId,
+                                                    @Param("from") LocalDate from,
+                                                    @Param("to") LocalDate to);
+
+    // 1 - пациент у врача в этот день впервые, 0 - уже учтен
+    @Modifying
+    @Query(value = """
+    INSERT IGNORE INTO doctor_daily_patients (doctor_id, local_date, patient_id)
+    VALUES (:doctorId, :localDate, :patientId)
+""", nativeQuery = true)
+    int addDailyPatient(@Param("doctorId") Integer doctorId,
+                        @Param("localDate") LocalDate localDate,
+                        @Param("patientId") Integer patientId);
+
+    @Modifying
+    @Query(value = """
+    INSERT INTO doctor_daily_stats (doctor_id, local_date, visits_count, booked_seconds, unique_patients)
+    VALUES (:doctorId, :localDate, 1, :bookedSeconds, :newPatients)
+    ON DUPLICATE KEY UPDATE visits_count = visits_count + 1,
+                            booked_seconds = booked_seconds + :bookedSeconds,
+                            unique_patients = unique_patients + :newPatients
+""", nativeQuery = true)
+    void addVisit(@Param("doctorId") Integer doctorId,
+                  @Param("localDate") LocalDate localDate,
+                  @Param("bookedSeconds") long bookedSeconds,
+                  @Param("newPatients") int newPatients);
+
+    @Modifying
+    @Query(value = "DELETE FROM doctor_daily_patients WHERE doctor_id = :doctorId", nativeQuery = true)
+    void deleteDailyPatients(@Param("doctorId") Integer doctorId);
+
+    @Modifying
+    @Query("DELETE FROM DoctorDailyStats s WHERE s.doctorId = :doctorId")
+    void deleteByDoctor(@Param("doctorId") Integer doctorId);
+}
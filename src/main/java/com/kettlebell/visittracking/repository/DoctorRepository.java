@@ -1,7 +1,29 @@
 package com.kettlebell.visittracking.repository;
 
 import com.kettlebell.visittracking.repository.entity.Doctor;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 public interface DoctorRepository extends JpaRepository<Doctor, Integer> {
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM Doctor d WHERE d.id = :id")
+    Optional<Doctor> findByIdForUpdate(@Param("id") Integer id);
+
+    // Блокировки берутся в порядке id, чтобы параллельные пачки не ловили дедлок
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT d FROM Doctor d WHERE d.id IN :ids ORDER BY d.id")
+    List<Doctor> findAllByIdForUpdate(@Param("ids") Collection<Integer> ids);
+
+    @Query("SELECT d.timezone FROM Doctor d WHERE d.id = :id")
+    Optional<String> findTimezoneById(@Param("id") Integer id);
+
+    @Query("SELECT d.id FROM Doctor d ORDER BY d.id")
+    List<Integer> findAllIds();
 }
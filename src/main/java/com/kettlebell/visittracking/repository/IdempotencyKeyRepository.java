@@ -0,0 +1,45 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.repository.entity.IdempotencyKey;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+
+public interface IdempotencyKeyRepository extends JpaRepository<IdempotencyKey, String> {
+    // Обычный INSERT: при повторном ключе падает на первичном ключе, а не делает merge
+    @Transactional
+    @Modifying
+    @Query(value = """
+            INSERT INTO idempotency_keys (idempotency_key, request_hash, visit_id, created_at)
+            VALUES (:key, :requestHash, NULL, :createdAt)""",
+            nativeQuery = true)
+    void claim(@Param("key") String key, @Param("requestHash") String requestHash, @Param("createdAt") Instant createdAt);
+
+    // Перехват брошенного ключа: экземпляр упал между claim и complete, ключ не завершен дольше staleBefore
+    @Transactional
+    @Modifying
+    @Query("""
+            UPDATE IdempotencyKey k SET k.createdAt = :claimedAt
+            WHERE k.key = :key AND k.visitId IS NULL AND k.createdAt < :staleBefore""")
+    int takeOver(@Param("key") String key, @Param("claimedAt") Instant claimedAt, @Param("staleBefore") Instant staleBefore);
+
+    // Снимает только свой незавершенный захват: перехваченный другим экземпляром ключ не трогается
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM IdempotencyKey k WHERE k.key = :key AND k.visitId IS NULL AND k.createdAt = :claimedAt")
+    void release(@Param("key") String key, @Param("claimedAt") Instant claimedAt);
+
+    @Transactional
+    @Modifying
+    @Query("UPDATE IdempotencyKey k SET k.visitId = :visitId WHERE k.key = :key")
+    void complete(@Param("key") String key, @Param("visitId") Integer visitId);
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM IdempotencyKey k WHERE k.createdAt < :threshold")
+    int deleteCreatedBefore(@Param("threshold") Instant threshold);
+}
@@ -0,0 +1,30 @@
+package com.kettlebell.visittracking.repository;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Оборачивает DataSource приложения (один пул или маршрутизатор шардов) в {@link TimedDataSource}.
+ * Метрики пула и health по-прежнему видят Hikari: DelegatingDataSource поддерживает unwrap.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "visit.timing", name = "enabled", havingValue = "true", matchIfMissing = true)
+class JdbcTimingConfiguration {
+
+    @Bean
+    static BeanPostProcessor timedDataSourcePostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource dataSource && !(bean instanceof TimedDataSource)) {
+                    return new TimedDataSource(dataSource);
+                }
+                return bean;
+            }
+        };
+    }
+}
@@ -0,0 +1,154 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Запросы поэтапного списка пациентов (см. ListingPipeline): страница пар пациент-врач
+ * с началом последнего визита, затем по найденным ключам - окончания визитов, врачи и
+ * число уникальных пациентов врачей. Фильтры и порядок те же, что в
+ * {@link VisitRepository#findPatientsWithLastVisits}; дополнительно - фильтр по дате визита.
+ */
+@Repository
+@RequiredArgsConstructor
+public class ListingQueryRepository {
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    public record LastVisitRow(int patientId, String firstName, String lastName, int doctorId, Instant start) {
+    }
+
+    public record VisitEnd(int patientId, int doctorId, Instant start, Instant end) {
+    }
+
+    // Начало визита в [from, to) для врачей с этими таймзонами; null - без границы
+    public record StartWindow(Collection<String> timezones, Instant from, Instant to) {
+    }
+
+    /**
+     * Группировка идет по idx_visit_patient_doctor_start, без чтения строк визитов. С окнами
+     * (windows не null) учитываются только визиты, начавшиеся в окне таймзоны своего врача:
+     * общая граница всех окон - диапазон по idx_visit_start_patient_doctor, точные окна
+     * проверяются на строках этого диапазона.
+     */
+    public List<LastVisitRow> findLastVisitPage(String search, Set<Integer> doctorIds, List<StartWindow> windows,
+                                                long offset, int limit) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("offset", offset)
+                .addValue("limit", limit);
+        StringBuilder sql = new StringBuilder("""
+                SELECT p.id, p.first_name, p.last_name, v.doctor_id, MAX(v.start_date_time) AS last_start
+                FROM patients p
+                JOIN visits v ON v.patient_id = p.id""");
+        if (windows != null) {
+            sql.append("\nJOIN doctors d ON d.id = v.doctor_id");
+        }
+        sql.append("\nWHERE 1 = 1");
+        if (windows != null) {
+            appendWindows(sql, params, windows);
+        }
+        if (search != null && !search.isEmpty()) {
+            sql.append("""
+
+                    AND (LOWER(p.first_name) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!'
+                         OR LOWER(p.last_name) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!')""");
+            params.addValue("search", VisitRepository.escapeLike(search));
+        }
+        if (doctorIds != null) {
+            sql.append("\nAND v.doctor_id IN (:doctorIds)");
+            params.addValue("doctorIds", doctorIds);
+        }
+        sql.append("""
+
+                GROUP BY p.id, p.first_name, p.last_name, v.doctor_id
+                ORDER BY p.last_name, p.first_name, last_start DESC, p.id, v.doctor_id
+                LIMIT :limit OFFSET :offset""");
+        return jdbcTemplate.query(sql.toString(), params, (rs, rowNum) -> new LastVisitRow(
+                rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4),
+                toInstant(rs.getObject(5, LocalDateTime.class))));
+    }
+
+    public List<String> findTimezones() {
+        return jdbcTemplate.getJdbcTemplate().queryForList("SELECT DISTINCT timezone FROM doctors", String.class);
+    }
+
+    public List<VisitEnd> findVisitEnds(List<LastVisitRow> rows) {
+        List<Object[]> keys = rows.stream()
+                .map(row -> new Object[]{row.patientId(), row.doctorId(), LocalDateTime.ofInstant(row.start(), ZoneOffset.UTC)})
+                .toList();
+        return jdbcTemplate.query("""
+                SELECT patient_id, doctor_id, start_date_time, end_date_time
+                FROM visits
+                WHERE (patient_id, doctor_id, start_date_time) IN (:keys)""",
+                Map.of("keys", keys),
+                (rs, rowNum) -> new VisitEnd(rs.getInt(1), rs.getInt(2),
+                        toInstant(rs.getObject(3, LocalDateTime.class)), toInstant(rs.getObject(4, LocalDateTime.class))));
+    }
+
+    public List<Doctor> findDoctors(Collection<Integer> doctorIds) {
+        return jdbcTemplate.query("SELECT id, first_name, last_name, timezone FROM doctors WHERE id IN (:doctorIds)",
+                Map.of("doctorIds", doctorIds),
+                (rs, rowNum) -> new Doctor(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), null));
+    }
+
+    // COUNT(DISTINCT) по idx_visit_doctor_patient
+    public Map<Integer, Long> countPatientsByDoctor(Collection<Integer> doctorIds) {
+        Map<Integer, Long> counts = new HashMap<>();
+        jdbcTemplate.query("""
+                SELECT doctor_id, COUNT(DISTINCT patient_id)
+                FROM visits
+                WHERE doctor_id IN (:doctorIds)
+                GROUP BY doctor_id""",
+                Map.of("doctorIds", doctorIds),
+                rs -> {
+                    counts.put(rs.getInt(1), rs.getLong(2));
+                });
+        return counts;
+    }
+
+    private static void appendWindows(StringBuilder sql, MapSqlParameterSource params, List<StartWindow> windows) {
+        // Границы окон либо заданы у всех окон, либо ни у одного
+        windows.stream().map(StartWindow::from).filter(Objects::nonNull).min(Comparator.naturalOrder())
+                .ifPresent(from -> {
+                    sql.append("\nAND v.start_date_time >= :rangeFrom");
+                    params.addValue("rangeFrom", toUtc(from));
+                });
+        windows.stream().map(StartWindow::to).filter(Objects::nonNull).max(Comparator.naturalOrder())
+                .ifPresent(to -> {
+                    sql.append("\nAND v.start_date_time < :rangeTo");
+                    params.addValue("rangeTo", toUtc(to));
+                });
+        sql.append("\nAND (");
+        for (int i = 0; i < windows.size(); i++) {
+            StartWindow window = windows.get(i);
+            sql.append(i == 0 ? "" : "\n     OR ").append("(d.timezone IN (:timezones").append(i).append(")");
+            params.addValue("timezones" + i, window.timezones());
+            if (window.from() != null) {
+                sql.append(" AND v.start_date_time >= :from").append(i);
+                params.addValue("from" + i, toUtc(window.from()));
+            }
+            if (window.to() != null) {
+                sql.append(" AND v.start_date_time < :to").append(i);
+                params.addValue("to" + i, toUtc(window.to()));
+            }
+            sql.append(")");
+        }
+        sql.append(")");
+    }
+
+    private static LocalDateTime toUtc(Instant instant) {
+        return LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+    }
+
+    // DATETIME хранит UTC
+    private static Instant toInstant(LocalDateTime utc) {
+        return utc.toInstant(ZoneOffset.UTC);
+    }
+}
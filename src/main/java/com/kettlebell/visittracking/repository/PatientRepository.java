@@ -1,7 +1,23 @@
 package com.kettlebell.visittracking.repository;
 
 import com.kettlebell.visittracking.repository.entity.Patient;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 public interface PatientRepository extends JpaRepository<Patient, Integer> {
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM Patient p WHERE p.id = :id")
+    Optional<Patient> findByIdForUpdate(@Param("id") Integer id);
+
+    // Блокировки берутся в порядке id, как и у врачей
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT p FROM Patient p WHERE p.id IN :ids ORDER BY p.id")
+    List<Patient> findAllByIdForUpdate(@Param("ids") Collection<Integer> ids);
 }
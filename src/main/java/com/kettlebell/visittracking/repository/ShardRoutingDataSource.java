@@ -0,0 +1,29 @@
+package com.kettlebell.visittracking.repository;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Выбирает шард по ключу текущего потока. Ключ нужно выставить до начала транзакции:
+ * соединение берется при открытии транзакции и дальше не переключается.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+    private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+
+    public static Integer currentShard() {
+        return CURRENT_SHARD.get();
+    }
+
+    public static void setCurrentShard(Integer shard) {
+        if (shard == null) {
+            CURRENT_SHARD.remove();
+        } else {
+            CURRENT_SHARD.set(shard);
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        // Без ключа - шард по умолчанию (нулевой), где живут общие таблицы
+        return CURRENT_SHARD.get();
+    }
+}
@@ -0,0 +1,138 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.service.ShardRouter;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.output.MigrateResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Шардирование по врачам: по пулу Hikari на каждый URL из visit.sharding.urls и
+ * маршрутизирующий DataSource поверх них. Схема накатывается Flyway на каждый шард, после
+ * чего справочники doctors/patients сверяются между шардами: реплицирует их не приложение.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(prefix = "visit.sharding", name = "enabled", havingValue = "true")
+class ShardingConfiguration {
+    // Id визитов уникальны по всем шардам: шард i выдает id начиная с i * VISIT_ID_RANGE (INT - до 21 шарда)
+    private static final int VISIT_ID_RANGE = 100_000_000;
+    // Число строк, максимальный id и XOR контрольных сумм строк: совпадают, только если строки одинаковы
+    private static final Map<String, String> REFERENCE_SUMMARIES = Map.of(
+            "doctors", """
+                    SELECT CONCAT_WS('/', COUNT(*), COALESCE(MAX(id), 0),
+                           COALESCE(BIT_XOR(CRC32(CONCAT_WS('|', id, first_name, last_name, timezone))), 0))
+                    FROM doctors""",
+            "patients", """
+                    SELECT CONCAT_WS('/', COUNT(*), COALESCE(MAX(id), 0),
+                           COALESCE(BIT_XOR(CRC32(CONCAT_WS('|', id, first_name, last_name))), 0))
+                    FROM patients""");
+
+    private final List<HikariDataSource> shards = new ArrayList<>();
+
+    ShardingConfiguration(DataSourceProperties properties,
+                          @Value("${visit.sharding.urls}") List<String> urls,
+                          @Value("${spring.datasource.hikari.maximum-pool-size:10}") int poolSize,
+                          @Value("${spring.datasource.hikari.transaction-isolation:}") String isolation) {
+        for (int shard = 0; shard < urls.size(); shard++) {
+            HikariDataSource dataSource = properties.initializeDataSourceBuilder()
+                    .type(HikariDataSource.class)
+                    .url(urls.get(shard))
+                    .build();
+            dataSource.setPoolName("shard-" + shard);
+            dataSource.setMaximumPoolSize(poolSize);
+            if (!isolation.isEmpty()) {
+                dataSource.setTransactionIsolation(isolation);
+            }
+            shards.add(dataSource);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        shards.forEach(HikariDataSource::close);
+    }
+
+    @Bean
+    DataSource dataSource() {
+        Map<Object, Object> targets = new HashMap<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            targets.put(shard, shards.get(shard));
+        }
+        ShardRoutingDataSource routing = new ShardRoutingDataSource();
+        routing.setTargetDataSources(targets);
+        routing.setDefaultTargetDataSource(shards.get(0));
+        routing.setLenientFallback(false);
+        return routing;
+    }
+
+    @Bean
+    FlywayMigrationStrategy shardMigrationStrategy(ShardRouter shardRouter) {
+        return flyway -> {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                MigrateResult result = Flyway.configure()
+                        .configuration(flyway.getConfiguration())
+                        .dataSource(shards.get(shard))
+                        .load()
+                        .migrate();
+                if (result.migrations.stream().anyMatch(migration -> "3".equals(migration.version))) {
+                    keepOwnSeedVisits(shard, shardRouter);
+                }
+                reserveVisitIds(shard);
+                log.info("Shard {} migrated to version {}", shard, result.targetSchemaVersion);
+            }
+            checkReferenceTables();
+        };
+    }
+
+    // Врачи и пациенты читаются с любого шарда; расходящиеся копии дают разные ответы в зависимости от шарда
+    private void checkReferenceTables() {
+        REFERENCE_SUMMARIES.forEach((table, sql) -> {
+            String expected = new JdbcTemplate(shards.get(0)).queryForObject(sql, String.class);
+            for (int shard = 1; shard < shards.size(); shard++) {
+                String actual = new JdbcTemplate(shards.get(shard)).queryForObject(sql, String.class);
+                if (!expected.equals(actual)) {
+                    throw new IllegalStateException("Table " + table + " differs between shard 0 (" + expected
+                            + ") and shard " + shard + " (" + actual + "); reference tables must be copied "
+                            + "to every shard with the same ids");
+                }
+            }
+        });
+    }
+
+    private void reserveVisitIds(int shard) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(shards.get(shard));
+        long firstId = (long) shard * VISIT_ID_RANGE + 1;
+        Long maxId = jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM visits", Long.class);
+        if (maxId < firstId) {
+            jdbcTemplate.execute("ALTER TABLE visits AUTO_INCREMENT = " + firstId);
+        }
+    }
+
+    // Тестовые визиты из V3 попадают на каждый шард; на свежем шарде оставляем только своих врачей
+    private void keepOwnSeedVisits(int shard, ShardRouter shardRouter) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(shards.get(shard));
+        List<Integer> foreignDoctors = jdbcTemplate.queryForList("SELECT id FROM doctors", Integer.class).stream()
+                .filter(doctorId -> shardRouter.shardOf(doctorId) != shard)
+                .toList();
+        if (!foreignDoctors.isEmpty()) {
+            new NamedParameterJdbcTemplate(jdbcTemplate).update(
+                    "DELETE FROM visits WHERE doctor_id IN (:doctorIds)", Map.of("doctorIds", foreignDoctors));
+        }
+    }
+}
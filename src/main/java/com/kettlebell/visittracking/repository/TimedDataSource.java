@@ -0,0 +1,88 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.service.RequestTimings;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * DataSource, который считает JDBC-запросы и их время в {@link RequestTimings} текущего
+ * HTTP-запроса. Соединения, взятые вне HTTP-запроса (планировщик, старт), отдаются как есть.
+ * Время запроса - вызов execute*; MySQL-драйвер к его завершению уже прочитал результат.
+ */
+class TimedDataSource extends DelegatingDataSource {
+
+    TimedDataSource(DataSource target) {
+        super(target);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (RequestTimings.current() == null) {
+            return super.getConnection();
+        }
+        long started = System.nanoTime();
+        Connection connection = super.getConnection();
+        RequestTimings.recordConnection(System.nanoTime() - started);
+        return wrap(Connection.class, connection, this::connectionCall);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (RequestTimings.current() == null) {
+            return super.getConnection(username, password);
+        }
+        long started = System.nanoTime();
+        Connection connection = super.getConnection(username, password);
+        RequestTimings.recordConnection(System.nanoTime() - started);
+        return wrap(Connection.class, connection, this::connectionCall);
+    }
+
+    private Object connectionCall(Object target, Method method, Object[] args) throws Throwable {
+        Object result = invoke(target, method, args);
+        // createStatement / prepareStatement / prepareCall: тип обертки - объявленный тип результата
+        if (result instanceof Statement statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+            return wrap(method.getReturnType(), statement, this::statementCall);
+        }
+        return result;
+    }
+
+    private Object statementCall(Object target, Method method, Object[] args) throws Throwable {
+        if (!method.getName().startsWith("execute")) {
+            return invoke(target, method, args);
+        }
+        long started = System.nanoTime();
+        try {
+            return invoke(target, method, args);
+        } finally {
+            RequestTimings.recordStatement(System.nanoTime() - started);
+        }
+    }
+
+    private static <T> T wrap(Class<?> type, Object target, Call call) {
+        InvocationHandler handler = (proxy, method, args) -> call.invoke(target, method, args);
+        @SuppressWarnings("unchecked")
+        T proxy = (T) Proxy.newProxyInstance(TimedDataSource.class.getClassLoader(), new Class<?>[]{type}, handler);
+        return proxy;
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        Object invoke(Object target, Method method, Object[] args) throws Throwable;
+    }
+}
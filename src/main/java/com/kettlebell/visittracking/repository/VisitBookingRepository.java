@@ -0,0 +1,82 @@
+package com.kettlebell.visittracking.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+/**
+ * Бронирование одним запросом: проверка врача (и его таймзоны), пациента, пересечений
+ * в расписании врача и у пациента и вставка визита. FOR UPDATE блокирует строки врача и
+ * пациента до проверки пересечений, поэтому параллельные бронирования одного врача (как и
+ * одного пациента) выполняются по очереди. Визиты пациента видны только на шарде врача
+ * (см. {@code visit.sharding.allow-shard-local-patient-check}).
+ */
+@Repository
+@RequiredArgsConstructor
+public class VisitBookingRepository {
+    private static final String INSERT_IF_FREE = """
+            INSERT INTO visits (start_date_time, end_date_time, patient_id, doctor_id)
+            SELECT :startUtc, :endUtc, p.id, d.id
+            FROM doctors d
+            JOIN patients p ON p.id = :patientId
+            WHERE d.id = :doctorId
+            AND d.timezone = :timezone
+            AND NOT EXISTS (SELECT 1 FROM visits v
+                            WHERE v.doctor_id = d.id
+                            AND v.start_date_time < :endUtc AND v.end_date_time > :startUtc)
+            AND NOT EXISTS (SELECT 1 FROM visits v
+                            WHERE v.patient_id = p.id
+                            AND v.start_date_time < :endUtc AND v.end_date_time > :startUtc)
+            FOR UPDATE""";
+
+    // :rows разворачивается в (?, ?, ?, ?), (?, ?, ?, ?), ...
+    private static final String INSERT_ALL = """
+            INSERT INTO visits (start_date_time, end_date_time, patient_id, doctor_id)
+            VALUES :rows""";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Возвращает id нового визита или null, если ничего не вставлено: врача или пациента нет,
+     * таймзона врача изменилась или время занято у врача или у пациента.
+     */
+    public Integer insertIfFree(Integer doctorId, String timezone, Integer patientId, Instant startUtc, Instant endUtc) {
+        // В DATETIME хранится UTC, как и при записи через Hibernate
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("startUtc", LocalDateTime.ofInstant(startUtc, ZoneOffset.UTC))
+                .addValue("endUtc", LocalDateTime.ofInstant(endUtc, ZoneOffset.UTC))
+                .addValue("patientId", patientId)
+                .addValue("doctorId", doctorId)
+                .addValue("timezone", timezone);
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        int inserted = jdbcTemplate.update(INSERT_IF_FREE, params, keyHolder, new String[]{"id"});
+        return inserted == 0 ? null : keyHolder.getKey().intValue();
+    }
+
+    /**
+     * Вставляет визиты одним многострочным INSERT и возвращает их id в том же порядке.
+     * Пересечения не проверяются: вызывающий держит блокировки врача и пациента и проверил их сам.
+     */
+    public List<Integer> insertAll(Integer doctorId, Integer patientId, List<Instant[]> intervals) {
+        List<Object[]> rows = intervals.stream()
+                .map(interval -> new Object[]{
+                        LocalDateTime.ofInstant(interval[0], ZoneOffset.UTC),
+                        LocalDateTime.ofInstant(interval[1], ZoneOffset.UTC),
+                        patientId,
+                        doctorId})
+                .toList();
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(INSERT_ALL, new MapSqlParameterSource("rows", rows), keyHolder, new String[]{"id"});
+        return keyHolder.getKeyList().stream()
+                .map(keys -> ((Number) keys.values().iterator().next()).intValue())
+                .toList();
+    }
+}
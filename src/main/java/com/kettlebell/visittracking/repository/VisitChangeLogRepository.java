@@ -0,0 +1,37 @@
+package com.kettlebell.visittracking.repository;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Запросы к журналу visit_changes, которым нужен чистый JDBC: блокирующее чтение
+ * диапазона seq без ожидания.
+ */
+@Repository
+@RequiredArgsConstructor
+public class VisitChangeLogRepository {
+    // Незакоммиченная вставка держит блокировку своей строки: NOWAIT на ней сразу падает.
+    // В READ COMMITTED чтение не ставит gap-блокировок и не мешает новым вставкам
+    private static final String LOCK_RANGE = """
+            SELECT seq FROM visit_changes
+            WHERE seq > :fromSeq AND seq <= :toSeq
+            FOR UPDATE NOWAIT""";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Блокирует и сразу отпускает (коммитом) строки диапазона (fromSeq, toSeq]. Бросает
+     * {@link org.springframework.dao.PessimisticLockingFailureException}, если в диапазоне
+     * есть строка незавершенной транзакции.
+     */
+    @Transactional(isolation = Isolation.READ_COMMITTED)
+    public void lockRangeNoWait(long fromSeq, long toSeq) {
+        jdbcTemplate.queryForList(LOCK_RANGE, new MapSqlParameterSource()
+                .addValue("fromSeq", fromSeq)
+                .addValue("toSeq", toSeq), Long.class);
+    }
+}
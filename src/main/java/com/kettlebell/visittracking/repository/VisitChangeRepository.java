@@ -0,0 +1,38 @@
+package com.kettlebell.visittracking.repository;
+
+import com.kettlebell.visittracking.repository.entity.VisitChange;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface VisitChangeRepository extends JpaRepository<VisitChange, Long> {
+    @Query("SELECT MIN(c.seq) FROM VisitChange c")
+    Long findMinSeq();
+
+    @Query("SELECT MAX(c.seq) FROM VisitChange c")
+    Long findMaxSeq();
+
+    @Query("""
+    SELECT DISTINCT c.patientId FROM VisitChange c
+    WHERE c.seq > :since
+""")
+    List<Integer> findPatientsChangedAfter(@Param("since") long since, Pageable pageable);
+
+    @Query("""
+    SELECT DISTINCT c.patientId, c.doctorId FROM VisitChange c
+    WHERE c.seq > :fromSeq AND c.seq <= :toSeq
+""")
+    List<Object[]> findPairsChangedBetween(@Param("fromSeq") long fromSeq, @Param("toSeq") long toSeq, Pageable pageable);
+
+    // Последняя запись не удаляется никогда: по ней видно, что старые токены устарели
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM VisitChange c WHERE c.changedAt < :cutoff AND c.seq < :maxSeq")
+    int deleteChangedBefore(@Param("cutoff") Instant cutoff, @Param("maxSeq") long maxSeq);
+}
@@ -1,6 +1,7 @@
 package com.kettlebell.visittracking.repository;
 
 import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
 import com.kettlebell.visittracking.repository.entity.Visit;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -9,9 +10,16 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 public interface VisitRepository extends JpaRepository<Visit, Integer> {
+    // Поиск в списке - подстрока: % и _ в нем обычные символы, LIKE их сравнивает через ESCAPE '!'
+    static String escapeLike(String search) {
+        return search == null ? null : search.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
     @Query("""
     SELECT COUNT(v) > 0 FROM Visit v
     WHERE v.doctor = :doctor
@@ -23,6 +31,81 @@ public interface VisitRepository extends JpaRepository<Visit, Integer> {
                                          @Param("startUtc") Instant startUtc,
                                          @Param("endUtc") Instant endUtc);
 
+    @Query("""
+    SELECT COUNT(v) > 0 FROM Visit v
+    WHERE v.patient = :patient
+    AND v.startDateTime < :endUtc AND v.endDateTime > :startUtc
+""")
+    boolean existsByPatientAndTimeOverlap(@Param("patient") Patient patient,
+                                          @Param("startUtc") Instant startUtc,
+                                          @Param("endUtc") Instant endUtc);
+
+    @Query("""
+    SELECT v.startDateTime, v.endDateTime FROM Visit v
+    WHERE v.doctor.id = :doctorId
+    AND v.startDateTime < :endUtc AND v.endDateTime > :startUtc
+""")
+    List<Object[]> findIntervalsByDoctorAndTimeOverlap(@Param("doctorId") Integer doctorId,
+                                                       @Param("startUtc") Instant startUtc,
+                                                       @Param("endUtc") Instant endUtc);
+
+    // Занятость врача и пациента одним запросом; визиты пациента у разных врачей могут пересекаться
+    @Query("""
+    SELECT v.startDateTime, v.endDateTime, v.doctor.id FROM Visit v
+    WHERE (v.doctor.id = :doctorId OR v.patient.id = :patientId)
+    AND v.startDateTime < :endUtc AND v.endDateTime > :startUtc
+    ORDER BY v.startDateTime
+""")
+    List<Object[]> findIntervalsByDoctorOrPatientOrderByStart(@Param("doctorId") Integer doctorId,
+                                                              @Param("patientId") Integer patientId,
+                                                              @Param("startUtc") Instant startUtc,
+                                                              @Param("endUtc") Instant endUtc);
+
+    @Query("""
+    SELECT v.patient.id, v.startDateTime, v.endDateTime FROM Visit v
+    WHERE v.patient.id IN :patientIds
+    AND v.startDateTime < :endUtc AND v.endDateTime > :startUtc
+""")
+    List<Object[]> findIntervalsByPatientsAndTimeOverlap(@Param("patientIds") Collection<Integer> patientIds,
+                                                         @Param("startUtc") Instant startUtc,
+                                                         @Param("endUtc") Instant endUtc);
+
+    @Query("""
+    SELECT v FROM Visit v JOIN FETCH v.doctor
+    WHERE v.patient.id = :patientId
+    ORDER BY v.startDateTime DESC, v.id DESC
+""")
+    List<Visit> findPatientHistory(@Param("patientId") Integer patientId, Pageable pageable);
+
+    // Keyset: следующая страница после (startDateTime, id) последнего визита предыдущей
+    @Query("""
+    SELECT v FROM Visit v JOIN FETCH v.doctor
+    WHERE v.patient.id = :patientId
+    AND (v.startDateTime < :start OR (v.startDateTime = :start AND v.id < :id))
+    ORDER BY v.startDateTime DESC, v.id DESC
+""")
+    List<Visit> findPatientHistoryAfter(@Param("patientId") Integer patientId,
+                                        @Param("start") Instant start,
+                                        @Param("id") Integer id,
+                                        Pageable pageable);
+
+    // Только столбцы idx_visit_doctor_start_end_patient: запрос не читает строки таблицы
+    @Query("""
+    SELECT v.id, v.patient.id, v.startDateTime, v.endDateTime FROM Visit v
+    WHERE v.doctor.id = :doctorId
+    AND v.startDateTime >= :fromUtc AND v.startDateTime < :toUtc
+    ORDER BY v.startDateTime
+""")
+    List<Object[]> findDaySchedule(@Param("doctorId") Integer doctorId,
+                                   @Param("fromUtc") Instant fromUtc,
+                                   @Param("toUtc") Instant toUtc);
+
+    @Query("""
+    SELECT v.patient.id, v.startDateTime, v.endDateTime FROM Visit v
+    WHERE v.doctor.id = :doctorId
+""")
+    List<Object[]> findBookingsByDoctor(@Param("doctorId") Integer doctorId);
+
     @Query("""
     SELECT p, v.startDateTime, v.endDateTime, d, COUNT(DISTINCT v2.patient.id) AS totalPatients
     FROM Visit v
@@ -30,14 +113,14 @@ public interface VisitRepository extends JpaRepository<Visit, Integer> {
     JOIN v.doctor d
     LEFT JOIN Visit v2 ON v2.doctor.id = d.id 
     WHERE (:search IS NULL OR :search = ''
-           OR LOWER(p.firstName) LIKE LOWER(CONCAT('%', :search, '%'))
-           OR LOWER(p.lastName) LIKE LOWER(CONCAT('%', :search, '%')))
+           OR LOWER(p.firstName) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!'
+           OR LOWER(p.lastName) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!')
     AND (:doctorIds IS NULL OR d.id IN :doctorIds)
     AND v.startDateTime = (SELECT MAX(v3.startDateTime)
                            FROM Visit v3
                            WHERE v3.patient.id = p.id AND v3.doctor.id = d.id)
     GROUP BY p.id, v.id, d.id
-    ORDER BY p.lastName, p.firstName, v.startDateTime DESC
+    ORDER BY p.lastName, p.firstName, v.startDateTime DESC, p.id, d.id
 """)
     Page<Object[]> findPatientsWithLastVisits(
             @Param("search") String search,
@@ -45,4 +128,28 @@ public interface VisitRepository extends JpaRepository<Visit, Integer> {
             Pageable pageable
     );
 
+    // То же, что findPatientsWithLastVisits, но только для указанных пациентов (delta-sync)
+    @Query("""
+    SELECT p, v.startDateTime, v.endDateTime, d, COUNT(DISTINCT v2.patient.id) AS totalPatients
+    FROM Visit v
+    JOIN v.patient p
+    JOIN v.doctor d
+    LEFT JOIN Visit v2 ON v2.doctor.id = d.id
+    WHERE p.id IN :patientIds
+    AND (:search IS NULL OR :search = ''
+           OR LOWER(p.firstName) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!'
+           OR LOWER(p.lastName) LIKE LOWER(CONCAT('%', :search, '%')) ESCAPE '!')
+    AND (:doctorIds IS NULL OR d.id IN :doctorIds)
+    AND v.startDateTime = (SELECT MAX(v3.startDateTime)
+                           FROM Visit v3
+                           WHERE v3.patient.id = p.id AND v3.doctor.id = d.id)
+    GROUP BY p.id, v.id, d.id
+    ORDER BY p.lastName, p.firstName, v.startDateTime DESC, p.id, d.id
+""")
+    List<Object[]> findLastVisitsOfPatients(
+            @Param("patientIds") Set<Integer> patientIds,
+            @Param("search") String search,
+            @Param("doctorIds") Set<Integer> doctorIds
+    );
+
 }
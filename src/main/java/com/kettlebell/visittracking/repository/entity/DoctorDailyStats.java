@@ -0,0 +1,38 @@
+package com.kettlebell.visittracking.repository.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+
+@Entity
+@Data
+@Table(name = "doctor_daily_stats")
+@IdClass(DoctorDailyStats.Key.class)
+@AllArgsConstructor
+@NoArgsConstructor
+public class DoctorDailyStats {
+    @Id
+    @Column(name = "doctor_id")
+    private Integer doctorId;
+    @Id
+    @Column(name = "local_date")
+    private LocalDate localDate;
+    @Column(name = "visits_count", nullable = false)
+    private Integer visitsCount;
+    @Column(name = "booked_seconds", nullable = false)
+    private Long bookedSeconds;
+    @Column(name = "unique_patients", nullable = false)
+    private Integer uniquePatients;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private Integer doctorId;
+        private LocalDate localDate;
+    }
+}
@@ -0,0 +1,25 @@
+package com.kettlebell.visittracking.repository.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Entity
+@Data
+@Table(name = "idempotency_keys")
+@AllArgsConstructor
+@NoArgsConstructor
+public class IdempotencyKey {
+    @Id
+    @Column(name = "idempotency_key")
+    private String key;
+    @Column(name = "request_hash")
+    private String requestHash;
+    @Column(name = "visit_id")
+    private Integer visitId;
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+}
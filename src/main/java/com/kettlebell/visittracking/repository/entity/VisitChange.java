@@ -0,0 +1,24 @@
+package com.kettlebell.visittracking.repository.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Entity
+@Data
+@Table(name = "visit_changes")
+@AllArgsConstructor
+@NoArgsConstructor
+public class VisitChange {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long seq;
+    @Column(name = "patient_id", nullable = false)
+    private Integer patientId;
+    @Column(name = "doctor_id", nullable = false)
+    private Integer doctorId;
+    @Column(name = "changed_at", nullable = false)
+    private Instant changedAt;
+}
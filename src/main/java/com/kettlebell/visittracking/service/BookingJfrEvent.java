@@ -0,0 +1,47 @@
+package com.kettlebell.visittracking.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR-событие бронирования: длительность - весь {@link VisitService#createVisit}, включая коммит
+ * и повторы после дедлока.
+ */
+@Name("com.kettlebell.visittracking.Booking")
+@Label("Visit Booking")
+@Category("Visit Tracking")
+@Description("Booking of a visit through VisitService.createVisit")
+@StackTrace(false)
+class BookingJfrEvent extends Event {
+    @Label("Doctor Id")
+    int doctorId;
+
+    @Label("Patient Id")
+    int patientId;
+
+    @Label("Outcome")
+    @Description("booked, doctor-booked, patient-booked, not-found, invalid-time, lock-failure or error")
+    String outcome;
+
+    @Label("Batched")
+    @Description("Committed by the booking pipeline together with other bookings")
+    boolean batched;
+
+    @Label("Attempts")
+    int attempts;
+
+    @Label("Insert Time")
+    @Description("Conditional INSERT ... SELECT: overlap check and insert in one statement")
+    @Timespan
+    long insertTime;
+
+    @Label("Check Time")
+    @Description("Lookups that explain why nothing was inserted")
+    @Timespan
+    long checkTime;
+}
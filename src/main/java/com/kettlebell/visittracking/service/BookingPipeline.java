@@ -0,0 +1,324 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitResponse;
+import com.kettlebell.visittracking.exception.OverloadedException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Групповая запись визитов: запросы копятся в ограниченной очереди, один поток-писатель
+ * забирает их пачками и коммитит одной транзакцией. Семантика для каждого запроса та же,
+ * что и у {@link VisitService#createVisit}: если пачка падает на ошибке БД, ее запросы
+ * повторяются по одному, и ошибку получает только тот, кто ее вызвал.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "visit.booking.pipeline", name = "enabled", havingValue = "true")
+public class BookingPipeline {
+    private final VisitRepository visitRepo;
+    private final DoctorRepository doctorRepo;
+    private final PatientRepository patientRepo;
+    private final DoctorStatsService doctorStatsService;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<PendingBooking> queue;
+    private final int batchSize;
+    private final long maxWaitNanos;
+    private final Duration submitTimeout;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public BookingPipeline(VisitRepository visitRepo,
+                           DoctorRepository doctorRepo,
+                           PatientRepository patientRepo,
+                           DoctorStatsService doctorStatsService,
+                           ShardRouter shardRouter,
+                           ApplicationEventPublisher eventPublisher,
+                           TransactionTemplate transactionTemplate,
+                           @Value("${visit.booking.pipeline.queue-capacity:1024}") int queueCapacity,
+                           @Value("${visit.booking.pipeline.batch-size:64}") int batchSize,
+                           @Value("${visit.booking.pipeline.max-wait:2ms}") Duration maxWait,
+                           @Value("${visit.booking.pipeline.submit-timeout:10s}") Duration submitTimeout) {
+        this.visitRepo = visitRepo;
+        this.doctorRepo = doctorRepo;
+        this.patientRepo = patientRepo;
+        this.doctorStatsService = doctorStatsService;
+        this.shardRouter = shardRouter;
+        this.eventPublisher = eventPublisher;
+        this.transactionTemplate = transactionTemplate;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.submitTimeout = submitTimeout;
+        this.writer = new Thread(this::drainLoop, "booking-pipeline-writer");
+        this.writer.setDaemon(true);
+    }
+
+    @PostConstruct
+    void start() {
+        writer.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        writer.interrupt();
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+        PendingBooking pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(shutDown());
+        }
+    }
+
+    public VisitResponse submit(VisitRequest request) {
+        if (!running) {
+            throw shutDown();
+        }
+        PendingBooking pending = new PendingBooking(request);
+        long deadline = System.nanoTime() + submitTimeout.toNanos();
+        try {
+            // Очередь ограничена: при переполнении вызывающий поток ждет (backpressure), но не дольше таймаута
+            if (!queue.offer(pending, submitTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                throw new OverloadedException("Booking queue is full", 1);
+            }
+            if (!running && queue.remove(pending)) {
+                // stop() мог уже вычистить очередь и не увидеть этот запрос
+                throw shutDown();
+            }
+            return pending.result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for booking", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Booking failed", e.getCause());
+        } catch (TimeoutException e) {
+            if (queue.remove(pending)) {
+                // Писатель запрос не брал: отказ безопасен, клиент может повторить
+                throw new OverloadedException("Booking queue is overloaded", 1);
+            }
+            // Запрос уже в пачке: исход станет известен только после коммита
+            throw new IllegalStateException("Booking did not complete within " + submitTimeout, e);
+        }
+    }
+
+    private void drainLoop() {
+        List<PendingBooking> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                PendingBooking first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Добираем пачку до batchSize или пока не истечет maxWait
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingBooking next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch.forEach(b -> b.result.completeExceptionally(shutDown()));
+                return;
+            } catch (Throwable e) {
+                // Писатель один: любая ошибка вне commit() завершает только текущую пачку
+                log.error("Booking pipeline failed to process a batch of {}", batch.size(), e);
+                batch.forEach(b -> b.result.completeExceptionally(e));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<PendingBooking> batch) {
+        // При шардировании пачка коммитится отдельной транзакцией на каждом шарде
+        Map<Integer, List<PendingBooking>> byShard = batch.stream().collect(Collectors.groupingBy(
+                b -> shardRouter.shardOf(b.request.doctorId()), LinkedHashMap::new, Collectors.toList()));
+        byShard.forEach((shard, bookings) -> shardRouter.runOnShard(shard, () -> commit(bookings)));
+    }
+
+    private void commit(List<PendingBooking> batch) {
+        try {
+            batch.forEach(PendingBooking::reset);
+            transactionTemplate.executeWithoutResult(status -> writeBatch(batch));
+        } catch (RuntimeException e) {
+            if (batch.size() > 1) {
+                // Транзакция пачки откачена целиком: каждый запрос повторяется своей транзакцией
+                log.warn("Booking batch of {} failed, retrying bookings one by one", batch.size(), e);
+                batch.forEach(pending -> commit(List.of(pending)));
+            } else {
+                log.error("Booking failed", e);
+                batch.get(0).result.completeExceptionally(e);
+            }
+            return;
+        }
+        // Результаты отдаем только после коммита
+        for (PendingBooking pending : batch) {
+            if (pending.failure != null) {
+                pending.result.completeExceptionally(pending.failure);
+            } else {
+                pending.result.complete(new VisitResponse(pending.visit));
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingBooking> batch) {
+        // Врачи, затем пациенты блокируются первыми запросами транзакции, как и в VisitService#bookVisit
+        Map<Integer, Doctor> doctors = doctorRepo.findAllByIdForUpdate(
+                batch.stream().map(b -> b.request.doctorId()).collect(Collectors.toSet())
+        ).stream().collect(Collectors.toMap(Doctor::getId, Function.identity()));
+        Map<Integer, Patient> patients = patientRepo.findAllByIdForUpdate(
+                batch.stream().map(b -> b.request.patientId()).collect(Collectors.toSet())
+        ).stream().collect(Collectors.toMap(Patient::getId, Function.identity()));
+
+        // Валидация в том же порядке, что и в VisitService#createVisit
+        Map<Integer, List<PendingBooking>> byDoctor = new LinkedHashMap<>();
+        List<PendingBooking> valid = new ArrayList<>(batch.size());
+        for (PendingBooking pending : batch) {
+            try {
+                VisitRequest request = pending.request;
+                Doctor doctor = doctors.get(request.doctorId());
+                if (doctor == null) {
+                    throw VisitService.doctorNotFound(request.doctorId());
+                }
+                Patient patient = patients.get(request.patientId());
+                if (patient == null) {
+                    throw VisitService.patientNotFound(request.patientId());
+                }
+                TimestampCodec doctorZone = TimestampCodec.forZone(doctor.getTimezone());
+                long startTime = VisitService.parseDateTime(request.start());
+                long endTime = VisitService.parseDateTime(request.end());
+                VisitService.checkRange(startTime, endTime);
+                Instant startUtc = VisitService.toUtc(startTime, doctorZone);
+                Instant endUtc = VisitService.toUtc(endTime, doctorZone);
+                // Иначе строка упадет на CHECK в БД и откатит всю пачку
+                VisitService.checkRange(startUtc, endUtc);
+
+                Visit visit = new Visit();
+                visit.setStartDateTime(startUtc);
+                visit.setEndDateTime(endUtc);
+                visit.setPatient(patient);
+                visit.setDoctor(doctor);
+                pending.visit = visit;
+                byDoctor.computeIfAbsent(doctor.getId(), id -> new ArrayList<>()).add(pending);
+                valid.add(pending);
+            } catch (RuntimeException e) {
+                pending.failure = e;
+            }
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+
+        // Один диапазонный запрос на врача покрывает все запросы пачки
+        Map<Integer, List<Instant[]>> takenByDoctor = new HashMap<>();
+        for (Map.Entry<Integer, List<PendingBooking>> entry : byDoctor.entrySet()) {
+            List<Instant[]> taken = new ArrayList<>();
+            for (Object[] row : visitRepo.findIntervalsByDoctorAndTimeOverlap(entry.getKey(),
+                    earliestStart(entry.getValue()), latestEnd(entry.getValue()))) {
+                taken.add(new Instant[]{(Instant) row[0], (Instant) row[1]});
+            }
+            takenByDoctor.put(entry.getKey(), taken);
+        }
+        // И один на всех пациентов пачки
+        Map<Integer, List<Instant[]>> takenByPatient = new HashMap<>();
+        for (Object[] row : visitRepo.findIntervalsByPatientsAndTimeOverlap(
+                valid.stream().map(b -> b.request.patientId()).collect(Collectors.toSet()),
+                earliestStart(valid), latestEnd(valid))) {
+            takenByPatient.computeIfAbsent((Integer) row[0], id -> new ArrayList<>())
+                    .add(new Instant[]{(Instant) row[1], (Instant) row[2]});
+        }
+
+        // Запросы внутри пачки проверяются в порядке поступления
+        List<Visit> accepted = new ArrayList<>();
+        for (PendingBooking pending : valid) {
+            Instant start = pending.visit.getStartDateTime();
+            Instant end = pending.visit.getEndDateTime();
+            List<Instant[]> doctorTaken = takenByDoctor.get(pending.request.doctorId());
+            List<Instant[]> patientTaken = takenByPatient.computeIfAbsent(pending.request.patientId(),
+                    id -> new ArrayList<>());
+            if (overlaps(doctorTaken, start, end)) {
+                pending.visit = null;
+                pending.failure = VisitService.doctorBooked();
+            } else if (overlaps(patientTaken, start, end)) {
+                pending.visit = null;
+                pending.failure = VisitService.patientBooked();
+            } else {
+                doctorTaken.add(new Instant[]{start, end});
+                patientTaken.add(new Instant[]{start, end});
+                accepted.add(pending.visit);
+            }
+        }
+
+        for (Visit saved : visitRepo.saveAll(accepted)) {
+            doctorStatsService.recordVisit(saved);
+            eventPublisher.publishEvent(new VisitCreatedEvent(saved));
+        }
+    }
+
+    private static IllegalStateException shutDown() {
+        return new IllegalStateException("Booking pipeline is shut down");
+    }
+
+    private static boolean overlaps(List<Instant[]> taken, Instant start, Instant end) {
+        return taken.stream().anyMatch(t -> t[0].isBefore(end) && t[1].isAfter(start));
+    }
+
+    private static Instant earliestStart(List<PendingBooking> bookings) {
+        return bookings.stream().map(b -> b.visit.getStartDateTime()).min(Comparator.naturalOrder()).orElseThrow();
+    }
+
+    private static Instant latestEnd(List<PendingBooking> bookings) {
+        return bookings.stream().map(b -> b.visit.getEndDateTime()).max(Comparator.naturalOrder()).orElseThrow();
+    }
+
+    private static final class PendingBooking {
+        private final VisitRequest request;
+        private final CompletableFuture<VisitResponse> result = new CompletableFuture<>();
+        private Visit visit;
+        private RuntimeException failure;
+
+        private PendingBooking(VisitRequest request) {
+            this.request = request;
+        }
+
+        private void reset() {
+            visit = null;
+            failure = null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.kettlebell.visittracking.service;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Транзакции одиночного бронирования (INSERT ... SELECT в {@code VisitBookingRepository}).
+ * READ COMMITTED задается только им: в REPEATABLE READ проверка пересечений ставит
+ * gap-блокировки, которые задевают соседних врачей и дают дедлоки. Остальные транзакции
+ * работают с уровнем изоляции по умолчанию.
+ */
+@Component
+public class BookingTransactions {
+    private final TransactionTemplate template;
+
+    public BookingTransactions(PlatformTransactionManager transactionManager) {
+        this.template = new TransactionTemplate(transactionManager);
+        this.template.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
+
+    public <T> T execute(TransactionCallback<T> action) {
+        return template.execute(action);
+    }
+}
@@ -0,0 +1,60 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.DoctorScheduleDto;
+import com.kettlebell.visittracking.controller.dto.DoctorVisitDto;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Расписание врача на день: визиты, начинающиеся в этот день по таймзоне врача. Визиты
+ * читаются только из индекса idx_visit_doctor_start_end_patient, имена пациентов - одним
+ * запросом по всем id.
+ */
+@Service
+@RequiredArgsConstructor
+public class DoctorScheduleService {
+    private final VisitRepository visitRepo;
+    private final PatientRepository patientRepo;
+    private final DoctorRepository doctorRepo;
+    private final ShardRouter shardRouter;
+
+    public DoctorScheduleDto findDay(Integer doctorId, LocalDate date) {
+        // Таймзона из БД, а не из кеша: после смены таймзоны врача окно дня не должно быть старым.
+        // Заодно проверяет, что врач существует
+        String timezone = doctorRepo.findTimezoneById(doctorId).orElseThrow(() -> VisitService.doctorNotFound(doctorId));
+        TimestampCodec doctorZone = TimestampCodec.forZone(timezone);
+        Instant from = Instant.ofEpochSecond(doctorZone.startOfDay(date));
+        Instant to = Instant.ofEpochSecond(doctorZone.startOfDay(date.plusDays(1)));
+
+        List<Object[]> rows = shardRouter.forDoctor(doctorId,
+                () -> visitRepo.findDaySchedule(doctorId, from, to));
+        Set<Integer> patientIds = new HashSet<>();
+        rows.forEach(row -> patientIds.add((Integer) row[1]));
+        Map<Integer, Patient> patients = new HashMap<>();
+        if (!patientIds.isEmpty()) {
+            patientRepo.findAllById(patientIds).forEach(patient -> patients.put(patient.getId(), patient));
+        }
+
+        List<DoctorVisitDto> data = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            Patient patient = patients.get((Integer) row[1]);
+            data.add(new DoctorVisitDto(
+                    (Integer) row[0],
+                    doctorZone.format((Instant) row[2]),
+                    doctorZone.format((Instant) row[3]),
+                    (Integer) row[1],
+                    patient != null ? patient.getFirstName() : null,
+                    patient != null ? patient.getLastName() : null
+            ));
+        }
+        return new DoctorScheduleDto(doctorId, timezone, date.toString(), data, data.size());
+    }
+}
@@ -0,0 +1,152 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.DailyStatsDto;
+import com.kettlebell.visittracking.controller.dto.DoctorStatsDto;
+import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
+import com.kettlebell.visittracking.repository.DoctorDailyStatsRepository;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.DoctorDailyStats;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Дневная загрузка врачей (визиты, забронированные минуты, уникальные пациенты) в таблице
+ * doctor_daily_stats. День считается в таймзоне врача по началу визита. Таблица обновляется
+ * в транзакции каждого бронирования и может быть пересобрана из visits. Пересборка по cron идет
+ * в общем пуле планировщика (spring.task.scheduling.pool.size) и не занимает поток остальных задач.
+ */
+@Slf4j
+@Service
+public class DoctorStatsService {
+    private final DoctorDailyStatsRepository statsRepo;
+    private final DoctorRepository doctorRepo;
+    private final VisitRepository visitRepo;
+    private final ShardRouter shardRouter;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean backfillOnStartup;
+
+    public DoctorStatsService(DoctorDailyStatsRepository statsRepo,
+                              DoctorRepository doctorRepo,
+                              VisitRepository visitRepo,
+                              ShardRouter shardRouter,
+                              JdbcTemplate jdbcTemplate,
+                              TransactionTemplate transactionTemplate,
+                              @Value("${visit.stats.backfill-on-startup:false}") boolean backfillOnStartup) {
+        this.statsRepo = statsRepo;
+        this.doctorRepo = doctorRepo;
+        this.visitRepo = visitRepo;
+        this.shardRouter = shardRouter;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.backfillOnStartup = backfillOnStartup;
+    }
+
+    // Вызывается внутри транзакции, в которой сохраняется визит
+    public void recordVisit(Visit visit) {
+        Doctor doctor = visit.getDoctor();
+        LocalDate localDate = localDate(visit.getStartDateTime(), doctor.getTimezone());
+        int newPatients = statsRepo.addDailyPatient(doctor.getId(), localDate, visit.getPatient().getId());
+        long bookedSeconds = Duration.between(visit.getStartDateTime(), visit.getEndDateTime()).toSeconds();
+        statsRepo.addVisit(doctor.getId(), localDate, bookedSeconds, newPatients);
+    }
+
+    public DoctorStatsDto findStats(Integer doctorId, LocalDate from, LocalDate to) {
+        if (from.isAfter(to)) {
+            throw new InvalidTimeRangeException("From date must not be after to date");
+        }
+        Doctor doctor = doctorRepo.findById(doctorId).orElseThrow(() -> VisitService.doctorNotFound(doctorId));
+
+        List<DailyStatsDto> days = new ArrayList<>();
+        List<DoctorDailyStats> rows = shardRouter.forDoctor(doctorId,
+                () -> statsRepo.findByDoctorAndDateRange(doctorId, from, to));
+        for (DoctorDailyStats stats : rows) {
+            days.add(new DailyStatsDto(
+                    stats.getLocalDate().toString(),
+                    stats.getVisitsCount(),
+                    stats.getBookedSeconds() / 60,
+                    stats.getUniquePatients()
+            ));
+        }
+        return new DoctorStatsDto(doctor.getId(), doctor.getTimezone(), days);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void backfillOnStartup() {
+        if (backfillOnStartup) {
+            rebuild();
+        }
+    }
+
+    @Scheduled(cron = "${visit.stats.backfill-cron:-}")
+    public void rebuild() {
+        long started = System.nanoTime();
+        List<Integer> doctorIds = doctorRepo.findAllIds();
+        for (Integer doctorId : doctorIds) {
+            shardRouter.runForDoctor(doctorId,
+                    () -> transactionTemplate.executeWithoutResult(status -> rebuildDoctor(doctorId)));
+        }
+        log.info("Rebuilt daily stats for {} doctors in {} ms",
+                doctorIds.size(), Duration.ofNanos(System.nanoTime() - started).toMillis());
+    }
+
+    private void rebuildDoctor(Integer doctorId) {
+        // Блокировка врача сериализует пересборку с бронированиями только потому, что каждый путь
+        // бронирования (insertIfFree, пайплайн, серии) тоже блокирует строку врача. Без этого
+        // визит, закоммиченный между чтением и записью, пропал бы из счетчиков. Снимок
+        // REPEATABLE READ берется первым нелокирующим чтением, то есть уже после блокировки
+        Optional<Doctor> locked = doctorRepo.findByIdForUpdate(doctorId);
+        if (locked.isEmpty()) {
+            return;
+        }
+        String timezone = locked.get().getTimezone();
+
+        Map<LocalDate, long[]> totals = new TreeMap<>();
+        Map<LocalDate, Set<Integer>> patients = new HashMap<>();
+        for (Object[] row : visitRepo.findBookingsByDoctor(doctorId)) {
+            Integer patientId = (Integer) row[0];
+            Instant start = (Instant) row[1];
+            Instant end = (Instant) row[2];
+            LocalDate localDate = localDate(start, timezone);
+            long[] dayTotals = totals.computeIfAbsent(localDate, d -> new long[2]);
+            dayTotals[0]++;
+            dayTotals[1] += Duration.between(start, end).toSeconds();
+            patients.computeIfAbsent(localDate, d -> new HashSet<>()).add(patientId);
+        }
+
+        statsRepo.deleteDailyPatients(doctorId);
+        statsRepo.deleteByDoctor(doctorId);
+
+        List<Object[]> statsRows = new ArrayList<>(totals.size());
+        List<Object[]> patientRows = new ArrayList<>();
+        totals.forEach((localDate, dayTotals) -> {
+            Set<Integer> dayPatients = patients.get(localDate);
+            statsRows.add(new Object[]{doctorId, Date.valueOf(localDate), dayTotals[0], dayTotals[1], dayPatients.size()});
+            dayPatients.forEach(patientId -> patientRows.add(new Object[]{doctorId, Date.valueOf(localDate), patientId}));
+        });
+        jdbcTemplate.batchUpdate("""
+                INSERT INTO doctor_daily_stats (doctor_id, local_date, visits_count, booked_seconds, unique_patients)
+                VALUES (?, ?, ?, ?, ?)""", statsRows);
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO doctor_daily_patients (doctor_id, local_date, patient_id) VALUES (?, ?, ?)", patientRows);
+    }
+
+    private static LocalDate localDate(Instant instant, String timezone) {
+        return LocalDate.ofEpochDay(TimestampCodec.forZone(timezone).localEpochDay(instant.getEpochSecond()));
+    }
+}
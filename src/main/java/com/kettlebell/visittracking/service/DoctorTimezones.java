@@ -0,0 +1,52 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Таймзоны врачей в памяти. Запись живет не дольше ttl: так смена таймзоны на другом
+ * экземпляре доходит до этого без общей шины инвалидации. Для бронирования устаревшее
+ * значение безопасно и раньше: вставка сверяет таймзону и при несовпадении перечитывает ее.
+ */
+@Component
+public class DoctorTimezones {
+    private final DoctorRepository doctorRepo;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentMap<Integer, Entry> timezones = new ConcurrentHashMap<>();
+
+    public DoctorTimezones(DoctorRepository doctorRepo,
+                           @Value("${visit.doctor-timezones.ttl:60s}") Duration ttl,
+                           @Value("${visit.doctor-timezones.max-entries:10000}") int maxEntries) {
+        this.doctorRepo = doctorRepo;
+        this.ttlNanos = ttl.toNanos();
+        this.maxEntries = maxEntries;
+    }
+
+    public String get(Integer doctorId) {
+        long now = System.nanoTime();
+        Entry entry = timezones.get(doctorId);
+        if (entry != null && now - entry.loadedAt < ttlNanos) {
+            return entry.timezone;
+        }
+        String timezone = doctorRepo.findTimezoneById(doctorId).orElseThrow(() -> VisitService.doctorNotFound(doctorId));
+        if (timezones.size() >= maxEntries) {
+            // Перечитать таймзону дешево: при переполнении кеш просто начинается заново
+            timezones.clear();
+        }
+        timezones.put(doctorId, new Entry(timezone, now));
+        return timezone;
+    }
+
+    public void evict(Integer doctorId) {
+        timezones.remove(doctorId);
+    }
+
+    private record Entry(String timezone, long loadedAt) {
+    }
+}
@@ -0,0 +1,244 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitResponse;
+import com.kettlebell.visittracking.exception.IdempotencyKeyInProgressException;
+import com.kettlebell.visittracking.exception.IdempotencyKeyMismatchException;
+import com.kettlebell.visittracking.repository.IdempotencyKeyRepository;
+import com.kettlebell.visittracking.repository.entity.IdempotencyKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Хранилище ключей идемпотентности для POST /api/visits: ключ -> id созданного визита.
+ * К ключу привязан хеш тела запроса: тот же ключ с другим телом отклоняется (422), а не
+ * получает чужой визит. В памяти держится ограниченное число ключей с TTL; опционально ключи
+ * дублируются в таблицу idempotency_keys, чтобы повтор попал на любой экземпляр приложения.
+ * Дубль ждет первый запрос не дольше wait-timeout, затем получает 409 с Retry-After. Ключ,
+ * незавершенный дольше wait-timeout (экземпляр упал между захватом и завершением), перехватывает
+ * следующий запрос. После коммита бронирования ключ не удаляется ни при какой ошибке.
+ */
+@Slf4j
+@Component
+public class IdempotencyStore {
+    private static final long POLL_INTERVAL_MS = 20;
+
+    private final IdempotencyKeyRepository keyRepo;
+    private final Duration ttl;
+    private final int maxEntries;
+    private final boolean persistent;
+    private final Duration waitTimeout;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    public IdempotencyStore(IdempotencyKeyRepository keyRepo,
+                            @Value("${visit.idempotency.ttl:24h}") Duration ttl,
+                            @Value("${visit.idempotency.max-entries:10000}") int maxEntries,
+                            @Value("${visit.idempotency.persistent:false}") boolean persistent,
+                            @Value("${visit.idempotency.wait-timeout:10s}") Duration waitTimeout) {
+        this.keyRepo = keyRepo;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.persistent = persistent;
+        this.waitTimeout = waitTimeout;
+    }
+
+    public VisitResponse execute(String key, String requestHash, Supplier<VisitResponse> booking) {
+        long now = System.nanoTime();
+        Entry entry = new Entry(key, requestHash, now + ttl.toNanos());
+        while (true) {
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (existing.isExpired(now)) {
+                entries.remove(key, existing);
+                continue;
+            }
+            if (!existing.requestHash.equals(requestHash)) {
+                throw keyMismatch(key);
+            }
+            // Повтор или параллельный дубль: ждем первый запрос и отдаем его результат
+            return new VisitResponse(await(key, existing.visitId));
+        }
+        insertionOrder.add(entry);
+        evict(now);
+
+        try {
+            Integer visitId = persistent ? executePersistent(key, requestHash, booking) : booking.get().getId();
+            entry.visitId.complete(visitId);
+            return new VisitResponse(visitId);
+        } catch (RuntimeException e) {
+            // Неуспешный запрос не запоминаем: клиент может повторить его
+            entries.remove(key, entry);
+            entry.visitId.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${visit.idempotency.purge-interval-ms:60000}")
+    void purgeExpired() {
+        evict(System.nanoTime());
+        if (persistent) {
+            int removed = keyRepo.deleteCreatedBefore(Instant.now().minus(ttl));
+            if (removed > 0) {
+                log.debug("Purged {} expired idempotency keys", removed);
+            }
+        }
+    }
+
+    /**
+     * Хеш тела запроса: SHA-256 от полей в фиксированном порядке.
+     */
+    public static String requestHash(VisitRequest request) {
+        String canonical = request.start() + '\n' + request.end() + '\n' + request.patientId() + '\n' + request.doctorId();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(canonical.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Integer executePersistent(String key, String requestHash, Supplier<VisitResponse> booking) {
+        long deadline = System.nanoTime() + waitTimeout.toNanos();
+        while (true) {
+            // created_at - DATETIME: время захвата в секундах, чтобы release сравнивал его точно
+            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+            Instant claimedAt = null;
+            Optional<IdempotencyKey> stored = keyRepo.findById(key);
+            if (stored.isPresent()) {
+                IdempotencyKey row = stored.get();
+                Instant staleBefore = now.minus(waitTimeout);
+                if (row.getCreatedAt().isBefore(now.minus(ttl))) {
+                    keyRepo.deleteById(key);
+                } else if (row.getRequestHash() != null && !row.getRequestHash().equals(requestHash)) {
+                    // Ключи, записанные до появления хеша, сверить не с чем
+                    throw keyMismatch(key);
+                } else if (row.getVisitId() != null) {
+                    return row.getVisitId();
+                } else if (row.getCreatedAt().isBefore(staleBefore) && keyRepo.takeOver(key, now, staleBefore) == 1) {
+                    log.warn("Took over idempotency key {} left unfinished since {}", key, row.getCreatedAt());
+                    claimedAt = now;
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw keyInProgress(key);
+                } else {
+                    // Ключ занят запросом на другом экземпляре
+                    sleep();
+                    continue;
+                }
+            }
+            if (claimedAt == null) {
+                try {
+                    keyRepo.claim(key, requestHash, now);
+                } catch (DataIntegrityViolationException e) {
+                    continue;
+                }
+                claimedAt = now;
+            }
+            Integer visitId;
+            try {
+                visitId = booking.get().getId();
+            } catch (RuntimeException e) {
+                // Бронирование не закоммичено: ключ освобождается для повтора
+                keyRepo.release(key, claimedAt);
+                throw e;
+            }
+            try {
+                keyRepo.complete(key, visitId);
+            } catch (RuntimeException e) {
+                // Визит уже создан: удалить ключ значило бы забронировать повтор второй раз. Ключ остается
+                // захваченным, повтор на этом экземпляре получит визит из памяти
+                log.error("Visit {} was booked but idempotency key {} could not be completed", visitId, key, e);
+            }
+            return visitId;
+        }
+    }
+
+    // Незавершенные записи не вытесняются даже при переполнении: иначе дубль выполнился бы второй раз
+    private void evict(long now) {
+        Entry head;
+        while ((head = insertionOrder.peek()) != null) {
+            boolean overflow = entries.size() > maxEntries;
+            boolean current = entries.get(head.key) == head;
+            if (current && (!head.visitId.isDone() || !overflow && !head.isExpired(now))) {
+                return;
+            }
+            insertionOrder.poll();
+            entries.remove(head.key, head);
+        }
+    }
+
+    private Integer await(String key, CompletableFuture<Integer> visitId) {
+        try {
+            return visitId.get(waitTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw keyInProgress(key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for idempotent booking", e);
+        }
+    }
+
+    private IdempotencyKeyInProgressException keyInProgress(String key) {
+        return new IdempotencyKeyInProgressException("Booking with idempotency key " + key + " is still in progress",
+                Math.max(1, waitTimeout.toSeconds()));
+    }
+
+    private static IdempotencyKeyMismatchException keyMismatch(String key) {
+        return new IdempotencyKeyMismatchException("Idempotency key " + key + " was used with a different request");
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(POLL_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for idempotent booking", e);
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String requestHash;
+        private final long expiresAt;
+        private final CompletableFuture<Integer> visitId = new CompletableFuture<>();
+
+        private Entry(String key, String requestHash, long expiresAt) {
+            this.key = key;
+            this.requestHash = requestHash;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
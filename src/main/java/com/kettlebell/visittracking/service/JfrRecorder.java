@@ -0,0 +1,119 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.RecordingStatusDto;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Непрерывная запись JFR по команде администратора: одна запись, ограниченная по возрасту и
+ * размеру, с настройками JDK (по умолчанию profile) и событиями приложения. Дамп можно снимать
+ * сколько угодно раз, запись продолжается. События с окружением и аргументами JVM выключены:
+ * в них бывают пароли.
+ */
+@Slf4j
+@Component
+public class JfrRecorder {
+    private static final String NAME = "visit-tracking";
+    private static final List<String> SENSITIVE_EVENTS = List.of(
+            "jdk.InitialEnvironmentVariable", "jdk.InitialSystemProperty", "jdk.JVMInformation");
+
+    private final Configuration configuration;
+    private final Duration defaultMaxAge;
+    private final DataSize defaultMaxSize;
+    private Recording recording;
+
+    public JfrRecorder(@Value("${visit.recording.settings:profile}") String settings,
+                       @Value("${visit.recording.max-age:10m}") Duration defaultMaxAge,
+                       @Value("${visit.recording.max-size:64MB}") DataSize defaultMaxSize) {
+        try {
+            this.configuration = Configuration.getConfiguration(settings);
+        } catch (IOException | ParseException e) {
+            throw new IllegalStateException("Unknown JFR settings " + settings, e);
+        }
+        this.defaultMaxAge = defaultMaxAge;
+        this.defaultMaxSize = defaultMaxSize;
+    }
+
+    // Уже идущая запись не перезапускается: возвращается ее состояние
+    public synchronized RecordingStatusDto start(Duration maxAge, DataSize maxSize) {
+        if (recording == null) {
+            Recording started = new Recording(configuration);
+            started.setName(NAME);
+            started.setToDisk(true);
+            started.setMaxAge(maxAge != null ? maxAge : defaultMaxAge);
+            started.setMaxSize((maxSize != null ? maxSize : defaultMaxSize).toBytes());
+            SENSITIVE_EVENTS.forEach(started::disable);
+            started.enable(BookingJfrEvent.class);
+            started.enable(ListingJfrEvent.class);
+            started.start();
+            recording = started;
+            log.info("Started JFR recording: max age {}, max size {} bytes", started.getMaxAge(), started.getMaxSize());
+        }
+        return status();
+    }
+
+    /**
+     * Пишет текущее содержимое записи во временный файл; null - запись не идет.
+     * Файл удаляет вызывающий.
+     */
+    public synchronized Path dump() {
+        if (recording == null) {
+            return null;
+        }
+        try {
+            Path file = Files.createTempFile(NAME + "-", ".jfr");
+            recording.dump(file);
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized RecordingStatusDto stop() {
+        if (recording == null) {
+            return null;
+        }
+        recording.stop();
+        RecordingStatusDto status = status();
+        recording.close();
+        recording = null;
+        log.info("Stopped JFR recording");
+        return status;
+    }
+
+    public synchronized RecordingStatusDto status() {
+        if (recording == null) {
+            return null;
+        }
+        RecordingState state = recording.getState();
+        return new RecordingStatusDto(
+                state.name(),
+                recording.getStartTime() != null ? recording.getStartTime().toString() : null,
+                recording.getMaxAge() != null ? recording.getMaxAge().toSeconds() : null,
+                recording.getMaxSize(),
+                recording.getSize()
+        );
+    }
+
+    @PreDestroy
+    synchronized void close() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+}
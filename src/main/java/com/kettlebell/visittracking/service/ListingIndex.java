@@ -0,0 +1,435 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.DoctorDto;
+import com.kettlebell.visittracking.controller.dto.PatientDto;
+import com.kettlebell.visittracking.controller.dto.VisitDto;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * Список пациентов (GET /api/visits) в памяти: пациенты в порядке списка, у каждого - последний
+ * визит к каждому врачу, у врачей - число уникальных пациентов. Ключи - int в открытой адресации,
+ * визиты пациента - плоский long[] (слот врача, начало, конец) по убыванию начала, без боксинга.
+ * Строки, их порядок и страницы (по строкам "пациент-врач") те же, что у
+ * {@link com.kettlebell.visittracking.repository.VisitRepository#findPatientsWithLastVisits}.
+ * Поиск - подстрока без учета регистра и диакритики, как LIKE в коллации MySQL; % и _ - обычные
+ * символы, как и в SQL-запросах списка (там они экранируются).
+ */
+final class ListingIndex {
+    private static final int STRIDE = 3;
+    private static final long[] NO_VISITS = new long[0];
+    private static final Comparator<String> NAME_ORDER = NameCollation.ORDER;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final IntIntMap patientSlots = new IntIntMap();
+    private final IntIntMap doctorSlots = new IntIntMap();
+
+    private int patientCount;
+    private int[] patientIds = new int[16];
+    private String[] firstNames = new String[16];
+    private String[] lastNames = new String[16];
+    private String[] searchFirstNames = new String[16];
+    private String[] searchLastNames = new String[16];
+    private long[][] visits = new long[16][];
+    // Слоты пациентов в порядке списка: фамилия, имя (в порядке коллации MySQL), id
+    private int[] order = new int[16];
+
+    private int doctorCount;
+    private int[] doctorIds = new int[16];
+    private String[] doctorFirstNames = new String[16];
+    private String[] doctorLastNames = new String[16];
+    private TimestampCodec[] doctorZones = new TimestampCodec[16];
+    private int[] totalPatients = new int[16];
+    // Строк "пациент-врач" - столько строк во всем списке
+    private int rowCount;
+
+    void putDoctor(int id, String firstName, String lastName, String timezone) {
+        lock.writeLock().lock();
+        try {
+            int slot = doctorSlots.get(id);
+            if (slot < 0) {
+                slot = doctorCount++;
+                if (slot == doctorFirstNames.length) {
+                    int capacity = slot * 2;
+                    doctorIds = Arrays.copyOf(doctorIds, capacity);
+                    doctorFirstNames = Arrays.copyOf(doctorFirstNames, capacity);
+                    doctorLastNames = Arrays.copyOf(doctorLastNames, capacity);
+                    doctorZones = Arrays.copyOf(doctorZones, capacity);
+                    totalPatients = Arrays.copyOf(totalPatients, capacity);
+                }
+                doctorSlots.put(id, slot);
+                doctorIds[slot] = id;
+            }
+            doctorFirstNames[slot] = firstName;
+            doctorLastNames[slot] = lastName;
+            doctorZones[slot] = TimestampCodec.forZone(timezone);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Новый пациент встает на свое место в порядке списка (сдвиг массива - пациенты
+     * добавляются редко; при начальной загрузке - {@link #appendPatient} и {@link #sortPatients}).
+     */
+    void putPatient(int id, String firstName, String lastName) {
+        lock.writeLock().lock();
+        try {
+            if (patientSlots.get(id) >= 0) {
+                return;
+            }
+            int slot = addPatient(id, firstName, lastName);
+            int index = insertionPoint(slot);
+            System.arraycopy(order, index, order, index + 1, slot - index);
+            order[index] = slot;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void appendPatient(int id, String firstName, String lastName) {
+        lock.writeLock().lock();
+        try {
+            if (patientSlots.get(id) < 0) {
+                int slot = addPatient(id, firstName, lastName);
+                order[slot] = slot;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void sortPatients() {
+        lock.writeLock().lock();
+        try {
+            int[] sorted = IntStream.range(0, patientCount).boxed()
+                    .sorted(this::comparePatients)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            System.arraycopy(sorted, 0, order, 0, patientCount);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean hasPatient(int id) {
+        lock.readLock().lock();
+        try {
+            return patientSlots.get(id) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean hasDoctor(int id) {
+        lock.readLock().lock();
+        try {
+            return doctorSlots.get(id) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int patientCount() {
+        lock.readLock().lock();
+        try {
+            return patientCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int rowCount() {
+        lock.readLock().lock();
+        try {
+            return rowCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Учитывает визит: у пары "пациент-врач" остается визит с самым поздним началом,
+     * поэтому порядок применения визитов не важен. Пациент и врач должны быть уже добавлены.
+     */
+    void recordVisit(int patientId, int doctorId, long startEpochSecond, long endEpochSecond) {
+        lock.writeLock().lock();
+        try {
+            int patient = patientSlots.get(patientId);
+            int doctor = doctorSlots.get(doctorId);
+            if (patient < 0 || doctor < 0) {
+                throw new IllegalArgumentException("Unknown patient " + patientId + " or doctor " + doctorId);
+            }
+            long[] patientVisits = visits[patient];
+            for (int i = 0; i < patientVisits.length; i += STRIDE) {
+                if (patientVisits[i] == doctor) {
+                    if (startEpochSecond > patientVisits[i + 1]) {
+                        patientVisits[i + 1] = startEpochSecond;
+                        patientVisits[i + 2] = endEpochSecond;
+                        sortVisits(patientVisits);
+                    }
+                    return;
+                }
+            }
+            long[] grown = Arrays.copyOf(patientVisits, patientVisits.length + STRIDE);
+            grown[patientVisits.length] = doctor;
+            grown[patientVisits.length + 1] = startEpochSecond;
+            grown[patientVisits.length + 2] = endEpochSecond;
+            sortVisits(grown);
+            visits[patient] = grown;
+            totalPatients[doctor]++;
+            rowCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    List<PatientDto> find(String search, Set<Integer> doctorIds, long offset, int size) {
+        lock.readLock().lock();
+        try {
+            String needle = search == null || search.isEmpty() ? null : NameCollation.searchKey(search);
+            boolean[] allowed = doctorIds == null ? null : allowedDoctors(doctorIds);
+            Page page = new Page(offset, size);
+            for (int i = 0; i < patientCount && !page.isFull(); ) {
+                // Полные тезки идут одной группой: в SQL их строки перемешаны по дате
+                int groupEnd = i + 1;
+                while (groupEnd < patientCount && sameName(order[i], order[groupEnd])) {
+                    groupEnd++;
+                }
+                if (groupEnd - i == 1) {
+                    addPatientRows(order[i], needle, allowed, page);
+                } else {
+                    addGroupRows(i, groupEnd, needle, allowed, page);
+                }
+                i = groupEnd;
+            }
+            return new ArrayList<>(page.patients.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addPatientRows(int patient, String needle, boolean[] allowed, Page page) {
+        if (!matches(patient, needle)) {
+            return;
+        }
+        long[] patientVisits = visits[patient];
+        for (int i = 0; i < patientVisits.length && !page.isFull(); i += STRIDE) {
+            if (allowed == null || allowed[(int) patientVisits[i]]) {
+                page.add(patient, patientVisits, i);
+            }
+        }
+    }
+
+    private void addGroupRows(int from, int to, String needle, boolean[] allowed, Page page) {
+        List<long[]> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            int patient = order[i];
+            if (!matches(patient, needle)) {
+                continue;
+            }
+            long[] patientVisits = visits[patient];
+            for (int j = 0; j < patientVisits.length; j += STRIDE) {
+                if (allowed == null || allowed[(int) patientVisits[j]]) {
+                    rows.add(new long[]{patient, j, patientVisits[j + 1], patientIds[patient], doctorIds[(int) patientVisits[j]]});
+                }
+            }
+        }
+        rows.sort(Comparator.comparingLong((long[] row) -> row[2]).reversed()
+                .thenComparingLong(row -> row[3])
+                .thenComparingLong(row -> row[4]));
+        for (int i = 0; i < rows.size() && !page.isFull(); i++) {
+            long[] row = rows.get(i);
+            page.add((int) row[0], visits[(int) row[0]], (int) row[1]);
+        }
+    }
+
+    private boolean matches(int patient, String needle) {
+        return needle == null
+                || searchFirstNames[patient].contains(needle)
+                || searchLastNames[patient].contains(needle);
+    }
+
+    private boolean[] allowedDoctors(Set<Integer> doctorIds) {
+        boolean[] allowed = new boolean[doctorCount];
+        for (Integer doctorId : doctorIds) {
+            int slot = doctorId == null ? -1 : doctorSlots.get(doctorId);
+            if (slot >= 0) {
+                allowed[slot] = true;
+            }
+        }
+        return allowed;
+    }
+
+    private int addPatient(int id, String firstName, String lastName) {
+        int slot = patientCount++;
+        if (slot == patientIds.length) {
+            int capacity = slot * 2;
+            patientIds = Arrays.copyOf(patientIds, capacity);
+            firstNames = Arrays.copyOf(firstNames, capacity);
+            lastNames = Arrays.copyOf(lastNames, capacity);
+            searchFirstNames = Arrays.copyOf(searchFirstNames, capacity);
+            searchLastNames = Arrays.copyOf(searchLastNames, capacity);
+            visits = Arrays.copyOf(visits, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        patientIds[slot] = id;
+        firstNames[slot] = firstName;
+        lastNames[slot] = lastName;
+        searchFirstNames[slot] = NameCollation.searchKey(firstName);
+        searchLastNames[slot] = NameCollation.searchKey(lastName);
+        visits[slot] = NO_VISITS;
+        patientSlots.put(id, slot);
+        return slot;
+    }
+
+    // Позиция нового пациента в order[0..slot) бинарным поиском
+    private int insertionPoint(int slot) {
+        int low = 0;
+        int high = slot;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparePatients(order[middle], slot) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int comparePatients(int left, int right) {
+        int result = NAME_ORDER.compare(lastNames[left], lastNames[right]);
+        if (result == 0) {
+            result = NAME_ORDER.compare(firstNames[left], firstNames[right]);
+        }
+        return result != 0 ? result : Integer.compare(patientIds[left], patientIds[right]);
+    }
+
+    private boolean sameName(int left, int right) {
+        return NAME_ORDER.compare(lastNames[left], lastNames[right]) == 0
+                && NAME_ORDER.compare(firstNames[left], firstNames[right]) == 0;
+    }
+
+    // По убыванию начала, при равном начале - по id врача; визитов по числу врачей, сортировка вставками
+    private void sortVisits(long[] patientVisits) {
+        for (int i = STRIDE; i < patientVisits.length; i += STRIDE) {
+            long doctor = patientVisits[i];
+            long start = patientVisits[i + 1];
+            long end = patientVisits[i + 2];
+            int j = i - STRIDE;
+            while (j >= 0 && (patientVisits[j + 1] < start || patientVisits[j + 1] == start
+                    && doctorIds[(int) patientVisits[j]] > doctorIds[(int) doctor])) {
+                System.arraycopy(patientVisits, j, patientVisits, j + STRIDE, STRIDE);
+                j -= STRIDE;
+            }
+            patientVisits[j + STRIDE] = doctor;
+            patientVisits[j + STRIDE + 1] = start;
+            patientVisits[j + STRIDE + 2] = end;
+        }
+    }
+
+    private final class Page {
+        private final Map<Integer, PatientDto> patients = new LinkedHashMap<>();
+        private final int size;
+        private long skip;
+        private int rows;
+
+        private Page(long offset, int size) {
+            this.skip = offset;
+            this.size = size;
+        }
+
+        private boolean isFull() {
+            return rows == size;
+        }
+
+        private void add(int patient, long[] patientVisits, int index) {
+            if (skip > 0) {
+                skip--;
+                return;
+            }
+            rows++;
+            int doctor = (int) patientVisits[index];
+            TimestampCodec zone = doctorZones[doctor];
+            VisitDto visit = new VisitDto(
+                    zone.format(Instant.ofEpochSecond(patientVisits[index + 1])),
+                    zone.format(Instant.ofEpochSecond(patientVisits[index + 2])),
+                    new DoctorDto(doctorFirstNames[doctor], doctorLastNames[doctor], (long) totalPatients[doctor])
+            );
+            patients.computeIfAbsent(patient, slot ->
+                    new PatientDto(firstNames[slot], lastNames[slot], new ArrayList<>())
+            ).getLastVisits().add(visit);
+        }
+    }
+
+    /**
+     * int -> int с открытой адресацией; отсутствующий ключ - -1.
+     */
+    private static final class IntIntMap {
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private int[] keys = emptyKeys(16);
+        private int[] values = new int[16];
+        private int size;
+
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(int key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            if (insert(keys, values, key, value)) {
+                size++;
+            }
+        }
+
+        private void resize() {
+            int[] newKeys = emptyKeys(keys.length * 2);
+            int[] newValues = new int[keys.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY) {
+                    insert(newKeys, newValues, keys[i], values[i]);
+                }
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+
+        private static boolean insert(int[] keys, int[] values, int key, int value) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == EMPTY || keys[i] == key) {
+                    boolean added = keys[i] == EMPTY;
+                    keys[i] = key;
+                    values[i] = value;
+                    return added;
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int[] emptyKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+}
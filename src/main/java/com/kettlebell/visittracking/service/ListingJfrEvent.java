@@ -0,0 +1,52 @@
+package com.kettlebell.visittracking.service;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR-событие списка пациентов: длительность - весь {@link VisitService#findPatientsWithLastVisits}.
+ */
+@Name("com.kettlebell.visittracking.Listing")
+@Label("Patient Listing")
+@Category("Visit Tracking")
+@Description("Patient listing through VisitService.findPatientsWithLastVisits")
+@StackTrace(false)
+class ListingJfrEvent extends Event {
+    @Label("Search")
+    String search;
+
+    @Label("Doctor Ids")
+    String doctorIds;
+
+    @Label("Page")
+    int page;
+
+    @Label("Size")
+    int size;
+
+    @Label("Date Range")
+    @Description("from..to filter on visit dates, null if not set")
+    String dateRange;
+
+    @Label("Source")
+    @Description("read-model, pipeline or database")
+    String source;
+
+    @Label("Rows")
+    @Description("Patient-doctor rows in the page")
+    int rows;
+
+    @Label("Query Time")
+    @Timespan
+    long queryTime;
+
+    @Label("Mapping Time")
+    @Description("Grouping database rows into patients; the read model builds them during the query")
+    @Timespan
+    long mappingTime;
+}
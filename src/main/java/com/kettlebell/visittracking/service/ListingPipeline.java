@@ -0,0 +1,198 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.DoctorDto;
+import com.kettlebell.visittracking.controller.dto.PatientDto;
+import com.kettlebell.visittracking.controller.dto.VisitDto;
+import com.kettlebell.visittracking.repository.ListingQueryRepository;
+import com.kettlebell.visittracking.repository.ListingQueryRepository.LastVisitRow;
+import com.kettlebell.visittracking.repository.ListingQueryRepository.StartWindow;
+import com.kettlebell.visittracking.repository.ListingQueryRepository.VisitEnd;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Список пациентов по этапам вместо одного JPQL-запроса: сначала страница пар пациент-врач
+ * с началом последнего визита, затем параллельно, каждый на своем соединении, окончания этих
+ * визитов, врачи и число их уникальных пациентов. Результат совпадает с
+ * {@link VisitService#findPatientsWithLastVisits} на SQL. Каждый запрос списка занимает до
+ * трех соединений одновременно, поэтому пул потоков ограничен. Выключенный пайплайн
+ * (enabled=false) обслуживает только список с фильтром по датам и выполняет второй этап
+ * последовательно, в одном соединении.
+ */
+@Component
+public class ListingPipeline {
+    private static final Comparator<LastVisitRow> ORDER = Comparator
+            .comparing(LastVisitRow::lastName, NameCollation.ORDER)
+            .thenComparing(LastVisitRow::firstName, NameCollation.ORDER)
+            .thenComparing(LastVisitRow::start, Comparator.reverseOrder())
+            .thenComparing(LastVisitRow::patientId)
+            .thenComparing(LastVisitRow::doctorId);
+
+    private final ListingQueryRepository listingQueryRepo;
+    private final ShardRouter shardRouter;
+    private final boolean enabled;
+    private final ExecutorService executor;
+
+    public ListingPipeline(ListingQueryRepository listingQueryRepo,
+                           ShardRouter shardRouter,
+                           @Value("${visit.listing.pipeline.enabled:false}") boolean enabled,
+                           @Value("${visit.listing.pipeline.threads:4}") int threads) {
+        this.listingQueryRepo = listingQueryRepo;
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "listing-pipeline-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<PatientDto> find(String search, Set<Integer> doctorIds, Pageable pageable) {
+        return find(search, doctorIds, null, null, pageable);
+    }
+
+    /**
+     * from/to (включительно, могут быть null) - даты начала визита в таймзоне его врача:
+     * последний визит пары ищется только среди визитов этих дат.
+     */
+    public List<PatientDto> find(String search, Set<Integer> doctorIds, LocalDate from, LocalDate to,
+                                 Pageable pageable) {
+        // Пустой фильтр врачей, как и IN () в JPQL, не дает ни одной строки
+        if (doctorIds != null && doctorIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<StartWindow> windows = from == null && to == null ? null : startWindows(from, to);
+        if (windows != null && windows.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<LastVisitRow> page = findPage(search, doctorIds, windows, pageable);
+        if (page.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Визиты и счетчики врача лежат на его шарде, справочник врачей - на любом
+        Map<Integer, Set<Integer>> doctorsByShard = new TreeMap<>();
+        Map<Integer, List<LastVisitRow>> rowsByShard = new TreeMap<>();
+        for (LastVisitRow row : page) {
+            int shard = shardRouter.shardOf(row.doctorId());
+            doctorsByShard.computeIfAbsent(shard, s -> new HashSet<>()).add(row.doctorId());
+            rowsByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(row);
+        }
+        Set<Integer> allDoctors = new HashSet<>();
+        doctorsByShard.values().forEach(allDoctors::addAll);
+
+        List<CompletableFuture<List<VisitEnd>>> ends = new ArrayList<>();
+        List<CompletableFuture<Map<Integer, Long>>> counts = new ArrayList<>();
+        rowsByShard.forEach((shard, rows) -> ends.add(async(() ->
+                shardRouter.onShard(shard, () -> listingQueryRepo.findVisitEnds(rows)))));
+        doctorsByShard.forEach((shard, ids) -> counts.add(async(() ->
+                shardRouter.onShard(shard, () -> listingQueryRepo.countPatientsByDoctor(ids)))));
+        // Врачи - в текущем потоке, пока остальные запросы выполняются
+        Map<Integer, Doctor> doctors = new HashMap<>();
+        shardRouter.onShard(0, () -> listingQueryRepo.findDoctors(allDoctors))
+                .forEach(doctor -> doctors.put(doctor.getId(), doctor));
+
+        Map<List<Object>, Instant> endByKey = new HashMap<>();
+        join(ends).forEach(list -> list.forEach(end ->
+                endByKey.put(List.of(end.patientId(), end.doctorId(), end.start()), end.end())));
+        Map<Integer, Long> totalPatients = new HashMap<>();
+        join(counts).forEach(totalPatients::putAll);
+
+        Map<Integer, PatientDto> patients = new LinkedHashMap<>();
+        for (LastVisitRow row : page) {
+            Instant end = endByKey.get(List.of(row.patientId(), row.doctorId(), row.start()));
+            Doctor doctor = doctors.get(row.doctorId());
+            if (end == null || doctor == null) {
+                // Визит или врач удалены между этапами: строки нет и в JPQL-варианте
+                continue;
+            }
+            TimestampCodec zone = TimestampCodec.forZone(doctor.getTimezone());
+            patients.computeIfAbsent(row.patientId(), id ->
+                    new PatientDto(row.firstName(), row.lastName(), new ArrayList<>())
+            ).getLastVisits().add(new VisitDto(
+                    zone.format(row.start()),
+                    zone.format(end),
+                    new DoctorDto(doctor.getFirstName(), doctor.getLastName(),
+                            totalPatients.getOrDefault(row.doctorId(), 0L))
+            ));
+        }
+        return new ArrayList<>(patients.values());
+    }
+
+    // Одно окно UTC на группу таймзон с одинаковыми смещениями на границах дат
+    private List<StartWindow> startWindows(LocalDate from, LocalDate to) {
+        Map<List<Instant>, List<String>> byWindow = new LinkedHashMap<>();
+        for (String timezone : shardRouter.onShard(0, listingQueryRepo::findTimezones)) {
+            TimestampCodec zone = TimestampCodec.forZone(timezone);
+            Instant fromUtc = from == null ? null : Instant.ofEpochSecond(zone.startOfDay(from));
+            Instant toUtc = to == null ? null : Instant.ofEpochSecond(zone.startOfDay(to.plusDays(1)));
+            byWindow.computeIfAbsent(Arrays.asList(fromUtc, toUtc), window -> new ArrayList<>()).add(timezone);
+        }
+        List<StartWindow> windows = new ArrayList<>(byWindow.size());
+        byWindow.forEach((window, timezones) -> windows.add(new StartWindow(timezones, window.get(0), window.get(1))));
+        return windows;
+    }
+
+    private List<LastVisitRow> findPage(String search, Set<Integer> doctorIds, List<StartWindow> windows,
+                                        Pageable pageable) {
+        if (shardRouter.shardCount() == 1) {
+            return listingQueryRepo.findLastVisitPage(search, doctorIds, windows,
+                    pageable.getOffset(), pageable.getPageSize());
+        }
+        // Каждый шард отдает первые offset + size строк в общем порядке, страница режется после слияния
+        int window = (int) pageable.getOffset() + pageable.getPageSize();
+        List<LastVisitRow> rows = new ArrayList<>();
+        shardRouter.onShards(shardRouter.shardsOf(doctorIds),
+                shard -> listingQueryRepo.findLastVisitPage(search, doctorIds, windows, 0, window)).forEach(rows::addAll);
+        rows.sort(ORDER);
+        int from = (int) Math.min(pageable.getOffset(), rows.size());
+        return rows.subList(from, Math.min(from + pageable.getPageSize(), rows.size()));
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> action) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(action.get());
+        }
+        RequestTimings timings = RequestTimings.current();
+        return CompletableFuture.supplyAsync(() -> RequestTimings.callWith(timings, action), executor);
+    }
+
+    private static <T> List<T> join(List<CompletableFuture<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,337 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.PatientDto;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitChangeRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Read-модель списка пациентов: {@link ListingIndex}, построенный при старте из БД. Свои
+ * бронирования применяются сразу после коммита, а все (в т.ч. других экземпляров приложения)
+ * догоняются из общего журнала visit_changes: для пар "пациент-врач" с seq после примененного
+ * и не дальше водяного знака {@link VisitChangeService} перечитывается последний визит.
+ * Применение идемпотентно, поэтому повтор и порядок изменений безвредны. Токен списка - знак,
+ * до которого журнал применен: изменения до него в модели уже есть. Пока модель не построена
+ * (или выключена), список строится SQL-запросом.
+ */
+@Slf4j
+@Component
+public class ListingReadModel {
+    // Последний визит каждой изменившейся пары; при равном начале строк несколько - индекс оставит одну
+    private static final String LAST_VISITS = """
+            SELECT v.patient_id, v.doctor_id, v.start_date_time, v.end_date_time
+            FROM visits v
+            WHERE (v.patient_id, v.doctor_id) IN (:pairs)
+              AND v.start_date_time = (SELECT MAX(l.start_date_time) FROM visits l
+                                       WHERE l.patient_id = v.patient_id AND l.doctor_id = v.doctor_id)""";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final PatientRepository patientRepo;
+    private final DoctorRepository doctorRepo;
+    private final VisitChangeRepository changeRepo;
+    private final VisitChangeService visitChangeService;
+    private final ShardRouter shardRouter;
+    private final boolean enabled;
+    private final int verifySize;
+    private final int maxCatchUp;
+    private volatile ListingIndex index;
+    // Бронирования, закоммиченные во время сборки: применяются к новому индексу перед заменой
+    private volatile List<Booking> pending;
+    // Сборка и догон журнала не идут одновременно; applied меняется только под этой блокировкой
+    private final Object refreshLock = new Object();
+    private long[] applied;
+    // Публикуется после индекса и данных, которые он покрывает
+    private volatile String syncToken;
+
+    public ListingReadModel(DataSource dataSource,
+                            PatientRepository patientRepo,
+                            DoctorRepository doctorRepo,
+                            VisitChangeRepository changeRepo,
+                            VisitChangeService visitChangeService,
+                            ShardRouter shardRouter,
+                            @Value("${visit.read-model.enabled:true}") boolean enabled,
+                            @Value("${visit.read-model.verify-size:100}") int verifySize,
+                            @Value("${visit.read-model.max-catch-up:10000}") int maxCatchUp) {
+        // Потоковое чтение Connector/J: визиты не буферизуются в драйвере целиком
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(Integer.MIN_VALUE);
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.patientRepo = patientRepo;
+        this.doctorRepo = doctorRepo;
+        this.changeRepo = changeRepo;
+        this.visitChangeService = visitChangeService;
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        this.verifySize = verifySize;
+        this.maxCatchUp = maxCatchUp;
+    }
+
+    // Токен появляется только вместе с индексом
+    public boolean isReady() {
+        return syncToken != null;
+    }
+
+    // Размер страницы для сверки с БД
+    public int verifySize() {
+        return verifySize;
+    }
+
+    // Строк "пациент-врач": страницы списка считаются по ним
+    public int rowCount() {
+        ListingIndex current = index;
+        return current == null ? 0 : current.rowCount();
+    }
+
+    /**
+     * Токен для {@link #find}: берется до чтения, все изменения до него в модели уже есть.
+     */
+    public String syncToken() {
+        return syncToken;
+    }
+
+    public List<PatientDto> find(String search, Set<Integer> doctorIds, Pageable pageable) {
+        return index.find(search, doctorIds, pageable.getOffset(), pageable.getPageSize());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void buildOnStartup() {
+        if (enabled) {
+            rebuild();
+        }
+    }
+
+    public void rebuild() {
+        synchronized (this) {
+            if (pending != null) {
+                return;
+            }
+            pending = new ArrayList<>();
+        }
+        synchronized (refreshLock) {
+            long started = System.nanoTime();
+            // Знак берется до загрузки: изменения после него догонит catchUp, повтор безвреден
+            long[] watermarks;
+            ListingIndex fresh;
+            try {
+                watermarks = visitChangeService.currentWatermarks();
+                fresh = load();
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    pending = null;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                pending.forEach(booking -> booking.applyTo(fresh));
+                pending = null;
+                index = fresh;
+            }
+            markApplied(watermarks);
+            log.info("Built listing read model for {} patients in {} ms",
+                    fresh.patientCount(), Duration.ofNanos(System.nanoTime() - started).toMillis());
+        }
+    }
+
+    /**
+     * Догоняет модель по общему журналу до текущего водяного знака. Если журнал уже вычищен
+     * дальше примененного seq или изменившихся пар больше max-catch-up, модель пересобирается.
+     */
+    @Scheduled(fixedDelayString = "${visit.read-model.catch-up-interval-ms:1000}",
+            initialDelayString = "${visit.read-model.catch-up-interval-ms:1000}")
+    void catchUp() {
+        if (!isReady()) {
+            return;
+        }
+        synchronized (refreshLock) {
+            long[] watermarks = visitChangeService.currentWatermarks();
+            for (int shard = 0; shard < watermarks.length; shard++) {
+                if (watermarks[shard] <= applied[shard]) {
+                    watermarks[shard] = applied[shard];
+                    continue;
+                }
+                long from = applied[shard];
+                long to = watermarks[shard];
+                List<Object[]> pairs = shardRouter.onShard(shard, () -> {
+                    Long minSeq = changeRepo.findMinSeq();
+                    if (minSeq != null && from < minSeq - 1) {
+                        return null;
+                    }
+                    return changeRepo.findPairsChangedBetween(from, to, PageRequest.of(0, maxCatchUp + 1));
+                });
+                if (pairs == null || pairs.size() > maxCatchUp) {
+                    log.info("Listing read model is too far behind the change log on shard {}, rebuilding", shard);
+                    rebuild();
+                    return;
+                }
+                if (!pairs.isEmpty()) {
+                    applyLastVisits(shard, pairs);
+                }
+            }
+            markApplied(watermarks);
+        }
+    }
+
+    // Синхронно в потоке бронирования, сразу после коммита: свое бронирование видно без ожидания догона
+    @TransactionalEventListener
+    void onVisitCreated(VisitCreatedEvent event) {
+        if (index == null && pending == null) {
+            return;
+        }
+        try {
+            Booking booking = resolve(event.visit());
+            synchronized (this) {
+                if (index != null) {
+                    booking.applyTo(index);
+                }
+                if (pending != null) {
+                    pending.add(booking);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Визит уже закоммичен: ответ клиенту не портим, его применит догон по журналу
+            log.warn("Failed to apply visit {} to listing read model", event.visit().getId(), e);
+        }
+    }
+
+    private void markApplied(long[] watermarks) {
+        applied = watermarks;
+        syncToken = VisitChangeService.encodeToken(watermarks);
+    }
+
+    private void applyLastVisits(int shard, List<Object[]> pairs) {
+        List<long[]> visits = shardRouter.onShard(shard, () -> namedJdbcTemplate.query(LAST_VISITS,
+                Map.of("pairs", pairs),
+                (rs, rowNum) -> new long[]{rs.getInt(1), rs.getInt(2),
+                        epochSecond(rs.getObject(3, LocalDateTime.class)),
+                        epochSecond(rs.getObject(4, LocalDateTime.class))}));
+        ListingIndex current = index;
+        Set<Integer> newPatients = new TreeSet<>();
+        Set<Integer> newDoctors = new TreeSet<>();
+        for (long[] visit : visits) {
+            if (!current.hasPatient((int) visit[0])) {
+                newPatients.add((int) visit[0]);
+            }
+            if (!current.hasDoctor((int) visit[1])) {
+                newDoctors.add((int) visit[1]);
+            }
+        }
+        // Справочники одинаковы на всех шардах: имена новых пациентов и врачей - с шарда 0
+        shardRouter.runOnShard(0, () -> {
+            if (!newDoctors.isEmpty()) {
+                namedJdbcTemplate.query("SELECT id, first_name, last_name, timezone FROM doctors WHERE id IN (:ids)",
+                        Map.of("ids", newDoctors),
+                        rs -> {
+                            current.putDoctor(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+                        });
+            }
+            if (!newPatients.isEmpty()) {
+                namedJdbcTemplate.query("SELECT id, first_name, last_name FROM patients WHERE id IN (:ids)",
+                        Map.of("ids", newPatients),
+                        rs -> {
+                            current.putPatient(rs.getInt(1), rs.getString(2), rs.getString(3));
+                        });
+            }
+        });
+        synchronized (this) {
+            for (long[] visit : visits) {
+                current.recordVisit((int) visit[0], (int) visit[1], visit[2], visit[3]);
+            }
+        }
+    }
+
+    private ListingIndex load() {
+        ListingIndex fresh = new ListingIndex();
+        // Справочники одинаковы на всех шардах, визиты у каждого шарда свои
+        shardRouter.runOnShard(0, () -> {
+            jdbcTemplate.query("SELECT id, first_name, last_name, timezone FROM doctors",
+                    rs -> {
+                        fresh.putDoctor(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
+                    });
+            jdbcTemplate.query("SELECT id, first_name, last_name FROM patients",
+                    rs -> {
+                        fresh.appendPatient(rs.getInt(1), rs.getString(2), rs.getString(3));
+                    });
+        });
+        fresh.sortPatients();
+        int[] skipped = new int[1];
+        for (int shard = 0; shard < shardRouter.shardCount(); shard++) {
+            shardRouter.runOnShard(shard, () -> jdbcTemplate.query(
+                    "SELECT patient_id, doctor_id, start_date_time, end_date_time FROM visits",
+                    rs -> {
+                        int patientId = rs.getInt(1);
+                        int doctorId = rs.getInt(2);
+                        // Пациент или врач созданы после чтения справочников: визит закоммичен позже
+                        // знака, взятого до загрузки, и его применит catchUp
+                        if (!fresh.hasPatient(patientId) || !fresh.hasDoctor(doctorId)) {
+                            skipped[0]++;
+                            return;
+                        }
+                        fresh.recordVisit(patientId, doctorId,
+                                epochSecond(rs.getObject(3, LocalDateTime.class)),
+                                epochSecond(rs.getObject(4, LocalDateTime.class)));
+                    }));
+        }
+        if (skipped[0] > 0) {
+            log.debug("Skipped {} visits of patients or doctors created during the load", skipped[0]);
+        }
+        return fresh;
+    }
+
+    // Имена нужны только для пациента или врача, которых индекс еще не знает (в т.ч. во время сборки)
+    private Booking resolve(Visit visit) {
+        ListingIndex current = index;
+        boolean building = pending != null || current == null;
+        Patient patient = visit.getPatient();
+        if (patient.getFirstName() == null && (building || !current.hasPatient(patient.getId()))) {
+            patient = patientRepo.findById(patient.getId()).orElseThrow();
+        }
+        Doctor doctor = visit.getDoctor();
+        if (doctor.getFirstName() == null && (building || !current.hasDoctor(doctor.getId()))) {
+            doctor = doctorRepo.findById(doctor.getId()).orElseThrow();
+        }
+        return new Booking(patient, doctor,
+                visit.getStartDateTime().getEpochSecond(), visit.getEndDateTime().getEpochSecond());
+    }
+
+    // DATETIME хранит UTC
+    private static long epochSecond(LocalDateTime utc) {
+        return utc.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private record Booking(Patient patient, Doctor doctor, long start, long end) {
+        void applyTo(ListingIndex target) {
+            if (!target.hasPatient(patient.getId())) {
+                target.putPatient(patient.getId(), patient.getFirstName(), patient.getLastName());
+            }
+            if (!target.hasDoctor(doctor.getId())) {
+                target.putDoctor(doctor.getId(), doctor.getFirstName(), doctor.getLastName(), doctor.getTimezone());
+            }
+            target.recordVisit(patient.getId(), doctor.getId(), start, end);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.kettlebell.visittracking.service;
+
+import java.text.Collator;
+import java.text.Normalizer;
+import java.text.ParseException;
+import java.text.RuleBasedCollator;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Порядок имен на стороне приложения, совпадающий с ORDER BY по столбцам в коллации MySQL
+ * utf8mb4_0900_ai_ci: буквы сравниваются без учета регистра и диакритики ("Émile" = "emile"),
+ * а пробелы и знаки препинания, в отличие от Collator, не игнорируются и идут раньше букв и
+ * цифр. Нужен везде, где строки с разных шардов или из памяти сливаются с порядком SQL.
+ * {@link #searchKey} дает ключ поиска подстрокой с той же нечувствительностью, что у LIKE.
+ */
+final class NameCollation {
+    // Знаки в порядке весов UCA; прочие - после них, по коду символа
+    private static final String SEPARATORS = "\t\n\u000B\f\r _-,;:!?.'\"()[]{}@*/\\&#%`^+<=>|~$";
+
+    // В UCA буквы со штрихом - та же буква с диакритикой, в правилах JDK - отдельные буквы
+    private static final String STROKE_RULES = "& o ; ø ; Ø & l ; ł ; Ł & d ; đ ; Đ & h ; ħ ; Ħ & t ; ŧ ; Ŧ";
+    private static final Collator BASE = tailoredCollator();
+    private static final String STROKE_LETTERS = "øłđħŧ";
+    private static final String STROKE_BASES = "oldht";
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    // Collator не потокобезопасен (compare синхронизирован), у каждого потока своя копия
+    private static final ThreadLocal<Collator> COLLATOR = ThreadLocal.withInitial(() -> (Collator) BASE.clone());
+
+    static final Comparator<String> ORDER = NameCollation::compare;
+
+    private NameCollation() {
+    }
+
+    /**
+     * Ключ для поиска подстрокой: нижний регистр, без диакритики (NFD без combining-знаков),
+     * буквы со штрихом - базовые. Подстрока ключа найдется там же, где ее найдет LIKE '%...%'.
+     */
+    static String searchKey(String s) {
+        String lower = s.toLowerCase(Locale.ROOT);
+        if (isAscii(lower)) {
+            return lower;
+        }
+        String folded = COMBINING_MARKS.matcher(Normalizer.normalize(lower, Normalizer.Form.NFD)).replaceAll("");
+        char[] chars = folded.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int stroke = STROKE_LETTERS.indexOf(chars[i]);
+            if (stroke >= 0) {
+                chars[i] = STROKE_BASES.charAt(stroke);
+            }
+        }
+        return new String(chars);
+    }
+
+    private static Collator tailoredCollator() {
+        try {
+            RuleBasedCollator root = (RuleBasedCollator) Collator.getInstance(Locale.ROOT);
+            Collator collator = new RuleBasedCollator(root.getRules() + STROKE_RULES);
+            collator.setStrength(Collator.PRIMARY);
+            return collator;
+        } catch (ParseException e) {
+            throw new IllegalStateException("Invalid collation rules", e);
+        }
+    }
+
+    /**
+     * Сравнивает строки по словам: слова - через Collator (для ASCII - без него, результат
+     * тот же), разделители - по весу знака. Разделитель меньше любой буквы, более короткая
+     * строка с тем же началом - меньше.
+     */
+    static int compare(String left, String right) {
+        int i = 0;
+        int j = 0;
+        while (i < left.length() && j < right.length()) {
+            boolean leftWord = isWordChar(left.charAt(i));
+            boolean rightWord = isWordChar(right.charAt(j));
+            if (leftWord != rightWord) {
+                return leftWord ? 1 : -1;
+            }
+            if (!leftWord) {
+                int result = Integer.compare(separatorWeight(left.charAt(i)), separatorWeight(right.charAt(j)));
+                if (result != 0) {
+                    return result;
+                }
+                i++;
+                j++;
+                continue;
+            }
+            int leftEnd = wordEnd(left, i);
+            int rightEnd = wordEnd(right, j);
+            int result = compareWords(left.substring(i, leftEnd), right.substring(j, rightEnd));
+            if (result != 0) {
+                return result;
+            }
+            i = leftEnd;
+            j = rightEnd;
+        }
+        return Integer.compare(left.length() - i, right.length() - j);
+    }
+
+    private static int compareWords(String left, String right) {
+        if (isAscii(left) && isAscii(right)) {
+            return Integer.signum(String.CASE_INSENSITIVE_ORDER.compare(left, right));
+        }
+        return COLLATOR.get().compare(left, right);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+    private static int wordEnd(String s, int from) {
+        int end = from;
+        while (end < s.length() && isWordChar(s.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int separatorWeight(char c) {
+        int weight = SEPARATORS.indexOf(c);
+        return weight >= 0 ? weight : SEPARATORS.length() + c;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
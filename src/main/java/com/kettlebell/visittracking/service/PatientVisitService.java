@@ -0,0 +1,85 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.PatientVisitDto;
+import com.kettlebell.visittracking.controller.dto.PatientVisitsDto;
+import com.kettlebell.visittracking.exception.InvalidCursorException;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+@Service
+@RequiredArgsConstructor
+public class PatientVisitService {
+    private static final Comparator<Visit> HISTORY_ORDER = Comparator
+            .comparing(Visit::getStartDateTime, Comparator.reverseOrder())
+            .thenComparing(Visit::getId, Comparator.reverseOrder());
+
+    private final VisitRepository visitRepo;
+    private final PatientRepository patientRepo;
+    private final ShardRouter shardRouter;
+
+    public PatientVisitsDto findHistory(Integer patientId, String cursor, int size) {
+        if (!patientRepo.existsById(patientId)) {
+            throw VisitService.patientNotFound(patientId);
+        }
+
+        // Берем на одну запись больше, чтобы понять, есть ли следующая страница
+        Pageable limit = PageRequest.of(0, size + 1);
+        Object[] position = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor);
+        List<Visit> visits = new ArrayList<>();
+        // Визиты пациента разнесены по шардам врачей: собираем страницу с каждого и сливаем
+        shardRouter.onAllShards(shard -> position == null
+                ? visitRepo.findPatientHistory(patientId, limit)
+                : visitRepo.findPatientHistoryAfter(patientId, (Instant) position[0], (Integer) position[1], limit)
+        ).forEach(visits::addAll);
+        if (shardRouter.shardCount() > 1) {
+            visits.sort(HISTORY_ORDER);
+        }
+
+        boolean hasMore = visits.size() > size;
+        List<PatientVisitDto> data = new ArrayList<>(Math.min(visits.size(), size));
+        for (Visit visit : visits.subList(0, Math.min(visits.size(), size))) {
+            Doctor doctor = visit.getDoctor();
+            TimestampCodec doctorZone = TimestampCodec.forZone(doctor.getTimezone());
+            data.add(new PatientVisitDto(
+                    visit.getId(),
+                    doctorZone.format(visit.getStartDateTime()),
+                    doctorZone.format(visit.getEndDateTime()),
+                    doctor.getId(),
+                    doctor.getFirstName(),
+                    doctor.getLastName()
+            ));
+        }
+        String nextCursor = hasMore ? encodeCursor(visits.get(size - 1)) : null;
+        return new PatientVisitsDto(data, data.size(), nextCursor);
+    }
+
+    private static String encodeCursor(Visit last) {
+        String position = last.getStartDateTime().getEpochSecond() + ":" + last.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Object[] decodeCursor(String cursor) {
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            int separator = position.indexOf(':');
+            Instant start = Instant.ofEpochSecond(Long.parseLong(position.substring(0, separator)));
+            Integer id = Integer.valueOf(position.substring(separator + 1));
+            return new Object[]{start, id};
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.kettlebell.visittracking.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Время HTTP-запроса по фазам для Server-Timing и журнала медленных запросов: ожидание
+ * соединения, выполнение JDBC-запросов, гидратация сущностей (выборка минус JDBC), маппинг
+ * в DTO и сериализация. Привязан к потоку запроса; параллельные выборки по шардам пишут
+ * в тот же экземпляр. Вне HTTP-запроса все record* ничего не делают.
+ */
+public final class RequestTimings {
+    private static final ThreadLocal<RequestTimings> CURRENT = new ThreadLocal<>();
+
+    private final long startedNanos = System.nanoTime();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong statementNanos = new AtomicLong();
+    private final AtomicLong connectionNanos = new AtomicLong();
+    private final AtomicLong hydrationNanos = new AtomicLong();
+    private final AtomicLong mappingNanos = new AtomicLong();
+    private volatile long serializationStartedNanos;
+
+    public static RequestTimings begin() {
+        RequestTimings timings = new RequestTimings();
+        CURRENT.set(timings);
+        return timings;
+    }
+
+    public static void end() {
+        CURRENT.remove();
+    }
+
+    public static RequestTimings current() {
+        return CURRENT.get();
+    }
+
+    // Для задач в других потоках: время пишется в учет запроса, запустившего задачу
+    public static <T> T callWith(RequestTimings timings, Supplier<T> action) {
+        if (timings == null) {
+            return action.get();
+        }
+        RequestTimings previous = CURRENT.get();
+        CURRENT.set(timings);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public static void recordStatement(long nanos) {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.statements.incrementAndGet();
+            timings.statementNanos.addAndGet(nanos);
+        }
+    }
+
+    public static void recordConnection(long nanos) {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.connectionNanos.addAndGet(nanos);
+        }
+    }
+
+    // Отметка перед выборкой: время JDBC к этому моменту, см. recordQuery
+    public static long jdbcMark() {
+        RequestTimings timings = CURRENT.get();
+        return timings == null ? 0 : timings.jdbcNanos();
+    }
+
+    // Гидратация - время выборки за вычетом JDBC, накопленного после отметки
+    public static void recordQuery(long queryNanos, long jdbcMark) {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.hydrationNanos.addAndGet(Math.max(0, queryNanos - (timings.jdbcNanos() - jdbcMark)));
+        }
+    }
+
+    public static void recordMapping(long nanos) {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.mappingNanos.addAndGet(nanos);
+        }
+    }
+
+    // Вызывается перед записью тела ответа; при повторной записи (обработчик ошибок) - последняя
+    public static void markSerialization() {
+        RequestTimings timings = CURRENT.get();
+        if (timings != null) {
+            timings.serializationStartedNanos = System.nanoTime();
+        }
+    }
+
+    public long statements() {
+        return statements.get();
+    }
+
+    public long statementNanos() {
+        return statementNanos.get();
+    }
+
+    public long connectionNanos() {
+        return connectionNanos.get();
+    }
+
+    public long hydrationNanos() {
+        return hydrationNanos.get();
+    }
+
+    public long mappingNanos() {
+        return mappingNanos.get();
+    }
+
+    public long serializationNanos(long endNanos) {
+        long started = serializationStartedNanos;
+        return started == 0 ? 0 : endNanos - started;
+    }
+
+    public long totalNanos(long endNanos) {
+        return endNanos - startedNanos;
+    }
+
+    private long jdbcNanos() {
+        return statementNanos.get() + connectionNanos.get();
+    }
+}
@@ -0,0 +1,218 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.ScheduleEventDto;
+import com.kettlebell.visittracking.exception.OverloadedException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SSE-поток новых визитов врача. Соединения асинхронные (без потока на подписчика):
+ * события копятся в буфере подписчика и раз в flush-interval уходят одной пачкой
+ * через небольшой пул отправки. Переполнение буфера у подписчика, который успевает
+ * читать, превращается в событие resync (клиент перечитывает расписание); переполнение
+ * у подписчика, чья предыдущая отправка еще не завершилась, закрывает соединение.
+ * Сброс буферов идет в собственном потоке, а не в общем планировщике Spring: пересборки и
+ * чистки там не задерживают доставку событий.
+ */
+@Slf4j
+@Service
+public class ScheduleStreamService {
+    private final DoctorRepository doctorRepo;
+    private final int maxPending;
+    private final int maxSubscribers;
+    private final long heartbeatNanos;
+    private final long timeoutMillis;
+    private final ExecutorService sender;
+    private final ScheduledExecutorService flusher;
+    private final Map<Integer, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    public ScheduleStreamService(DoctorRepository doctorRepo,
+                                 @Value("${visit.schedule-stream.max-pending:256}") int maxPending,
+                                 @Value("${visit.schedule-stream.max-subscribers:10000}") int maxSubscribers,
+                                 @Value("${visit.schedule-stream.heartbeat:15s}") Duration heartbeat,
+                                 @Value("${visit.schedule-stream.timeout:30m}") Duration timeout,
+                                 @Value("${visit.schedule-stream.send-threads:4}") int sendThreads,
+                                 @Value("${visit.schedule-stream.flush-interval-ms:200}") long flushIntervalMs) {
+        this.doctorRepo = doctorRepo;
+        this.maxPending = maxPending;
+        this.maxSubscribers = maxSubscribers;
+        this.heartbeatNanos = heartbeat.toNanos();
+        this.timeoutMillis = timeout.toMillis();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.sender = Executors.newFixedThreadPool(sendThreads, runnable -> {
+            Thread thread = new Thread(runnable, "schedule-stream-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "schedule-stream-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        flusher.shutdownNow();
+        sender.shutdownNow();
+        subscribers.values().forEach(set -> set.forEach(subscriber -> subscriber.emitter.complete()));
+    }
+
+    public SseEmitter subscribe(Integer doctorId) {
+        if (!doctorRepo.existsById(doctorId)) {
+            throw VisitService.doctorNotFound(doctorId);
+        }
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new OverloadedException("Too many schedule subscribers, retry later", 5);
+        }
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(doctorId, emitter);
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+        subscribers.computeIfAbsent(doctorId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        return emitter;
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void onVisitCreated(VisitCreatedEvent event) {
+        Visit visit = event.visit();
+        Set<Subscriber> doctorSubscribers = subscribers.get(visit.getDoctor().getId());
+        if (doctorSubscribers == null || doctorSubscribers.isEmpty()) {
+            return;
+        }
+        TimestampCodec doctorZone = TimestampCodec.forZone(visit.getDoctor().getTimezone());
+        ScheduleEventDto dto = new ScheduleEventDto(
+                visit.getId(),
+                visit.getPatient().getId(),
+                doctorZone.format(visit.getStartDateTime()),
+                doctorZone.format(visit.getEndDateTime())
+        );
+        doctorSubscribers.forEach(subscriber -> subscriber.enqueue(dto));
+    }
+
+    // Исключение отменило бы все следующие запуски scheduleWithFixedDelay
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Schedule stream flush failed", e);
+        }
+    }
+
+    void flush() {
+        long now = System.nanoTime();
+        for (Set<Subscriber> doctorSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : doctorSubscribers) {
+                if (!subscriber.sending.compareAndSet(false, true)) {
+                    // Предыдущая пачка еще пишется в сокет
+                    if (subscriber.isOverflowed()) {
+                        log.info("Dropping slow schedule subscriber of doctor {}", subscriber.doctorId);
+                        remove(subscriber);
+                        subscriber.emitter.complete();
+                    }
+                    continue;
+                }
+                Batch batch = subscriber.drain();
+                boolean heartbeatDue = now - subscriber.lastSentNanos > heartbeatNanos;
+                if (batch.events.isEmpty() && !batch.resync && !heartbeatDue) {
+                    subscriber.sending.set(false);
+                    continue;
+                }
+                sender.execute(() -> send(subscriber, batch));
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, Batch batch) {
+        try {
+            if (batch.resync) {
+                subscriber.emitter.send(SseEmitter.event().name("resync").data(""));
+            } else if (!batch.events.isEmpty()) {
+                subscriber.emitter.send(SseEmitter.event().name("visits").data(batch.events, MediaType.APPLICATION_JSON));
+            } else {
+                subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            }
+            subscriber.lastSentNanos = System.nanoTime();
+        } catch (IOException | IllegalStateException e) {
+            // Клиент ушел: соединение закрывается, подписка удаляется
+            remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+        } finally {
+            subscriber.sending.set(false);
+        }
+    }
+
+    private void remove(Subscriber subscriber) {
+        Set<Subscriber> doctorSubscribers = subscribers.get(subscriber.doctorId);
+        if (doctorSubscribers != null && doctorSubscribers.remove(subscriber)) {
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    private record Batch(List<ScheduleEventDto> events, boolean resync) {
+    }
+
+    private final class Subscriber {
+        private final Integer doctorId;
+        private final SseEmitter emitter;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private List<ScheduleEventDto> pending = new ArrayList<>();
+        private boolean overflowed;
+        private volatile long lastSentNanos = System.nanoTime();
+
+        private Subscriber(Integer doctorId, SseEmitter emitter) {
+            this.doctorId = doctorId;
+            this.emitter = emitter;
+        }
+
+        private synchronized void enqueue(ScheduleEventDto event) {
+            if (overflowed) {
+                return;
+            }
+            if (pending.size() >= maxPending) {
+                // Отдельные события уже не нужны: клиенту придется перечитать расписание
+                overflowed = true;
+                pending = new ArrayList<>();
+                return;
+            }
+            pending.add(event);
+        }
+
+        private synchronized boolean isOverflowed() {
+            return overflowed;
+        }
+
+        private synchronized Batch drain() {
+            Batch batch = new Batch(pending, overflowed);
+            pending = new ArrayList<>();
+            overflowed = false;
+            return batch;
+        }
+    }
+}
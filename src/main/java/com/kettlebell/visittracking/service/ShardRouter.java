@@ -0,0 +1,154 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.repository.ShardRoutingDataSource;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Распределение врачей по шардам и выполнение кода на нужном шарде. Визиты врача (и его
+ * статистика) живут на одном шарде, справочники doctors/patients есть на каждом. Приложение
+ * справочники не реплицирует и не создает: одинаковые строки с одинаковыми id на все шарды
+ * загружает оператор, а при старте расхождение останавливает запуск (ShardingConfiguration).
+ * Без шардирования шард один и все методы просто выполняют действие в текущем потоке.
+ * Пересечения визитов пациента проверяются только на шарде врача: визиты одного пациента
+ * у врачей с разных шардов могут пересекаться. Поэтому шардирование включается только
+ * вместе с явным visit.sharding.allow-shard-local-patient-check=true.
+ */
+@Component
+public class ShardRouter {
+    private final int shardCount;
+    private final ExecutorService fanOutExecutor;
+
+    public ShardRouter(@Value("${visit.sharding.enabled:false}") boolean enabled,
+                       @Value("${visit.sharding.urls:}") List<String> urls,
+                       @Value("${visit.sharding.fan-out-threads:16}") int fanOutThreads,
+                       @Value("${visit.sharding.allow-shard-local-patient-check:false}") boolean shardLocalPatientCheck) {
+        this.shardCount = enabled ? urls.size() : 1;
+        if (shardCount > 1 && !shardLocalPatientCheck) {
+            throw new IllegalStateException("With visit.sharding.enabled=true patient overlaps are checked only "
+                    + "on the doctor's shard; set visit.sharding.allow-shard-local-patient-check=true to accept that");
+        }
+        if (shardCount > 1) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.fanOutExecutor = Executors.newFixedThreadPool(fanOutThreads, runnable -> {
+                Thread thread = new Thread(runnable, "shard-fan-out-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.fanOutExecutor = null;
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        if (fanOutExecutor != null) {
+            fanOutExecutor.shutdownNow();
+        }
+    }
+
+    public int shardCount() {
+        return shardCount;
+    }
+
+    // Стабильный хеш: не зависит от JVM и порядка запуска, меняется только вместе с числом шардов
+    public int shardOf(Integer doctorId) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int h = doctorId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, shardCount);
+    }
+
+    // Шарды, на которых могут быть визиты указанных врачей; null - все шарды
+    public List<Integer> shardsOf(Collection<Integer> doctorIds) {
+        TreeSet<Integer> shards = new TreeSet<>();
+        if (doctorIds == null) {
+            for (int shard = 0; shard < shardCount; shard++) {
+                shards.add(shard);
+            }
+        } else {
+            doctorIds.forEach(doctorId -> shards.add(shardOf(doctorId)));
+        }
+        return new ArrayList<>(shards);
+    }
+
+    public <T> T onShard(int shard, Supplier<T> action) {
+        if (shardCount == 1) {
+            return action.get();
+        }
+        Integer previous = ShardRoutingDataSource.currentShard();
+        ShardRoutingDataSource.setCurrentShard(shard);
+        try {
+            return action.get();
+        } finally {
+            ShardRoutingDataSource.setCurrentShard(previous);
+        }
+    }
+
+    public void runOnShard(int shard, Runnable action) {
+        onShard(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public <T> T forDoctor(Integer doctorId, Supplier<T> action) {
+        return onShard(shardOf(doctorId), action);
+    }
+
+    public void runForDoctor(Integer doctorId, Runnable action) {
+        runOnShard(shardOf(doctorId), action);
+    }
+
+    /**
+     * Выполняет действие на каждом из шардов параллельно, результаты - в порядке шардов.
+     */
+    public <T> List<T> onShards(List<Integer> shards, IntFunction<T> action) {
+        if (shards.size() == 1) {
+            int shard = shards.get(0);
+            return List.of(onShard(shard, () -> action.apply(shard)));
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(shards.size());
+        RequestTimings timings = RequestTimings.current();
+        for (int shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> RequestTimings.callWith(timings,
+                    () -> onShard(shard, () -> action.apply(shard))), fanOutExecutor));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    public <T> List<T> onAllShards(IntFunction<T> action) {
+        return onShards(shardsOf(null), action);
+    }
+}
@@ -0,0 +1,257 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.exception.InvalidTimeFormatException;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneOffsetTransitionRule;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Кодек для фиксированного формата yyyy-MM-dd HH:mm:ss без промежуточных объектов java.time.
+ * Экземпляр привязан к таймзоне врача и держит заранее развернутые переходы смещений
+ * (история tzdb + правила до {@link #LAST_PRECOMPUTED_YEAR}). Поведение на DST-переходах
+ * то же, что у {@code LocalDateTime.atZone(zone)} и {@code DateTimeFormatter.withZone(zone)}:
+ * время в "дыре" сдвигается вперед, в "перекрытии" берется более раннее смещение.
+ * Все, что выходит за быстрый путь (неканоничный ввод, годы вне 1..9999, даты после
+ * горизонта), обрабатывается штатным java.time, поэтому результат всегда совпадает с ним.
+ */
+public final class TimestampCodec {
+    public static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+    public static final int LENGTH = 19;
+    static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(PATTERN);
+
+    private static final int LAST_PRECOMPUTED_YEAR = 2100;
+    static final long SECONDS_PER_DAY = 86_400;
+    private static final String INVALID_FORMAT = "Invalid date format. Expected format: yyyy-MM-dd HH:mm:ss";
+    private static final ConcurrentMap<String, TimestampCodec> CODECS = new ConcurrentHashMap<>();
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final boolean fixed;
+    private final int fixedOffset;
+    private final long[] transitions;
+    private final int[] offsetsBefore;
+    private final int[] offsetsAfter;
+    private final long[] localLow;
+    private final long[] localHigh;
+    private final long horizon;
+
+    private TimestampCodec(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+        this.fixed = rules.isFixedOffset();
+        this.fixedOffset = rules.getOffset(Instant.EPOCH).getTotalSeconds();
+
+        List<ZoneOffsetTransition> all = new ArrayList<>(rules.getTransitions());
+        if (!all.isEmpty() && !rules.getTransitionRules().isEmpty()) {
+            ZoneOffsetTransition last = all.get(all.size() - 1);
+            for (int year = last.getDateTimeBefore().getYear(); year <= LAST_PRECOMPUTED_YEAR; year++) {
+                for (ZoneOffsetTransitionRule rule : rules.getTransitionRules()) {
+                    ZoneOffsetTransition transition = rule.createTransition(year);
+                    if (transition.toEpochSecond() > last.toEpochSecond()) {
+                        all.add(transition);
+                    }
+                }
+            }
+            all.sort(null);
+        }
+
+        int size = all.size();
+        this.transitions = new long[size];
+        this.offsetsBefore = new int[size];
+        this.offsetsAfter = new int[size];
+        this.localLow = new long[size];
+        this.localHigh = new long[size];
+        for (int i = 0; i < size; i++) {
+            ZoneOffsetTransition transition = all.get(i);
+            transitions[i] = transition.toEpochSecond();
+            offsetsBefore[i] = transition.getOffsetBefore().getTotalSeconds();
+            offsetsAfter[i] = transition.getOffsetAfter().getTotalSeconds();
+            localLow[i] = transitions[i] + Math.min(offsetsBefore[i], offsetsAfter[i]);
+            localHigh[i] = transitions[i] + Math.max(offsetsBefore[i], offsetsAfter[i]);
+        }
+
+        // После горизонта (и для зон с правилами, но без истории переходов) - через ZoneRules
+        if (size == 0) {
+            this.horizon = Long.MIN_VALUE;
+        } else if (rules.getTransitionRules().isEmpty()) {
+            this.horizon = Long.MAX_VALUE;
+        } else {
+            this.horizon = (daysFromCivil(LAST_PRECOMPUTED_YEAR + 1, 1, 1) - 1) * SECONDS_PER_DAY;
+        }
+    }
+
+    public static TimestampCodec forZone(String timezone) {
+        TimestampCodec codec = CODECS.get(timezone);
+        if (codec == null) {
+            codec = CODECS.computeIfAbsent(timezone, tz -> new TimestampCodec(ZoneId.of(tz)));
+        }
+        return codec;
+    }
+
+    /**
+     * Разбирает строку в "локальные" epoch-секунды (поля даты и времени как будто в UTC).
+     */
+    public static long parseLocal(CharSequence text) {
+        if (text.length() == LENGTH
+                && text.charAt(4) == '-' && text.charAt(7) == '-' && text.charAt(10) == ' '
+                && text.charAt(13) == ':' && text.charAt(16) == ':') {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 2);
+            int day = digits(text, 8, 2);
+            int hour = digits(text, 11, 2);
+            int minute = digits(text, 14, 2);
+            int second = digits(text, 17, 2);
+            if (year >= 1 && month >= 1 && month <= 12 && day >= 1 && day <= lengthOfMonth(year, month)
+                    && hour >= 0 && hour <= 23 && minute >= 0 && minute <= 59 && second >= 0 && second <= 59) {
+                return daysFromCivil(year, month, day) * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+            }
+        }
+        // Все остальное (в т.ч. то, что SMART-резолвер форматтера поправляет) - через java.time
+        try {
+            return LocalDateTime.parse(text, FORMATTER).toEpochSecond(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            throw new InvalidTimeFormatException(INVALID_FORMAT);
+        }
+    }
+
+    /**
+     * Локальное время врача в UTC epoch-секунды, как {@code LocalDateTime.atZone(zone).toEpochSecond()}.
+     */
+    public long toUtc(long localEpochSecond) {
+        if (fixed) {
+            return localEpochSecond - fixedOffset;
+        }
+        if (localEpochSecond >= horizon) {
+            return LocalDateTime.ofEpochSecond(localEpochSecond, 0, ZoneOffset.UTC).atZone(zone).toEpochSecond();
+        }
+        int i = floorIndex(localLow, localEpochSecond);
+        if (i < 0) {
+            return localEpochSecond - offsetsBefore[0];
+        }
+        // В "дыре" и в "перекрытии" java.time дает одно и то же: смещение до перехода
+        return localEpochSecond < localHigh[i]
+                ? localEpochSecond - offsetsBefore[i]
+                : localEpochSecond - offsetsAfter[i];
+    }
+
+    /**
+     * Начало дня по времени врача в UTC epoch-секунды, как {@code date.atStartOfDay(zone)}.
+     * Сутки врача [date, date + 1) в UTC - от startOfDay(date) до startOfDay(date.plusDays(1)).
+     */
+    public long startOfDay(LocalDate date) {
+        return toUtc(date.toEpochDay() * SECONDS_PER_DAY);
+    }
+
+    public int offsetAt(long epochSecond) {
+        if (fixed) {
+            return fixedOffset;
+        }
+        if (epochSecond >= horizon) {
+            return rules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+        }
+        int i = floorIndex(transitions, epochSecond);
+        return i < 0 ? offsetsBefore[0] : offsetsAfter[i];
+    }
+
+    public long localEpochDay(long epochSecond) {
+        return Math.floorDiv(epochSecond + offsetAt(epochSecond), SECONDS_PER_DAY);
+    }
+
+    /**
+     * Пишет момент времени в локальном времени врача в буфер, возвращает число записанных символов.
+     */
+    public int formatTo(long epochSecond, char[] dst, int offset) {
+        long local = epochSecond + offsetAt(epochSecond);
+        long days = Math.floorDiv(local, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(local, SECONDS_PER_DAY);
+
+        // Обратное к daysFromCivil преобразование дней в год/месяц/день
+        long z = days + 719_468;
+        long era = (z >= 0 ? z : z - 146_096) / 146_097;
+        int dayOfEra = (int) (z - era * 146_097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year < 1 || year > 9999) {
+            String text = FORMATTER.withZone(zone).format(Instant.ofEpochSecond(epochSecond));
+            text.getChars(0, text.length(), dst, offset);
+            return text.length();
+        }
+        writeDigits(dst, offset, (int) year, 4);
+        dst[offset + 4] = '-';
+        writeDigits(dst, offset + 5, month, 2);
+        dst[offset + 7] = '-';
+        writeDigits(dst, offset + 8, day, 2);
+        dst[offset + 10] = ' ';
+        writeDigits(dst, offset + 11, secondOfDay / 3600, 2);
+        dst[offset + 13] = ':';
+        writeDigits(dst, offset + 14, secondOfDay / 60 % 60, 2);
+        dst[offset + 16] = ':';
+        writeDigits(dst, offset + 17, secondOfDay % 60, 2);
+        return LENGTH;
+    }
+
+    public String format(Instant instant) {
+        char[] buffer = new char[32];
+        int length = formatTo(instant.getEpochSecond(), buffer, 0);
+        return new String(buffer, 0, length);
+    }
+
+    private static int floorIndex(long[] sorted, long key) {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static int digits(CharSequence text, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void writeDigits(char[] dst, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            dst[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        return switch (month) {
+            case 2 -> (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4, 6, 9, 11 -> 30;
+            default -> 31;
+        };
+    }
+
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153L * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146_097 + dayOfEra - 719_468;
+    }
+}
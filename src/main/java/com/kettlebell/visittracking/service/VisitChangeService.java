@@ -0,0 +1,216 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.exception.InvalidCursorException;
+import com.kettlebell.visittracking.repository.VisitChangeLogRepository;
+import com.kettlebell.visittracking.repository.VisitChangeRepository;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import com.kettlebell.visittracking.repository.entity.VisitChange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Журнал изменений визитов для delta-sync. Токен - водяной знак журнала на каждом шарде:
+ * seq, ниже и на котором нет незавершенных транзакций. Seq выдается при вставке, а коммиты
+ * идут не по порядку seq, поэтому время вставки (changed_at, часы приложения) для токена не
+ * годится: транзакция может ждать блокировок дольше любого отставания. Вместо этого знак
+ * продвигается блокирующим чтением диапазона с NOWAIT - строка незакоммиченной вставки
+ * заблокирована своей транзакцией до коммита или отката, и знак останавливается перед ней.
+ * Пропуски seq (откаты) блокировок не держат и знак не задерживают.
+ * <p>
+ * Остаточное допущение: seq выделяется и строка вставляется одним INSERT, без ожиданий между
+ * ними (журнал никто не блокирует gap-блокировками). Токен кешируется на token-max-age:
+ * устаревший токен дает повтор изменений, но не потерю.
+ */
+@Slf4j
+@Service
+public class VisitChangeService {
+    // Строк на одно блокирующее чтение: первый проход после старта идет по всему журналу
+    private static final int LOCK_CHUNK = 10_000;
+
+    private final VisitChangeRepository changeRepo;
+    private final VisitChangeLogRepository changeLogRepo;
+    private final ShardRouter shardRouter;
+    private final Duration retention;
+    private final int maxChanges;
+    private final Duration tokenMaxAge;
+    private final ReentrantLock advanceLock = new ReentrantLock();
+    // Водяные знаки по шардам, -1 - еще не считались; меняются только под advanceLock
+    private final long[] watermarks;
+    private volatile CachedToken cachedToken;
+
+    public VisitChangeService(VisitChangeRepository changeRepo,
+                              VisitChangeLogRepository changeLogRepo,
+                              ShardRouter shardRouter,
+                              @Value("${visit.sync.retention:7d}") Duration retention,
+                              @Value("${visit.sync.max-changes:1000}") int maxChanges,
+                              @Value("${visit.sync.token-max-age:1s}") Duration tokenMaxAge) {
+        this.changeRepo = changeRepo;
+        this.changeLogRepo = changeLogRepo;
+        this.shardRouter = shardRouter;
+        this.retention = retention;
+        this.maxChanges = maxChanges;
+        this.tokenMaxAge = tokenMaxAge;
+        this.watermarks = new long[shardRouter.shardCount()];
+        Arrays.fill(watermarks, -1);
+    }
+
+    // Синхронно, в транзакции бронирования: запись в журнал коммитится вместе с визитом
+    @EventListener
+    public void onVisitCreated(VisitCreatedEvent event) {
+        Visit visit = event.visit();
+        changeRepo.save(new VisitChange(null, visit.getPatient().getId(), visit.getDoctor().getId(), Instant.now()));
+    }
+
+    /**
+     * Токен не старше token-max-age. Все изменения до него закоммичены до вызова, поэтому
+     * он годится для данных, прочитанных после него.
+     */
+    public String currentToken() {
+        return currentCache().token();
+    }
+
+    // Водяные знаки по шардам, из того же кеша, что и токен
+    long[] currentWatermarks() {
+        return currentCache().watermarks().clone();
+    }
+
+    private CachedToken currentCache() {
+        CachedToken cached = cachedToken;
+        if (cached != null && System.nanoTime() - cached.takenAt() <= tokenMaxAge.toNanos()) {
+            return cached;
+        }
+        // Знак уже продвигает другой поток: пока годится и предыдущий токен
+        if (cached != null && !advanceLock.tryLock()) {
+            return cached;
+        }
+        if (cached == null) {
+            advanceLock.lock();
+        }
+        try {
+            cached = cachedToken;
+            long now = System.nanoTime();
+            if (cached != null && now - cached.takenAt() <= tokenMaxAge.toNanos()) {
+                return cached;
+            }
+            List<Long> advanced = shardRouter.onAllShards(shard -> advance(watermarks[shard]));
+            for (int shard = 0; shard < watermarks.length; shard++) {
+                watermarks[shard] = advanced.get(shard);
+            }
+            cached = new CachedToken(encodeToken(watermarks), watermarks.clone(), now);
+            cachedToken = cached;
+            return cached;
+        } finally {
+            advanceLock.unlock();
+        }
+    }
+
+    /**
+     * Пациенты, у которых появились визиты после токена; null - изменений больше, чем
+     * max-changes, или токен старше хранимого журнала, и клиенту нужна полная перезагрузка.
+     */
+    public Set<Integer> findChangedPatients(String token) {
+        long[] since = decodeToken(token);
+        List<List<Integer>> changed = shardRouter.onAllShards(shard -> {
+            Long minSeq = changeRepo.findMinSeq();
+            if (minSeq != null && since[shard] < minSeq - 1) {
+                return null;
+            }
+            return changeRepo.findPatientsChangedAfter(since[shard], PageRequest.of(0, maxChanges + 1));
+        });
+        Set<Integer> patientIds = new TreeSet<>();
+        for (List<Integer> shardPatients : changed) {
+            if (shardPatients == null) {
+                return null;
+            }
+            patientIds.addAll(shardPatients);
+        }
+        return patientIds.size() > maxChanges ? null : patientIds;
+    }
+
+    @Scheduled(fixedDelayString = "${visit.sync.purge-interval-ms:3600000}")
+    void purge() {
+        Instant cutoff = Instant.now().minus(retention);
+        List<Integer> removed = shardRouter.onAllShards(shard -> {
+            Long maxSeq = changeRepo.findMaxSeq();
+            return maxSeq == null ? 0 : changeRepo.deleteChangedBefore(cutoff, maxSeq);
+        });
+        int total = removed.stream().mapToInt(Integer::intValue).sum();
+        if (total > 0) {
+            log.debug("Purged {} visit changes", total);
+        }
+    }
+
+    // Продвигает знак шарда до последнего seq, ниже которого нет незавершенных транзакций
+    private long advance(long watermark) {
+        Long maxSeq = changeRepo.findMaxSeq();
+        if (maxSeq == null) {
+            return Math.max(watermark, 0);
+        }
+        long safe = watermark;
+        if (safe < 0) {
+            Long minSeq = changeRepo.findMinSeq();
+            safe = minSeq == null ? 0 : Math.max(0, minSeq - 1);
+        }
+        long chunk = LOCK_CHUNK;
+        while (safe < maxSeq) {
+            long to = Math.min(maxSeq, safe + chunk);
+            try {
+                changeLogRepo.lockRangeNoWait(safe, to);
+                safe = to;
+            } catch (PessimisticLockingFailureException e) {
+                if (to - safe == 1) {
+                    // Следующий seq - незавершенная транзакция: дальше этого прохода знак не идет
+                    break;
+                }
+                // Незавершенная строка где-то в диапазоне: окно сужается вдвое (двоичный поиск)
+                chunk = (to - safe) / 2;
+            }
+        }
+        return safe;
+    }
+
+    static String encodeToken(long[] seqs) {
+        StringBuilder token = new StringBuilder();
+        for (long seq : seqs) {
+            if (!token.isEmpty()) {
+                token.append('.');
+            }
+            token.append(seq);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private long[] decodeToken(String token) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII).split("\\.");
+            if (parts.length != shardRouter.shardCount()) {
+                throw new IllegalArgumentException("Shard count mismatch");
+            }
+            long[] seqs = new long[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                seqs[i] = Long.parseLong(parts[i]);
+            }
+            return seqs;
+        } catch (RuntimeException e) {
+            throw new InvalidCursorException("Invalid sync token");
+        }
+    }
+
+    private record CachedToken(String token, long[] watermarks, long takenAt) {
+    }
+}
@@ -0,0 +1,9 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.repository.entity.Visit;
+
+/**
+ * Публикуется в транзакции бронирования; слушатели с AFTER_COMMIT видят только закоммиченные визиты.
+ */
+public record VisitCreatedEvent(Visit visit) {
+}
@@ -0,0 +1,121 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitSeriesRequest;
+import com.kettlebell.visittracking.controller.record.VisitSeriesResponse;
+import com.kettlebell.visittracking.exception.BrookedTimeException;
+import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitBookingRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Серия визитов (например, еженедельная терапия): правило повторения разворачивается в
+ * таймзоне врача, так что визиты остаются в то же местное время и после перехода на
+ * летнее/зимнее время. Все визиты серии проверяются одним диапазонным запросом (по врачу
+ * и по пациенту) и вставляются одной транзакцией: либо вся серия, либо ничего.
+ */
+@Service
+@RequiredArgsConstructor
+public class VisitSeriesService {
+    private static final int MAX_BOOKING_ATTEMPTS = 3;
+
+    private final VisitRepository visitRepo;
+    private final VisitBookingRepository visitBookingRepo;
+    private final DoctorRepository doctorRepo;
+    private final PatientRepository patientRepo;
+    private final DoctorStatsService doctorStatsService;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate transactionTemplate;
+
+    public VisitSeriesResponse createSeries(VisitSeriesRequest request) {
+        // Как и одиночное бронирование: все на шарде врача, при дедлоке транзакция повторяется
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return shardRouter.forDoctor(request.doctorId(),
+                        () -> transactionTemplate.execute(status -> bookSeries(request)));
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= MAX_BOOKING_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private VisitSeriesResponse bookSeries(VisitSeriesRequest request) {
+        // Блокировки врача и пациента ставят серию в очередь с одиночными бронированиями обоих
+        Doctor doctor = doctorRepo.findByIdForUpdate(request.doctorId())
+                .orElseThrow(() -> VisitService.doctorNotFound(request.doctorId()));
+        Patient patient = patientRepo.findByIdForUpdate(request.patientId())
+                .orElseThrow(() -> VisitService.patientNotFound(request.patientId()));
+        TimestampCodec doctorZone = TimestampCodec.forZone(doctor.getTimezone());
+
+        long startTime = VisitService.parseDateTime(request.start());
+        long endTime = VisitService.parseDateTime(request.end());
+        VisitService.checkRange(startTime, endTime);
+        List<long[]> occurrences = expand(request, startTime, endTime);
+
+        List<Instant[]> intervals = new ArrayList<>(occurrences.size());
+        for (long[] occurrence : occurrences) {
+            Instant start = VisitService.toUtc(occurrence[0], doctorZone);
+            Instant end = VisitService.toUtc(occurrence[1], doctorZone);
+            VisitService.checkRange(start, end);
+            if (!intervals.isEmpty() && start.isBefore(intervals.get(intervals.size() - 1)[1])) {
+                throw new InvalidTimeRangeException("Visits of the series must not overlap each other");
+            }
+            intervals.add(new Instant[]{start, end});
+        }
+
+        // Один запрос на весь диапазон серии и слияние двух упорядоченных по началу списков.
+        // Пропущенный визит закончился до начала текущего, а значит и всех следующих: слияние
+        // верно и для пересекающихся между собой визитов пациента
+        List<Object[]> taken = visitRepo.findIntervalsByDoctorOrPatientOrderByStart(doctor.getId(), patient.getId(),
+                intervals.get(0)[0], intervals.get(intervals.size() - 1)[1]);
+        int next = 0;
+        for (int i = 0; i < intervals.size(); i++) {
+            Instant start = intervals.get(i)[0];
+            Instant end = intervals.get(i)[1];
+            while (next < taken.size() && !((Instant) taken.get(next)[1]).isAfter(start)) {
+                next++;
+            }
+            if (next < taken.size() && ((Instant) taken.get(next)[0]).isBefore(end)) {
+                throw doctor.getId().equals(taken.get(next)[2])
+                        ? new BrookedTimeException("Doctor is already booked at " + doctorZone.format(start))
+                        : new BrookedTimeException("Patient already has a visit at " + doctorZone.format(start));
+            }
+        }
+
+        List<Integer> ids = visitBookingRepo.insertAll(doctor.getId(), patient.getId(), intervals);
+        for (int i = 0; i < ids.size(); i++) {
+            Visit saved = new Visit(ids.get(i), intervals.get(i)[0], intervals.get(i)[1], patient, doctor);
+            doctorStatsService.recordVisit(saved);
+            eventPublisher.publishEvent(new VisitCreatedEvent(saved));
+        }
+        return new VisitSeriesResponse(ids);
+    }
+
+    // Шаг считается в местном времени врача: перевод часов не сдвигает визиты
+    private static List<long[]> expand(VisitSeriesRequest request, long startTime, long endTime) {
+        long stepDays = ("DAILY".equals(request.frequency()) ? 1 : 7)
+                * (request.interval() != null ? request.interval() : 1);
+        List<long[]> occurrences = new ArrayList<>(request.count());
+        for (int i = 0; i < request.count(); i++) {
+            long shift = i * stepDays * TimestampCodec.SECONDS_PER_DAY;
+            occurrences.add(new long[]{startTime + shift, endTime + shift});
+        }
+        return occurrences;
+    }
+}
@@ -5,6 +5,7 @@ import com.kettlebell.visittracking.controller.record.VisitResponse;
 import com.kettlebell.visittracking.controller.dto.DoctorDto;
 import com.kettlebell.visittracking.controller.dto.PatientDto;
 import com.kettlebell.visittracking.controller.dto.RootDto;
+import com.kettlebell.visittracking.controller.dto.VisitChangesDto;
 import com.kettlebell.visittracking.controller.dto.VisitDto;
 import com.kettlebell.visittracking.exception.BrookedTimeException;
 import com.kettlebell.visittracking.exception.InvalidTimeFormatException;
@@ -12,79 +13,329 @@ import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
 import com.kettlebell.visittracking.exception.NotFoundException;
 import com.kettlebell.visittracking.repository.DoctorRepository;
 import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitBookingRepository;
 import com.kettlebell.visittracking.repository.entity.Doctor;
 import com.kettlebell.visittracking.repository.entity.Patient;
 import com.kettlebell.visittracking.repository.entity.Visit;
 import com.kettlebell.visittracking.repository.VisitRepository;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.PessimisticLockingFailureException;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class VisitService {
+    // ORDER BY p.lastName, p.firstName, v.startDateTime DESC, p.id, d.id; имена - в порядке коллации MySQL
+    private static final Comparator<Object[]> LISTING_ORDER = Comparator
+            .comparing((Object[] row) -> ((Patient) row[0]).getLastName(), NameCollation.ORDER)
+            .thenComparing(row -> ((Patient) row[0]).getFirstName(), NameCollation.ORDER)
+            .thenComparing(row -> (Instant) row[1], Comparator.reverseOrder())
+            .thenComparing(row -> ((Patient) row[0]).getId())
+            .thenComparing(row -> ((Doctor) row[3]).getId());
+
+    private static final int MAX_BOOKING_ATTEMPTS = 3;
+    private static final String WARM_UP_TIMEZONE = "America/New_York";
+    private static final String PATIENT_BOOKED = "Patient already has a visit at this time";
+
     private final VisitRepository visitRepo;
+    private final VisitBookingRepository visitBookingRepo;
+    private final DoctorTimezones doctorTimezones;
     private final DoctorRepository doctorRepo;
     private final PatientRepository patientRepo;
-    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final Optional<BookingPipeline> bookingPipeline;
+    private final DoctorStatsService doctorStatsService;
+    private final ShardRouter shardRouter;
+    private final VisitChangeService visitChangeService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final BookingTransactions bookingTransactions;
+    private final ListingReadModel listingReadModel;
+    private final ListingPipeline listingPipeline;
 
     public VisitResponse createVisit(VisitRequest request) {
-        Doctor doctor = doctorRepo.findById(request.doctorId())
-                .orElseThrow(() -> new NotFoundException("Doctor with " + request.doctorId() + " not found"));
-        Patient patient = patientRepo.findById(request.patientId())
-                .orElseThrow(() -> new NotFoundException("Patient with " + request.patientId() + " not found"));
+        BookingJfrEvent event = new BookingJfrEvent();
+        event.begin();
+        String outcome = "error";
+        try {
+            VisitResponse response = bookingPipeline.isPresent()
+                    ? bookingPipeline.get().submit(request)
+                    : bookWithRetry(request, event);
+            outcome = "booked";
+            return response;
+        } catch (RuntimeException e) {
+            outcome = bookingOutcome(e);
+            throw e;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.doctorId = request.doctorId();
+                event.patientId = request.patientId();
+                event.outcome = outcome;
+                event.batched = bookingPipeline.isPresent();
+                event.commit();
+            }
+        }
+    }
 
-        // Часовой пояс врача
-        ZoneId doctorZone = ZoneId.of(doctor.getTimezone());
+    private VisitResponse bookWithRetry(VisitRequest request, BookingJfrEvent event) {
+        // Визит и счетчики загрузки врача коммитятся вместе, на шарде врача
+        for (int attempt = 1; ; attempt++) {
+            event.attempts = attempt;
+            try {
+                return shardRouter.forDoctor(request.doctorId(),
+                        () -> bookingTransactions.execute(status -> bookVisit(request, event)));
+            } catch (PessimisticLockingFailureException e) {
+                // Дедлок или таймаут блокировки: транзакция откачена целиком, повтор безопасен
+                if (attempt >= MAX_BOOKING_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
 
-        // Парсим строку в LocalDateTime
-        LocalDateTime startTime;
-        LocalDateTime endTime;
+    private VisitResponse bookVisit(VisitRequest request, BookingJfrEvent event) {
+        return bookVisit(request, event, 1);
+    }
+
+    private VisitResponse bookVisit(VisitRequest request, BookingJfrEvent event, int attempt) {
+        // Часовой пояс врача (из кеша; несовпадение проверяется в самой вставке)
+        String timezone = doctorTimezones.get(request.doctorId());
+        TimestampCodec doctorZone = TimestampCodec.forZone(timezone);
+
+        // Парсим строку в локальное время врача
+        long startTime = parseDateTime(request.start());
+        long endTime = parseDateTime(request.end());
+        checkRange(startTime, endTime);
+
+        // Переводим в UTC с учетом таймзоны врача
+        Instant startUtc = toUtc(startTime, doctorZone);
+        Instant endUtc = toUtc(endTime, doctorZone);
+        checkRange(startUtc, endUtc);
+
+        // Проверка врача, пациента, пересечений у обоих и вставка - один запрос к БД
+        Integer visitId;
+        long insertStarted = System.nanoTime();
         try {
-            startTime = LocalDateTime.parse(request.start(), FORMATTER);
-            endTime = LocalDateTime.parse(request.end(), FORMATTER);
-        } catch (DateTimeParseException e) {
-            throw new InvalidTimeFormatException("Invalid date format. Expected format: yyyy-MM-dd HH:mm:ss");
+            visitId = visitBookingRepo.insertIfFree(request.doctorId(), timezone, request.patientId(), startUtc, endUtc);
+        } catch (DataIntegrityViolationException e) {
+            // Диапазон уже проверен, остаются внешние ключи: врача или пациента удалили после выборки
+            doctorRepo.findById(request.doctorId()).orElseThrow(() -> doctorNotFound(request.doctorId()));
+            findPatient(request.patientId());
+            throw e;
+        } finally {
+            event.insertTime += System.nanoTime() - insertStarted;
         }
-
-        if (endTime.isBefore(startTime)) {
-            throw new InvalidTimeRangeException("Start time must be before end time");
+        if (visitId == null) {
+            long checkStarted = System.nanoTime();
+            try {
+                return explainRejectedBooking(request, timezone, startUtc, endUtc, event, attempt);
+            } finally {
+                event.checkTime += System.nanoTime() - checkStarted;
+            }
         }
 
-        // Добавляем таймзону врача
-        ZonedDateTime startZoned = startTime.atZone(doctorZone);
-        ZonedDateTime endZoned = endTime.atZone(doctorZone);
+        Visit saved = new Visit(visitId, startUtc, endUtc,
+                new Patient(request.patientId(), null, null),
+                new Doctor(request.doctorId(), null, null, timezone, null));
+        doctorStatsService.recordVisit(saved);
+        eventPublisher.publishEvent(new VisitCreatedEvent(saved));
+        return new VisitResponse(saved);
+    }
+
+    /**
+     * Прогрев: бронирование прямым путем (без пайплайна) в транзакции, которая всегда
+     * откатывается. Врач и пациент синтетические и создаются в той же транзакции на шарде 0,
+     * поэтому блокировки и счетчики прогрева не задевают живые бронирования. Строки, журнал
+     * изменений и счетчики откатываются вместе с визитом, а слушатели после коммита не вызываются.
+     */
+    public void warmUpBooking(String start, String end) {
+        shardRouter.runOnShard(0, () -> bookingTransactions.execute(status -> {
+            status.setRollbackOnly();
+            Doctor doctor = doctorRepo.save(new Doctor(null, "Warm-up", "Doctor", WARM_UP_TIMEZONE, null));
+            Patient patient = patientRepo.save(new Patient(null, "Warm-up", "Patient"));
+            try {
+                bookVisit(new VisitRequest(start, end, patient.getId(), doctor.getId()), new BookingJfrEvent());
+            } finally {
+                // Откаченный врач не должен остаться в кеше таймзон
+                doctorTimezones.evict(doctor.getId());
+            }
+            return null;
+        }));
+    }
 
-        // Переводим в UTC
-        Instant startUtc = startZoned.toInstant();
-        Instant endUtc = endZoned.toInstant();
+    /**
+     * Редкий путь: вставка ничего не вставила, причину выясняют отдельные запросы. Под
+     * READ COMMITTED строки, не прошедшие WHERE вставки, не остаются заблокированными, поэтому
+     * мешавший визит к этому моменту мог исчезнуть (откат, удаление) - тогда бронирование
+     * повторяется, не более {@link #MAX_BOOKING_ATTEMPTS} раз.
+     */
+    private VisitResponse explainRejectedBooking(VisitRequest request, String timezone, Instant startUtc, Instant endUtc,
+                                                 BookingJfrEvent event, int attempt) {
+        Doctor doctor = doctorRepo.findById(request.doctorId())
+                .orElseThrow(() -> doctorNotFound(request.doctorId()));
+        Patient patient = findPatient(request.patientId());
+        if (!doctor.getTimezone().equals(timezone)) {
+            doctorTimezones.evict(request.doctorId());
+        } else if (visitRepo.existsByDoctorAndTimeOverlap(doctor, startUtc, endUtc)) {
+            throw doctorBooked();
+        } else if (visitRepo.existsByPatientAndTimeOverlap(patient, startUtc, endUtc)) {
+            throw patientBooked();
+        }
+        if (attempt >= MAX_BOOKING_ATTEMPTS) {
+            throw new IllegalStateException("Booking rejected " + attempt + " times without a conflicting visit");
+        }
+        return bookVisit(request, event, attempt + 1);
+    }
 
-        // Проверяем пересечение с уже существующими визитами
-        if (visitRepo.existsByDoctorAndTimeOverlap(doctor, startUtc, endUtc)) {
-            throw new BrookedTimeException("Doctor is already booked at this time");
+    private static String bookingOutcome(RuntimeException e) {
+        if (e instanceof BrookedTimeException) {
+            return PATIENT_BOOKED.equals(e.getMessage()) ? "patient-booked" : "doctor-booked";
         }
+        if (e instanceof NotFoundException) {
+            return "not-found";
+        }
+        if (e instanceof InvalidTimeFormatException || e instanceof InvalidTimeRangeException) {
+            return "invalid-time";
+        }
+        return e instanceof PessimisticLockingFailureException ? "lock-failure" : "error";
+    }
 
-        Visit visit = new Visit();
-        visit.setStartDateTime(startUtc);
-        visit.setEndDateTime(endUtc);
-        visit.setPatient(patient);
-        visit.setDoctor(doctor);
+    /**
+     * from/to (могут быть null) ограничивают даты визитов в таймзоне врача. Такой список
+     * строится только SQL-пайплайном: read-модель хранит лишь последний визит пары.
+     */
+    public RootDto findPatientsWithLastVisits(String search, Set<Integer> doctorIds, LocalDate from, LocalDate to,
+                                              Pageable pageable) {
+        boolean dateFiltered = from != null || to != null;
+        if (from != null && to != null && from.isAfter(to)) {
+            throw new InvalidTimeRangeException("From date must not be after to date");
+        }
+        ListingJfrEvent event = new ListingJfrEvent();
+        event.begin();
+        RootDto result;
+        if (!dateFiltered && listingReadModel.isReady()) {
+            // Токен модели - до какого seq она применила журнал; берется до чтения
+            String syncToken = listingReadModel.syncToken();
+            long queryStarted = System.nanoTime();
+            result = new RootDto(listingReadModel.find(search, doctorIds, pageable), syncToken);
+            event.queryTime = System.nanoTime() - queryStarted;
+            // Модель сразу собирает DTO: для Server-Timing это маппинг
+            RequestTimings.recordMapping(event.queryTime);
+            event.source = "read-model";
+        } else {
+            // Токен берется до выборки: изменения между ними клиент получит в следующей дельте еще раз
+            String syncToken = visitChangeService.currentToken();
+            long jdbcMark = RequestTimings.jdbcMark();
+            long queryStarted = System.nanoTime();
+            if (dateFiltered || listingPipeline.isEnabled()) {
+                // Пайплайн сразу собирает DTO: маппинг входит в queryTime
+                result = new RootDto(listingPipeline.find(search, doctorIds, from, to, pageable), syncToken);
+                event.queryTime = System.nanoTime() - queryStarted;
+                event.source = "pipeline";
+            } else {
+                Page<Object[]> rows = findPatientsWithLastVisitsInDb(search, doctorIds, pageable);
+                long mappingStarted = System.nanoTime();
+                result = new RootDto(groupByPatient(rows), syncToken);
+                event.queryTime = mappingStarted - queryStarted;
+                event.mappingTime = System.nanoTime() - mappingStarted;
+                RequestTimings.recordMapping(event.mappingTime);
+                event.source = "database";
+            }
+            RequestTimings.recordQuery(event.queryTime, jdbcMark);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.search = search;
+            event.doctorIds = doctorIds == null ? null : doctorIds.toString();
+            event.dateRange = dateFiltered ? from + ".." + to : null;
+            event.page = pageable.getPageNumber();
+            event.size = pageable.getPageSize();
+            event.rows = result.getData().stream().mapToInt(patient -> patient.getLastVisits().size()).sum();
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Проверка согласованности: случайная страница read-модели сравнивается со списком из БД,
+     * затем так же - первая страница поиска по части фамилии с этой страницы (без диакритики,
+     * чтобы проверить и сравнение поиска). При расхождении модель пересобирается. Изменения
+     * других экземпляров сюда не относятся - их применяет догон по журналу в {@link ListingReadModel}.
+     */
+    @Scheduled(fixedDelayString = "${visit.read-model.verify-interval-ms:300000}",
+            initialDelayString = "${visit.read-model.verify-interval-ms:300000}")
+    void verifyReadModel() {
+        if (!listingReadModel.isReady()) {
+            return;
+        }
+        // Сначала догон: отставание от журнала расхождением не считается
+        listingReadModel.catchUp();
+        int size = listingReadModel.verifySize();
+        // Страницы режутся по строкам "пациент-врач", не по пациентам
+        int pages = Math.max(1, (listingReadModel.rowCount() + size - 1) / size);
+        Pageable pageable = PageRequest.of(ThreadLocalRandom.current().nextInt(pages), size);
+        List<PatientDto> page = verifiedPage(null, pageable);
+        if (page == null) {
+            log.warn("Listing read model differs from the database on page {}, rebuilding", pageable.getPageNumber());
+            listingReadModel.rebuild();
+            return;
+        }
+        if (page.isEmpty()) {
+            return;
+        }
+        String lastName = NameCollation.searchKey(page.get(ThreadLocalRandom.current().nextInt(page.size())).getLastName());
+        String search = lastName.substring(0, Math.min(3, lastName.length()));
+        if (!search.isEmpty() && verifiedPage(search, PageRequest.of(0, size)) == null) {
+            log.warn("Listing read model differs from the database for search '{}', rebuilding", search);
+            listingReadModel.rebuild();
+        }
+    }
 
-        return new VisitResponse(visitRepo.save(visit));
+    // Страница read-модели, если она совпала со списком из БД, иначе null
+    private List<PatientDto> verifiedPage(String search, Pageable pageable) {
+        List<PatientDto> before = listingReadModel.find(search, null, pageable);
+        List<PatientDto> fromDb = listingPipeline.isEnabled()
+                ? listingPipeline.find(search, null, pageable)
+                : groupByPatient(findPatientsWithLastVisitsInDb(search, null, pageable));
+        List<PatientDto> after = listingReadModel.find(search, null, pageable);
+        // Бронирование между чтениями дает расхождение только с одной из копий модели
+        return fromDb.equals(before) || fromDb.equals(after) ? fromDb : null;
     }
 
-    public RootDto findPatientsWithLastVisits(String search, Set<Integer> doctorIds, Pageable pageable) {
-        Page<Object[]> results = visitRepo.findPatientsWithLastVisits(search, doctorIds, pageable);
+    public VisitChangesDto findChangedPatients(String since, String search, Set<Integer> doctorIds) {
+        String syncToken = visitChangeService.currentToken();
+        Set<Integer> patientIds = visitChangeService.findChangedPatients(since);
+        if (patientIds == null) {
+            return new VisitChangesDto(List.of(), 0, syncToken, true);
+        }
+        if (patientIds.isEmpty()) {
+            return new VisitChangesDto(List.of(), 0, syncToken, false);
+        }
+        // Визиты пациента могут быть на любом шарде
+        List<Object[]> rows = new ArrayList<>();
+        shardRouter.onShards(shardRouter.shardsOf(doctorIds),
+                shard -> visitRepo.findLastVisitsOfPatients(patientIds, VisitRepository.escapeLike(search), doctorIds)).forEach(rows::addAll);
+        if (shardRouter.shardCount() > 1) {
+            rows.sort(LISTING_ORDER);
+        }
+        List<PatientDto> patients = groupByPatient(rows);
+        return new VisitChangesDto(patients, patients.size(), syncToken, false);
+    }
 
+    private List<PatientDto> groupByPatient(Iterable<Object[]> results) {
         // Группируем визиты по пациентам
         Map<Integer, PatientDto> patientMap = new LinkedHashMap<>();
 
@@ -108,9 +359,75 @@ public class VisitService {
             ).getLastVisits().add(visitDto);
         }
 
-        return new RootDto(new ArrayList<>(patientMap.values()));
+        return new ArrayList<>(patientMap.values());
     }
+
+    private Page<Object[]> findPatientsWithLastVisitsInDb(String search, Set<Integer> doctorIds, Pageable pageable) {
+        return shardRouter.shardCount() == 1
+                ? visitRepo.findPatientsWithLastVisits(VisitRepository.escapeLike(search), doctorIds, pageable)
+                : findPatientsWithLastVisitsOnShards(search, doctorIds, pageable);
+    }
+
+    private Page<Object[]> findPatientsWithLastVisitsOnShards(String search, Set<Integer> doctorIds, Pageable pageable) {
+        // Каждый шард отдает первые offset + size строк в общем порядке, страница режется после слияния
+        Pageable window = PageRequest.of(0, (int) pageable.getOffset() + pageable.getPageSize());
+        List<Page<Object[]>> pages = shardRouter.onShards(shardRouter.shardsOf(doctorIds),
+                shard -> visitRepo.findPatientsWithLastVisits(VisitRepository.escapeLike(search), doctorIds, window));
+
+        List<Object[]> rows = new ArrayList<>();
+        long total = 0;
+        for (Page<Object[]> page : pages) {
+            rows.addAll(page.getContent());
+            total += page.getTotalElements();
+        }
+        rows.sort(LISTING_ORDER);
+        int from = (int) Math.min(pageable.getOffset(), rows.size());
+        int to = Math.min(from + pageable.getPageSize(), rows.size());
+        return new PageImpl<>(rows.subList(from, to), pageable, total);
+    }
+
+    private Patient findPatient(Integer patientId) {
+        return patientRepo.findById(patientId).orElseThrow(() -> patientNotFound(patientId));
+    }
+
     private String formatDate(Instant instant, String timezone) {
-        return FORMATTER.withZone(ZoneId.of(timezone)).format(instant);
+        return TimestampCodec.forZone(timezone).format(instant);
+    }
+
+    static NotFoundException doctorNotFound(Integer doctorId) {
+        return new NotFoundException("Doctor with " + doctorId + " not found");
+    }
+
+    static NotFoundException patientNotFound(Integer patientId) {
+        return new NotFoundException("Patient with " + patientId + " not found");
+    }
+
+    static BrookedTimeException doctorBooked() {
+        return new BrookedTimeException("Doctor is already booked at this time");
+    }
+
+    static BrookedTimeException patientBooked() {
+        return new BrookedTimeException(PATIENT_BOOKED);
+    }
+
+    static long parseDateTime(String value) {
+        return TimestampCodec.parseLocal(value);
+    }
+
+    static void checkRange(long startTime, long endTime) {
+        if (endTime <= startTime) {
+            throw new InvalidTimeRangeException("Start time must be before end time");
+        }
+    }
+
+    // Локальный интервал может развернуться в UTC, если начало попало в "дыру" перехода на летнее время
+    static void checkRange(Instant startUtc, Instant endUtc) {
+        if (!startUtc.isBefore(endUtc)) {
+            throw new InvalidTimeRangeException("Start time must be before end time");
+        }
+    }
+
+    static Instant toUtc(long localDateTime, TimestampCodec zone) {
+        return Instant.ofEpochSecond(zone.toUtc(localDateTime));
     }
 }
@@ -0,0 +1,153 @@
+package com.kettlebell.visittracking.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import jakarta.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerInitializedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Прогрев после старта: синтетические запросы списка пациентов через HTTP (JIT, планы
+ * JPQL, сериализаторы Jackson) и бронирования синтетических врача и пациента в откатываемой
+ * транзакции (живые строки не блокируются). Пока прогрев идет,
+ * индикатор warmUp в группе readiness отдает OUT_OF_SERVICE; по истечении budget прогрев
+ * прерывается и готовность включается. Без HTTP-сервера (MockMvc) прогрев не запускается.
+ */
+@Slf4j
+@Component
+public class WarmUp implements HealthIndicator {
+    // id - заглушки для разбора и валидации: бронируются синтетические врач и пациент
+    private static final VisitRequest BOOKING = new VisitRequest("2099-01-05 10:00:00", "2099-01-05 10:30:00", 1, 1);
+    private static final List<String> LISTING_URIS = List.of(
+            "/api/visits?page=0&size=10",
+            "/api/visits?page=1&size=20&search=a",
+            "/api/visits?size=10&doctorIds=1,2",
+            "/api/visits?size=10&from=2024-01-01&to=2024-12-31");
+
+    private final VisitService visitService;
+    private final RestClient.Builder restClientBuilder;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final boolean enabled;
+    private final Duration budget;
+    private final int iterations;
+    private volatile int port;
+    private volatile String state = "pending";
+    private volatile long startedAt;
+    private volatile long durationMs;
+    // Счетчики пишет только поток прогрева
+    private volatile int listingCalls;
+    private volatile int bookingCalls;
+    private volatile int failures;
+
+    public WarmUp(VisitService visitService,
+                  RestClient.Builder restClientBuilder,
+                  ObjectMapper objectMapper,
+                  Validator validator,
+                  @Value("${visit.warmup.enabled:true}") boolean enabled,
+                  @Value("${visit.warmup.budget:30s}") Duration budget,
+                  @Value("${visit.warmup.iterations:1000}") int iterations) {
+        this.visitService = visitService;
+        this.restClientBuilder = restClientBuilder;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.enabled = enabled;
+        this.budget = budget;
+        this.iterations = iterations;
+    }
+
+    @EventListener
+    void onWebServerInitialized(WebServerInitializedEvent event) {
+        // Сервер actuator на отдельном порту имеет свое пространство имен
+        if (event.getApplicationContext().getServerNamespace() == null) {
+            port = event.getWebServer().getPort();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    void startOnReady() {
+        if (!enabled || port <= 0) {
+            state = enabled ? "skipped" : "disabled";
+            return;
+        }
+        state = "running";
+        startedAt = System.nanoTime();
+        Thread thread = new Thread(this::run, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Health health() {
+        return switch (state) {
+            case "pending", "running" -> Health.outOfService()
+                    .withDetail("state", state)
+                    .withDetail("elapsedMs", startedAt == 0 ? 0 : (System.nanoTime() - startedAt) / 1_000_000)
+                    .build();
+            default -> Health.up()
+                    .withDetail("state", state)
+                    .withDetail("durationMs", durationMs)
+                    .withDetail("listingCalls", listingCalls)
+                    .withDetail("bookingCalls", bookingCalls)
+                    .withDetail("failures", failures)
+                    .build();
+        };
+    }
+
+    private void run() {
+        long deadline = startedAt + budget.toNanos();
+        try {
+            RestClient client = restClientBuilder.baseUrl("http://localhost:" + port).build();
+            for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+                callListing(client, LISTING_URIS.get(i % LISTING_URIS.size()), i % 8 == 7);
+                if (System.nanoTime() < deadline) {
+                    callBooking(BOOKING);
+                }
+            }
+            state = System.nanoTime() < deadline ? "done" : "budget-exhausted";
+        } catch (RuntimeException e) {
+            log.warn("Warm-up aborted", e);
+            state = "failed";
+        } finally {
+            durationMs = (System.nanoTime() - startedAt) / 1_000_000;
+            log.info("Warm-up {} in {} ms: {} listing and {} booking calls, {} failures",
+                    state, durationMs, listingCalls, bookingCalls, failures);
+        }
+    }
+
+    private void callListing(RestClient client, String uri, boolean compact) {
+        try {
+            client.get().uri(uri)
+                    .accept(compact ? MediaType.APPLICATION_CBOR : MediaType.APPLICATION_JSON)
+                    .retrieve()
+                    .toBodilessEntity();
+            listingCalls++;
+        } catch (RuntimeException e) {
+            // В т.ч. 503 от admission control: прогрев продолжается
+            failures++;
+        }
+    }
+
+    private void callBooking(VisitRequest request) {
+        try {
+            // То, что для POST /api/visits делает контроллер: разбор JSON и валидация
+            VisitRequest parsed = objectMapper.readValue(objectMapper.writeValueAsBytes(request), VisitRequest.class);
+            validator.validate(parsed);
+            visitService.warmUpBooking(parsed.start(), parsed.end());
+            bookingCalls++;
+        } catch (Exception e) {
+            failures++;
+        }
+    }
+}
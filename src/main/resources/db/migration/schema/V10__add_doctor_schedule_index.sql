@@ -0,0 +1,2 @@
+-- Расписание врача на день: диапазон по началу внутри doctor_id, остальные поля (и id) - из индекса
+CREATE INDEX idx_visit_doctor_start_end_patient ON visits (doctor_id, start_date_time, end_date_time, patient_id);
@@ -0,0 +1,2 @@
+-- Проверка пересечений у пациента при бронировании: диапазон по началу внутри patient_id, окончание - из индекса
+CREATE INDEX idx_visit_patient_start_end ON visits (patient_id, start_date_time, end_date_time);
@@ -0,0 +1,2 @@
+-- Хеш тела запроса: повтор ключа с другим телом отклоняется; у старых ключей хеша нет
+ALTER TABLE idempotency_keys ADD COLUMN request_hash CHAR(64) NULL AFTER idempotency_key;
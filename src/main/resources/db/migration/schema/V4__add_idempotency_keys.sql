@@ -0,0 +1,7 @@
+CREATE TABLE idempotency_keys (
+                                  idempotency_key VARCHAR(64) PRIMARY KEY,
+                                  visit_id INT NULL,
+                                  created_at DATETIME NOT NULL
+);
+
+CREATE INDEX idx_idempotency_created_at ON idempotency_keys (created_at);
@@ -0,0 +1,19 @@
+CREATE TABLE doctor_daily_stats (
+                                    doctor_id INT NOT NULL,
+                                    local_date DATE NOT NULL,
+                                    visits_count INT NOT NULL,
+                                    booked_seconds BIGINT NOT NULL,
+                                    unique_patients INT NOT NULL,
+                                    PRIMARY KEY (doctor_id, local_date),
+                                    CONSTRAINT fk_stats_doctor FOREIGN KEY (doctor_id) REFERENCES doctors(id) ON DELETE CASCADE
+);
+
+-- Какие пациенты уже учтены в unique_patients за день врача
+CREATE TABLE doctor_daily_patients (
+                                       doctor_id INT NOT NULL,
+                                       local_date DATE NOT NULL,
+                                       patient_id INT NOT NULL,
+                                       PRIMARY KEY (doctor_id, local_date, patient_id),
+                                       CONSTRAINT fk_daily_patient_doctor FOREIGN KEY (doctor_id) REFERENCES doctors(id) ON DELETE CASCADE,
+                                       CONSTRAINT fk_daily_patient_patient FOREIGN KEY (patient_id) REFERENCES patients(id) ON DELETE CASCADE
+);
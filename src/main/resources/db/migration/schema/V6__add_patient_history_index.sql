@@ -0,0 +1,2 @@
+-- Keyset-пагинация истории пациента: (start_date_time DESC, id DESC) внутри patient_id
+CREATE INDEX idx_visit_patient_start_id ON visits (patient_id, start_date_time DESC, id DESC);
@@ -0,0 +1,7 @@
+-- Журнал изменений для delta-sync: seq растет монотонно, клиент хранит последний увиденный
+CREATE TABLE visit_changes (
+                               seq BIGINT AUTO_INCREMENT PRIMARY KEY,
+                               patient_id INT NOT NULL,
+                               doctor_id INT NOT NULL,
+                               changed_at DATETIME(3) NOT NULL
+);
@@ -0,0 +1,2 @@
+-- Число уникальных пациентов врача (COUNT DISTINCT patient_id) без чтения строк визитов
+CREATE INDEX idx_visit_doctor_patient ON visits (doctor_id, patient_id);
@@ -0,0 +1,2 @@
+-- Список с фильтром по датам: диапазон по началу визита, пациент и врач берутся из индекса
+CREATE INDEX idx_visit_start_patient_doctor ON visits (start_date_time, patient_id, doctor_id);
@@ -0,0 +1,102 @@
+package com.kettlebell.visittracking.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import com.kettlebell.visittracking.controller.dto.CompactRootDto;
+import com.kettlebell.visittracking.controller.dto.DoctorDto;
+import com.kettlebell.visittracking.controller.dto.PatientDto;
+import com.kettlebell.visittracking.controller.dto.RootDto;
+import com.kettlebell.visittracking.controller.dto.VisitDto;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сериализация страницы списка (100 пациентов по 3 визита, 20 врачей): текущий JSON против
+ * CBOR/Smile и варианта с таблицей врачей. Размеры ответов печатаются при старте:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.args="ListingSerialization -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingSerializationBenchmark {
+    private final ObjectMapper json = new ObjectMapper();
+    private final CBORMapper cbor = new CBORMapper();
+    private final SmileMapper smile = new SmileMapper();
+    private RootDto root;
+    private CompactRootDto compact;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        String[] timezones = {"America/New_York", "Europe/London", "Asia/Tokyo", "Europe/Berlin"};
+        List<DoctorDto> doctors = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            doctors.add(new DoctorDto("Doctor" + i, "Lastname" + timezones[i % timezones.length].length(), 100L + i));
+        }
+        List<PatientDto> patients = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            List<VisitDto> visits = new ArrayList<>();
+            for (int v = 0; v < 3; v++) {
+                int day = 1 + random.nextInt(28);
+                int hour = 8 + random.nextInt(9);
+                visits.add(new VisitDto(
+                        String.format("2024-02-%02d %02d:00:00", day, hour),
+                        String.format("2024-02-%02d %02d:30:00", day, hour),
+                        doctors.get(random.nextInt(doctors.size()))));
+            }
+            patients.add(new PatientDto("Patient" + i, "Surname" + (i % 37), visits));
+        }
+        root = new RootDto(patients, "MTIzNDU2");
+        compact = CompactRootDto.of(root);
+
+        System.out.printf("%nPayload bytes: json %d, json+doctor table %d, cbor %d, cbor+doctor table %d, "
+                        + "smile %d, smile+doctor table %d%n",
+                json.writeValueAsBytes(root).length, json.writeValueAsBytes(compact).length,
+                cbor.writeValueAsBytes(root).length, cbor.writeValueAsBytes(compact).length,
+                smile.writeValueAsBytes(root).length, smile.writeValueAsBytes(compact).length);
+    }
+
+    @Benchmark
+    public byte[] json() throws Exception {
+        return json.writeValueAsBytes(root);
+    }
+
+    // Вариант с таблицей врачей включает и стоимость преобразования RootDto
+    @Benchmark
+    public byte[] jsonCompact() throws Exception {
+        return json.writeValueAsBytes(CompactRootDto.of(root));
+    }
+
+    @Benchmark
+    public byte[] cbor() throws Exception {
+        return cbor.writeValueAsBytes(root);
+    }
+
+    @Benchmark
+    public byte[] cborCompact() throws Exception {
+        return cbor.writeValueAsBytes(CompactRootDto.of(root));
+    }
+
+    @Benchmark
+    public byte[] smile() throws Exception {
+        return smile.writeValueAsBytes(root);
+    }
+
+    @Benchmark
+    public byte[] smileCompact() throws Exception {
+        return smile.writeValueAsBytes(CompactRootDto.of(root));
+    }
+
+    @Benchmark
+    public CompactRootDto compactConversion() {
+        return CompactRootDto.of(root);
+    }
+}
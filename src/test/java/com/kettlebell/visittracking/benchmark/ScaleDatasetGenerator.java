@@ -0,0 +1,296 @@
+package com.kettlebell.visittracking.benchmark;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.sql.*;
+import java.time.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Генератор большого набора данных: врачи в разных таймзонах, пациенты и непересекающиеся
+ * визиты, загружаемые многострочными INSERT ступенями (steps - общее число визитов после
+ * ступени). После каждой ступени печатаются задержки GET /api/visits на нескольких видах
+ * запроса и время БД из Server-Timing. Схема создается приложением (Flyway), данные
+ * добавляются к существующим. Приложение запускается на той же БД с
+ * visit.read-model.enabled=false, иначе список отдается из памяти, а генератор пишет визиты
+ * мимо журнала visit_changes и модель их не увидит;
+ * visit.listing.pipeline.enabled выбирает, какой SQL-путь измеряется:
+ * mvn -Pscale test-compile exec:exec -Dscale.args="doctors=500 patients=200000 steps=100000,1000000,10000000"
+ */
+public class ScaleDatasetGenerator {
+    private static final String[] TIMEZONES = {
+            "America/New_York", "America/Chicago", "America/Denver", "America/Los_Angeles", "America/Sao_Paulo",
+            "Europe/London", "Europe/Berlin", "Europe/Kyiv", "Africa/Cairo", "Asia/Dubai", "Asia/Kolkata",
+            "Asia/Singapore", "Asia/Tokyo", "Australia/Sydney", "Pacific/Auckland", "Pacific/Honolulu"};
+    private static final String[] FIRST_NAMES = {
+            "Olivia", "Liam", "Emma", "Noah", "Ava", "Elijah", "Sophia", "James", "Mia", "Lucas", "Amelia",
+            "Mason", "Harper", "Ethan", "Evelyn", "Aiden", "Anna", "Ivan", "Maria", "Oleksandr", "Yuki", "Hiro"};
+    private static final String[] LAST_NAMES = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+            "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Thompson", "White",
+            "Harris", "Clark", "Lewis", "Walker", "Young", "Allen", "King", "Wright", "Scott", "Nguyen",
+            "Kovalenko", "Shevchenko", "Tanaka", "Sato", "Muller", "Schmidt", "O'Neil", "Dubois", "Rossi", "Silva"};
+    // Визит укладывается в получасовой слот UTC: пересечений нет ни у врача, ни у пациента.
+    // Таймзоны со смещением, не кратным 30 минутам (Asia/Kathmandu), в список не входят
+    private static final long SLOT_SECONDS = 30 * 60;
+    private static final int FIRST_HOUR = 8;
+    private static final int LAST_HOUR = 18;
+    private static final Pattern DB_TIMING = Pattern.compile("db;dur=([0-9.]+)");
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final List<Integer> doctorIds = new ArrayList<>();
+    private final List<ZoneId> doctorZones = new ArrayList<>();
+    private final List<Integer> patientIds = new ArrayList<>();
+    private LocalDate firstDay;
+    private Instant slot;
+    private long visits;
+
+    private ScaleDatasetGenerator(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(Long.parseLong(option("seed", "42")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.contains("=")) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new ScaleDatasetGenerator(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private void run() throws Exception {
+        int doctors = Integer.parseInt(option("doctors", "200"));
+        int patients = Integer.parseInt(option("patients", "100000"));
+        if (patients < doctors) {
+            // В одном слоте у каждого врача свой пациент
+            throw new IllegalArgumentException("patients must not be less than doctors");
+        }
+        long[] steps = Arrays.stream(option("steps", "100000,1000000").split(","))
+                .mapToLong(step -> Long.parseLong(step.trim())).sorted().toArray();
+        double occupancy = Double.parseDouble(option("occupancy", "0.7"));
+        int batchSize = Integer.parseInt(option("batch", "1000"));
+        firstDay = LocalDate.parse(option("start", "2020-01-06"));
+        slot = firstDay.atStartOfDay(ZoneOffset.UTC).toInstant();
+
+        try (Connection connection = DriverManager.getConnection(
+                option("url", "jdbc:mysql://localhost:3306/clinic"),
+                option("user", "user"),
+                option("password", "password"))) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                // Ссылки на врачей и пациентов верны по построению: проверка внешних ключей только тормозит загрузку
+                statement.execute("SET foreign_key_checks = 0");
+            }
+            long started = System.nanoTime();
+            insertDoctors(connection, doctors, batchSize);
+            insertPatients(connection, patients, batchSize);
+            System.out.printf("Inserted %d doctors and %d patients in %.1f s%n",
+                    doctors, patients, (System.nanoTime() - started) / 1e9);
+
+            for (long target : steps) {
+                started = System.nanoTime();
+                long before = visits;
+                insertVisits(connection, target, occupancy, batchSize);
+                double seconds = (System.nanoTime() - started) / 1e9;
+                try (Statement statement = connection.createStatement()) {
+                    // Статистика оптимизатора после массовой загрузки, как у давно живущей таблицы
+                    statement.execute("ANALYZE TABLE visits");
+                }
+                System.out.printf("%nStep %d visits: loaded %d in %.1f s (%.0f rows/s), visits up to %s%n",
+                        visits, visits - before, seconds, (visits - before) / seconds, slot);
+                measure();
+            }
+        }
+    }
+
+    private void insertDoctors(Connection connection, int count, int batchSize) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String timezone = TIMEZONES[i % TIMEZONES.length];
+            rows.add(new Object[]{pick(FIRST_NAMES), pick(LAST_NAMES), timezone});
+            doctorZones.add(ZoneId.of(timezone));
+        }
+        doctorIds.addAll(insertReturningIds(connection, "doctors (first_name, last_name, timezone)", rows, batchSize));
+    }
+
+    private void insertPatients(Connection connection, int count, int batchSize) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(batchSize);
+        for (int i = 0; i < count; i++) {
+            rows.add(new Object[]{pick(FIRST_NAMES), pick(LAST_NAMES)});
+            if (rows.size() == batchSize || i == count - 1) {
+                patientIds.addAll(insertReturningIds(connection, "patients (first_name, last_name)", rows, batchSize));
+                rows.clear();
+            }
+        }
+    }
+
+    private List<Integer> insertReturningIds(Connection connection, String table, List<Object[]> rows, int batchSize)
+            throws SQLException {
+        List<Integer> ids = new ArrayList<>(rows.size());
+        for (int from = 0; from < rows.size(); from += batchSize) {
+            List<Object[]> batch = rows.subList(from, Math.min(from + batchSize, rows.size()));
+            try (PreparedStatement statement = connection.prepareStatement(
+                    insertSql(table, batch.size(), batch.get(0).length), Statement.RETURN_GENERATED_KEYS)) {
+                bind(statement, batch);
+                statement.executeUpdate();
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    while (keys.next()) {
+                        ids.add(keys.getInt(1));
+                    }
+                }
+            }
+            connection.commit();
+        }
+        return ids;
+    }
+
+    // Слоты UTC по порядку; у врача визит в слоте с вероятностью occupancy, если у него рабочий час буднего дня
+    private void insertVisits(Connection connection, long target, double occupancy, int batchSize) throws SQLException {
+        List<Object[]> rows = new ArrayList<>(batchSize);
+        Set<Integer> busyPatients = new HashSet<>();
+        try (PreparedStatement fullBatch = connection.prepareStatement(
+                insertSql("visits (start_date_time, end_date_time, patient_id, doctor_id)", batchSize, 4))) {
+            while (visits < target) {
+                busyPatients.clear();
+                for (int d = 0; d < doctorIds.size() && visits < target; d++) {
+                    if (!isWorkingSlot(doctorZones.get(d), slot) || random.nextDouble() >= occupancy) {
+                        continue;
+                    }
+                    int patientId;
+                    do {
+                        patientId = patientIds.get(random.nextInt(patientIds.size()));
+                    } while (!busyPatients.add(patientId));
+                    Instant end = slot.plusSeconds(random.nextBoolean() ? SLOT_SECONDS : SLOT_SECONDS / 2);
+                    rows.add(new Object[]{
+                            LocalDateTime.ofInstant(slot, ZoneOffset.UTC),
+                            LocalDateTime.ofInstant(end, ZoneOffset.UTC),
+                            patientId,
+                            doctorIds.get(d)});
+                    visits++;
+                    if (rows.size() == batchSize) {
+                        bind(fullBatch, rows);
+                        fullBatch.executeUpdate();
+                        connection.commit();
+                        rows.clear();
+                    }
+                }
+                slot = slot.plusSeconds(SLOT_SECONDS);
+            }
+            if (!rows.isEmpty()) {
+                try (PreparedStatement lastBatch = connection.prepareStatement(
+                        insertSql("visits (start_date_time, end_date_time, patient_id, doctor_id)", rows.size(), 4))) {
+                    bind(lastBatch, rows);
+                    lastBatch.executeUpdate();
+                }
+                connection.commit();
+            }
+        }
+    }
+
+    private static boolean isWorkingSlot(ZoneId zone, Instant slot) {
+        long local = slot.getEpochSecond() + zone.getRules().getOffset(slot).getTotalSeconds();
+        long epochDay = Math.floorDiv(local, 86_400);
+        long hour = Math.floorMod(local, 86_400) / 3600;
+        // 1970-01-01 - четверг: 5 и 6 - суббота и воскресенье
+        long dayOfWeek = Math.floorMod(epochDay + 3, 7);
+        return dayOfWeek < 5 && hour >= FIRST_HOUR && hour < LAST_HOUR;
+    }
+
+    private static String insertSql(String table, int rows, int columns) {
+        String row = "(" + String.join(", ", Collections.nCopies(columns, "?")) + ")";
+        return "INSERT INTO " + table + " VALUES " + String.join(", ", Collections.nCopies(rows, row));
+    }
+
+    private static void bind(PreparedStatement statement, List<Object[]> rows) throws SQLException {
+        int index = 1;
+        for (Object[] row : rows) {
+            for (Object value : row) {
+                statement.setObject(index++, value);
+            }
+        }
+    }
+
+    private void measure() throws Exception {
+        int requests = Integer.parseInt(option("requests", "50"));
+        Duration budget = Duration.parse("PT" + option("query-budget", "60s"));
+        LocalDate lastDay = LocalDate.ofInstant(slot, ZoneOffset.UTC);
+        LocalDate weekFrom = firstDay.plusDays(random.nextInt((int) Math.max(1, lastDay.toEpochDay() - firstDay.toEpochDay())));
+        Map<String, String> queries = new LinkedHashMap<>();
+        queries.put("first-page", "page=0&size=10");
+        queries.put("deep-page", "page=1000&size=10");
+        queries.put("search", "search=son&size=10");
+        queries.put("doctors", "doctorIds=" + pick(doctorIds) + "," + pick(doctorIds) + "&size=10");
+        queries.put("date-range", "from=" + weekFrom + "&to=" + weekFrom.plusDays(6) + "&size=10");
+
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            URI uri = URI.create(option("api", "http://localhost:8080") + "/api/visits?" + query.getValue());
+            HttpRequest request = HttpRequest.newBuilder(uri).timeout(budget).GET().build();
+            List<Double> latencies = new ArrayList<>();
+            List<Double> dbTimes = new ArrayList<>();
+            int errors = 0;
+            // Первый запрос (разбор, план, холодный буфер) не учитывается, но входит в бюджет:
+            // на больших ступенях один запрос может идти минутами
+            long deadline = System.nanoTime() + budget.toNanos();
+            for (int i = -1; i < requests && System.nanoTime() < deadline; i++) {
+                long started = System.nanoTime();
+                HttpResponse<Void> response;
+                try {
+                    response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                } catch (HttpTimeoutException e) {
+                    errors++;
+                    continue;
+                }
+                if (i < 0) {
+                    continue;
+                }
+                latencies.add((System.nanoTime() - started) / 1e6);
+                if (response.statusCode() != 200) {
+                    errors++;
+                }
+                Matcher db = DB_TIMING.matcher(response.headers().firstValue("Server-Timing").orElse(""));
+                if (db.find()) {
+                    dbTimes.add(Double.parseDouble(db.group(1)));
+                }
+            }
+            if (latencies.isEmpty()) {
+                System.out.printf("  %-10s over the %s budget on the first request, errors %d%n",
+                        query.getKey(), budget, errors);
+                continue;
+            }
+            Collections.sort(latencies);
+            Collections.sort(dbTimes);
+            System.out.printf("  %-10s n=%-4d p50 %8.1f ms  p95 %8.1f ms  p99 %8.1f ms  max %8.1f ms  db p50 %8.1f ms  errors %d%n",
+                    query.getKey(), latencies.size(), percentile(latencies, 0.50), percentile(latencies, 0.95),
+                    percentile(latencies, 0.99), latencies.get(latencies.size() - 1), percentile(dbTimes, 0.50), errors);
+        }
+    }
+
+    private static double percentile(List<Double> sorted, double quantile) {
+        if (sorted.isEmpty()) {
+            return Double.NaN;
+        }
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(quantile * sorted.size()) - 1));
+    }
+
+    private <T> T pick(T[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private <T> T pick(List<T> values) {
+        return values.get(random.nextInt(values.size()));
+    }
+}
@@ -0,0 +1,64 @@
+package com.kettlebell.visittracking.benchmark;
+
+import com.kettlebell.visittracking.service.TimestampCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор и форматирование времени визита: java.time (как было в VisitService) против TimestampCodec.
+ * Аллокации смотреть профилировщиком gc: mvn -Pbenchmark test-compile exec:exec -Dbenchmark.args="TimestampCodec -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampCodecBenchmark {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    @Param({"Europe/London", "America/New_York", "Asia/Tokyo"})
+    public String timezone;
+
+    private final String text = "2024-03-31 01:30:00";
+    private final char[] buffer = new char[32];
+    private Instant instant;
+    private TimestampCodec codec;
+
+    @Setup
+    public void setup() {
+        instant = Instant.parse("2024-03-31T01:30:00Z");
+        codec = TimestampCodec.forZone(timezone);
+    }
+
+    @Benchmark
+    public long parseJavaTime() {
+        return LocalDateTime.parse(text, FORMATTER).atZone(ZoneId.of(timezone)).toEpochSecond();
+    }
+
+    @Benchmark
+    public long parseCodec() {
+        return TimestampCodec.forZone(timezone).toUtc(TimestampCodec.parseLocal(text));
+    }
+
+    @Benchmark
+    public String formatJavaTime() {
+        return FORMATTER.withZone(ZoneId.of(timezone)).format(instant);
+    }
+
+    @Benchmark
+    public char[] formatCodecToBuffer() {
+        TimestampCodec.forZone(timezone).formatTo(instant.getEpochSecond(), buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public String formatCodecToString() {
+        return codec.format(instant);
+    }
+}
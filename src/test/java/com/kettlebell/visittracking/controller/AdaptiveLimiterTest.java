@@ -0,0 +1,136 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.exception.OverloadedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class AdaptiveLimiterTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService callers = Executors.newFixedThreadPool(16);
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    private static Bulkheads bulkheads(Duration queueTarget) {
+        return new Bulkheads(1, 2, queueTarget, 1, 2, queueTarget, Duration.ofSeconds(2));
+    }
+
+    // Занимает слоты лимитера до release
+    private void occupy(AdaptiveLimiter limiter, int permits) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(permits);
+        for (int i = 0; i < permits; i++) {
+            callers.submit(() -> limiter.call(() -> {
+                started.countDown();
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }));
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Запрос сверх цели ожидания отклоняется с 503 и Retry-After")
+    void shouldShedWithRetryAfter() throws Exception {
+        AdaptiveLimiter limiter = bulkheads(Duration.ofMillis(50)).write();
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new ProbeController(limiter))
+                .setControllerAdvice(new GlobalExceptionHandler())
+                .build();
+        occupy(limiter, 2);
+
+        mockMvc.perform(get("/probe"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "2"))
+                .andExpect(jsonPath("$.status").value(503));
+        assertEquals(1, limiter.limit());
+    }
+
+    @Test
+    @DisplayName("Под постоянной очередью лимит восстанавливается, пока ожидание ниже цели")
+    void shouldGrowLimitWhileQueueingBelowTarget() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("write", 1, 4, Duration.ofMillis(400), Duration.ofSeconds(1));
+        occupy(limiter, 4);
+        assertThrows(OverloadedException.class, () -> limiter.call(() -> null));
+        assertEquals(3, limiter.limit());
+        release.countDown();
+
+        // 16 потоков на 3 слота: почти каждый запрос стоит в очереди, но меньше половины цели
+        List<Future<?>> load = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            load.add(callers.submit(() -> {
+                for (int j = 0; j < 20; j++) {
+                    limiter.call(() -> {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    });
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : load) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(4, limiter.limit());
+    }
+
+    @Test
+    @DisplayName("Занятые слоты записи не задерживают чтение, и наоборот")
+    void shouldIsolateReadsFromWrites() throws Exception {
+        Bulkheads bulkheads = bulkheads(Duration.ofMillis(50));
+        occupy(bulkheads.write(), 2);
+        assertThrows(OverloadedException.class, () -> bulkheads.write().call(() -> null));
+        assertEquals("read", bulkheads.read().call(() -> "read"));
+
+        Bulkheads other = bulkheads(Duration.ofMillis(50));
+        occupy(other.read(), 2);
+        assertThrows(OverloadedException.class, () -> other.read().call(() -> null));
+        assertEquals("write", other.write().call(() -> "write"));
+    }
+
+    @RestController
+    static class ProbeController {
+        private final AdaptiveLimiter limiter;
+
+        ProbeController(AdaptiveLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        @GetMapping("/probe")
+        String probe() {
+            return limiter.call(() -> "ok");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.kettlebell.visittracking.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+@AutoConfigureMockMvc
+class DoctorControllerTest {
+
+    @Container
+    static MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0")
+            .withDatabaseName("testdb")
+            .withUsername("testuser")
+            .withPassword("testpass");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", mysql::getJdbcUrl);
+        registry.add("spring.datasource.username", mysql::getUsername);
+        registry.add("spring.datasource.password", mysql::getPassword);
+        registry.add("spring.flyway.url", mysql::getJdbcUrl);
+        registry.add("spring.flyway.user", mysql::getUsername);
+        registry.add("spring.flyway.password", mysql::getPassword);
+        registry.add("visit.warmup.enabled", () -> "false");
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private void book(String start, String end, Patient patient, Doctor doctor) throws Exception {
+        VisitRequest request = new VisitRequest(start, end, patient.getId(), doctor.getId());
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("Статистика врача обновляется при каждом бронировании, день - в таймзоне врача")
+    void shouldReturnDailyStatsInDoctorTimezone() throws Exception {
+        Patient patient1 = patientRepository.save(new Patient(null, "Stat", "One"));
+        Patient patient2 = patientRepository.save(new Patient(null, "Stat", "Two"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Stat", "Doctor", "Asia/Tokyo", null));
+
+        book("2024-02-12 09:00:00", "2024-02-12 09:30:00", patient1, doctor);
+        book("2024-02-12 10:00:00", "2024-02-12 10:45:00", patient1, doctor);
+        book("2024-02-12 23:30:00", "2024-02-13 00:30:00", patient2, doctor);
+        book("2024-02-13 08:00:00", "2024-02-13 08:20:00", patient2, doctor);
+
+        mockMvc.perform(get("/api/doctors/{id}/stats", doctor.getId())
+                        .param("from", "2024-02-12")
+                        .param("to", "2024-02-13"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.days.length()").value(2))
+                .andExpect(jsonPath("$.days[0].date").value("2024-02-12"))
+                .andExpect(jsonPath("$.days[0].visits").value(3))
+                .andExpect(jsonPath("$.days[0].bookedMinutes").value(135))
+                .andExpect(jsonPath("$.days[0].uniquePatients").value(2))
+                .andExpect(jsonPath("$.days[1].date").value("2024-02-13"))
+                .andExpect(jsonPath("$.days[1].visits").value(1))
+                .andExpect(jsonPath("$.days[1].uniquePatients").value(1));
+    }
+
+    @Test
+    void shouldReturnNotFoundForStatsOfUnknownDoctor() throws Exception {
+        mockMvc.perform(get("/api/doctors/{id}/stats", 9999)
+                        .param("from", "2024-02-12")
+                        .param("to", "2024-02-13"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message").value("Doctor with 9999 not found"));
+    }
+
+    @Test
+    void shouldReturnBadRequestWhenStatsRangeIsReversed() throws Exception {
+        mockMvc.perform(get("/api/doctors/{id}/stats", 1)
+                        .param("from", "2024-02-13")
+                        .param("to", "2024-02-12"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @DisplayName("Расписание врача на день: день и время - в таймзоне врача, с именами пациентов")
+    void shouldReturnDayScheduleInDoctorTimezone() throws Exception {
+        Patient patient1 = patientRepository.save(new Patient(null, "Day", "One"));
+        Patient patient2 = patientRepository.save(new Patient(null, "Day", "Two"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Day", "Doctor", "Asia/Tokyo", null));
+
+        book("2024-04-10 23:30:00", "2024-04-11 00:30:00", patient1, doctor);
+        book("2024-04-11 00:30:00", "2024-04-11 01:00:00", patient2, doctor);
+        book("2024-04-11 09:00:00", "2024-04-11 09:30:00", patient1, doctor);
+        book("2024-04-12 00:00:00", "2024-04-12 00:30:00", patient2, doctor);
+
+        mockMvc.perform(get("/api/doctors/{id}/visits", doctor.getId())
+                        .param("date", "2024-04-11"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.timezone").value("Asia/Tokyo"))
+                .andExpect(jsonPath("$.count").value(2))
+                .andExpect(jsonPath("$.data[0].start").value("2024-04-11 00:30:00"))
+                .andExpect(jsonPath("$.data[0].patientLastName").value("Two"))
+                .andExpect(jsonPath("$.data[1].start").value("2024-04-11 09:00:00"))
+                .andExpect(jsonPath("$.data[1].patientLastName").value("One"));
+    }
+
+    @Test
+    @DisplayName("После смены таймзоны врача день расписания считается в новой таймзоне")
+    void shouldUseCurrentTimezoneForDaySchedule() throws Exception {
+        Patient patient = patientRepository.save(new Patient(null, "Moved", "Patient"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Moved", "Doctor", "Asia/Tokyo", null));
+        // 09:00 в Токио - полночь UTC, 20:00 предыдущего дня в Нью-Йорке
+        book("2024-04-11 09:00:00", "2024-04-11 09:30:00", patient, doctor);
+        mockMvc.perform(get("/api/doctors/{id}/visits", doctor.getId())
+                        .param("date", "2024-04-11"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(1));
+
+        doctor.setTimezone("America/New_York");
+        doctorRepository.save(doctor);
+
+        mockMvc.perform(get("/api/doctors/{id}/visits", doctor.getId())
+                        .param("date", "2024-04-10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.timezone").value("America/New_York"))
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.data[0].start").value("2024-04-10 20:00:00"));
+    }
+
+    @Test
+    void shouldReturnNotFoundForDayScheduleOfUnknownDoctor() throws Exception {
+        mockMvc.perform(get("/api/doctors/{id}/visits", 9999)
+                        .param("date", "2024-04-11"))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message").value("Doctor with 9999 not found"));
+    }
+
+    @Test
+    @DisplayName("Поток расписания получает визиты врача после коммита, пачкой")
+    void shouldStreamCreatedVisitsToScheduleSubscribers() throws Exception {
+        Patient patient = patientRepository.save(new Patient(null, "Stream", "Patient"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Stream", "Doctor", "Europe/London", null));
+        Doctor other = doctorRepository.save(new Doctor(null, "Other", "Doctor", "Europe/London", null));
+        Patient otherPatient = patientRepository.save(new Patient(null, "Other", "Patient"));
+
+        MvcResult stream = mockMvc.perform(get("/api/doctors/{id}/schedule/stream", doctor.getId())
+                        .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        book("2024-03-01 09:00:00", "2024-03-01 09:30:00", patient, doctor);
+        book("2024-03-01 09:00:00", "2024-03-01 09:30:00", otherPatient, other);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String content = stream.getResponse().getContentAsString();
+        while (!content.contains("event:visits") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            content = stream.getResponse().getContentAsString();
+        }
+        assertTrue(content.contains("\"start\":\"2024-03-01 09:00:00\""), content);
+        assertEquals(1, content.split("visitId").length - 1, content);
+    }
+
+    @Test
+    void shouldReturnNotFoundForScheduleStreamOfUnknownDoctor() throws Exception {
+        mockMvc.perform(get("/api/doctors/{id}/schedule/stream", 9999)
+                        .accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.message").value("Doctor with 9999 not found"));
+    }
+}
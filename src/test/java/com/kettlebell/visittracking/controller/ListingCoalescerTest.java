@@ -0,0 +1,96 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.controller.dto.RootDto;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ListingCoalescerTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ListingCoalescer coalescer = new ListingCoalescer(meterRegistry);
+
+    private double count(String result) {
+        return meterRegistry.get("visit.listing.queries").tag("result", result).counter().count();
+    }
+
+    @Test
+    @DisplayName("Одновременные одинаковые запросы выполняют один запрос к БД")
+    void shouldShareInFlightQuery() throws Exception {
+        int callers = 8;
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        RootDto result = new RootDto(List.of());
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<RootDto>> futures = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                futures.add(executor.submit(() -> coalescer.execute("smith", Set.of(1, 2), null, null, 0, 10, () -> {
+                    executions.incrementAndGet();
+                    await(release);
+                    return result;
+                })));
+            }
+            // Ждем, пока все, кроме лидера, встанут в ожидание
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (count("coalesced") < callers - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<RootDto> future : futures) {
+                assertSame(result, future.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, executions.get());
+        assertEquals(1, count("executed"));
+        assertEquals(callers - 1, count("coalesced"));
+    }
+
+    @Test
+    @DisplayName("Результат не кешируется после завершения запроса")
+    void shouldNotRetainCompletedResult() {
+        AtomicInteger executions = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            coalescer.execute(null, null, null, null, 0, 10, () -> {
+                executions.incrementAndGet();
+                return new RootDto(List.of());
+            });
+        }
+        assertEquals(3, executions.get());
+        assertEquals(0, count("coalesced"));
+    }
+
+    @Test
+    void shouldPropagateFailureAndAllowRetry() {
+        assertThrows(IllegalStateException.class, () -> coalescer.execute(null, null, null, null, 0, 10, () -> {
+            throw new IllegalStateException("db down");
+        }));
+        RootDto retried = coalescer.execute(null, null, null, null, 0, 10, () -> new RootDto(List.of()));
+        assertEquals(0, retried.getCount());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
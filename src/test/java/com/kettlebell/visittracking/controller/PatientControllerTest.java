@@ -0,0 +1,119 @@
+package com.kettlebell.visittracking.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.hamcrest.Matchers.nullValue;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+@AutoConfigureMockMvc
+class PatientControllerTest {
+
+    @Container
+    static MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0")
+            .withDatabaseName("testdb")
+            .withUsername("testuser")
+            .withPassword("testpass");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", mysql::getJdbcUrl);
+        registry.add("spring.datasource.username", mysql::getUsername);
+        registry.add("spring.datasource.password", mysql::getPassword);
+        registry.add("spring.flyway.url", mysql::getJdbcUrl);
+        registry.add("spring.flyway.user", mysql::getUsername);
+        registry.add("spring.flyway.password", mysql::getPassword);
+        registry.add("visit.warmup.enabled", () -> "false");
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private void book(String start, String end, Patient patient, Doctor doctor) throws Exception {
+        VisitRequest request = new VisitRequest(start, end, patient.getId(), doctor.getId());
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("История пациента отдается страницами по курсору, время - в таймзоне врача")
+    void shouldPageHistoryWithCursor() throws Exception {
+        Patient patient = patientRepository.save(new Patient(null, "History", "Patient"));
+        Doctor tokyo = doctorRepository.save(new Doctor(null, "History", "Tokyo", "Asia/Tokyo", null));
+        Doctor newYork = doctorRepository.save(new Doctor(null, "History", "NewYork", "America/New_York", null));
+
+        book("2024-03-01 09:00:00", "2024-03-01 09:30:00", patient, tokyo);
+        book("2024-03-02 09:00:00", "2024-03-02 09:30:00", patient, newYork);
+        book("2024-03-03 09:00:00", "2024-03-03 09:30:00", patient, tokyo);
+
+        MvcResult first = mockMvc.perform(get("/api/patients/{id}/visits", patient.getId())
+                        .param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(2))
+                .andExpect(jsonPath("$.data[0].start").value("2024-03-03 09:00:00"))
+                .andExpect(jsonPath("$.data[0].doctorId").value(tokyo.getId()))
+                .andExpect(jsonPath("$.data[1].start").value("2024-03-02 09:00:00"))
+                .andExpect(jsonPath("$.data[1].doctorLastName").value("NewYork"))
+                .andReturn();
+        String cursor = objectMapper.readTree(first.getResponse().getContentAsString()).get("nextCursor").asText();
+
+        mockMvc.perform(get("/api/patients/{id}/visits", patient.getId())
+                        .param("size", "2")
+                        .param("cursor", cursor))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.data[0].start").value("2024-03-01 09:00:00"))
+                .andExpect(jsonPath("$.nextCursor").value(nullValue()));
+    }
+
+    @Test
+    @DisplayName("Некорректный курсор - 400")
+    void shouldRejectInvalidCursor() throws Exception {
+        Patient patient = patientRepository.save(new Patient(null, "Cursor", "Patient"));
+
+        mockMvc.perform(get("/api/patients/{id}/visits", patient.getId())
+                        .param("cursor", "not-a-cursor"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Invalid cursor"));
+    }
+
+    @Test
+    @DisplayName("История несуществующего пациента - 404")
+    void shouldReturnNotFoundForUnknownPatient() throws Exception {
+        mockMvc.perform(get("/api/patients/{id}/visits", 999_999))
+                .andExpect(status().isNotFound());
+    }
+}
@@ -0,0 +1,28 @@
+package com.kettlebell.visittracking.controller;
+
+import com.kettlebell.visittracking.service.RequestTimings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.matchesPattern;
+
+class ServerTimingFilterTest {
+
+    @AfterEach
+    void tearDown() {
+        RequestTimings.end();
+    }
+
+    @Test
+    @DisplayName("Server-Timing описывает число JDBC-запросов в формате \"N statements\"")
+    void shouldDescribeStatementCount() {
+        RequestTimings timings = RequestTimings.begin();
+        RequestTimings.recordStatement(2_000_000);
+        RequestTimings.recordStatement(1_000_000);
+
+        assertThat(ServerTimingFilter.serverTiming(timings, System.nanoTime()), matchesPattern(
+                "pool;dur=[\\d.]+, db;dur=3\\.00;desc=\"2 statements\", ser;dur=[\\d.]+, app;dur=[\\d.]+, total;dur=[\\d.]+"));
+    }
+}
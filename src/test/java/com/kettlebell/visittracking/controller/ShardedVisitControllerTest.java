@@ -0,0 +1,148 @@
+package com.kettlebell.visittracking.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.service.ShardRouter;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+@AutoConfigureMockMvc
+class ShardedVisitControllerTest {
+
+    // Два шарда - две базы в одном контейнере
+    @Container
+    static MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0")
+            .withDatabaseName("shard0")
+            .withUsername("root")
+            .withPassword("testpass")
+            .withInitScript("sharding-init.sql");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.username", mysql::getUsername);
+        registry.add("spring.datasource.password", mysql::getPassword);
+        registry.add("visit.sharding.enabled", () -> "true");
+        registry.add("visit.sharding.allow-shard-local-patient-check", () -> "true");
+        registry.add("visit.sharding.urls", () -> mysql.getJdbcUrl() + "," + mysql.getJdbcUrl().replace("/shard0", "/shard1"));
+        registry.add("visit.warmup.enabled", () -> "false");
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private VisitRepository visitRepository;
+
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private ResultActions book(String start, String end, Patient patient, Doctor doctor) throws Exception {
+        VisitRequest request = new VisitRequest(start, end, patient.getId(), doctor.getId());
+        return mockMvc.perform(post("/api/visits")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(request)));
+    }
+
+    // Приложение справочники не реплицирует: тест, как и оператор, пишет копию на каждый шард с тем же id
+    private Doctor saveDoctor(String lastName, int shard) {
+        while (true) {
+            List<Doctor> copies = new ArrayList<>();
+            for (int s = 0; s < shardRouter.shardCount(); s++) {
+                copies.add(shardRouter.onShard(s, () -> doctorRepository.save(new Doctor(null, "Shard", lastName, "Europe/Berlin", null))));
+            }
+            Doctor doctor = copies.get(0);
+            copies.forEach(copy -> assertEquals(doctor.getId(), copy.getId()));
+            if (shardRouter.shardOf(doctor.getId()) == shard) {
+                return doctor;
+            }
+        }
+    }
+
+    private Patient savePatient(String firstName, String lastName) {
+        List<Patient> copies = new ArrayList<>();
+        for (int s = 0; s < shardRouter.shardCount(); s++) {
+            copies.add(shardRouter.onShard(s, () -> patientRepository.save(new Patient(null, firstName, lastName))));
+        }
+        copies.forEach(copy -> assertEquals(copies.get(0).getId(), copy.getId()));
+        return copies.get(0);
+    }
+
+    @Test
+    @DisplayName("Бронирование уходит на шард врача, проверка пересечений работает на этом шарде")
+    void shouldRouteBookingToDoctorShard() throws Exception {
+        Doctor doctor = saveDoctor("Overlap", 1);
+        Patient patient = savePatient("Overlap", "Patient");
+
+        book("2024-04-01 10:00:00", "2024-04-01 11:00:00", patient, doctor)
+                .andExpect(status().isOk());
+        book("2024-04-01 10:30:00", "2024-04-01 11:30:00", patient, doctor)
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Doctor is already booked at this time"));
+
+        assertEquals(0, shardRouter.onShard(0, () -> visitRepository.findPatientHistory(patient.getId(), PageRequest.of(0, 10))).size());
+        assertEquals(1, shardRouter.onShard(1, () -> visitRepository.findPatientHistory(patient.getId(), PageRequest.of(0, 10))).size());
+    }
+
+    @Test
+    @DisplayName("Список пациентов собирается со всех шардов в общем порядке, id визитов не пересекаются")
+    void shouldMergeListingAcrossShards() throws Exception {
+        Doctor first = saveDoctor("First", 0);
+        Doctor second = saveDoctor("Second", 1);
+        Patient patient = savePatient("Merged", "Aaaamerged");
+
+        String firstId = book("2024-04-02 09:00:00", "2024-04-02 09:30:00", patient, first)
+                .andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+        String secondId = book("2024-04-03 09:00:00", "2024-04-03 09:30:00", patient, second)
+                .andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+        assertNotEquals(firstId, secondId);
+
+        mockMvc.perform(get("/api/visits").param("search", "Aaaamerged"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data[0].lastVisits.length()").value(2))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2024-04-03 09:00:00"))
+                .andExpect(jsonPath("$.data[0].lastVisits[1].start").value("2024-04-02 09:00:00"));
+
+        mockMvc.perform(get("/api/patients/{id}/visits", patient.getId()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(2))
+                .andExpect(jsonPath("$.data[0].doctorId").value(second.getId()));
+    }
+}
@@ -1,32 +1,55 @@
 package com.kettlebell.visittracking.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitSeriesRequest;
 import com.kettlebell.visittracking.repository.DoctorRepository;
 import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitChangeRepository;
 import com.kettlebell.visittracking.repository.VisitRepository;
 import com.kettlebell.visittracking.repository.entity.Doctor;
 import com.kettlebell.visittracking.repository.entity.Patient;
 import com.kettlebell.visittracking.repository.entity.Visit;
+import com.kettlebell.visittracking.repository.entity.VisitChange;
+import com.kettlebell.visittracking.service.ListingPipeline;
+import com.kettlebell.visittracking.service.VisitService;
 import org.junit.jupiter.api.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.List;
-
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.matchesPattern;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -50,6 +73,11 @@ class VisitControllerTest {
         registry.add("spring.flyway.url", mysql::getJdbcUrl);  // Для Flyway
         registry.add("spring.flyway.user", mysql::getUsername);
         registry.add("spring.flyway.password", mysql::getPassword);
+        registry.add("visit.sync.token-max-age", () -> "0s");
+        // Тесты списка пишут данные в незакоммиченной тестовой транзакции: их видит только SQL-путь
+        registry.add("visit.read-model.enabled", () -> "false");
+        // Прогрев шел бы параллельно с тестами и занимал слоты admission control
+        registry.add("visit.warmup.enabled", () -> "false");
     }
 
     @Autowired
@@ -67,6 +95,18 @@ class VisitControllerTest {
     @Autowired
     private ObjectMapper objectMapper;
 
+    @Autowired
+    private VisitService visitService;
+
+    @Autowired
+    private ListingPipeline listingPipeline;
+
+    @Autowired
+    private VisitChangeRepository visitChangeRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
     private Doctor doctor;
     private Patient patient;
 
@@ -619,6 +659,76 @@ class VisitControllerTest {
                 .andExpect(jsonPath("$.message").value("Doctor is already booked at this time"));
     }
 
+    @Test
+    @DisplayName("Прогрев бронирования идет на синтетических враче и пациенте и откатывается целиком")
+    void warmUpBookingShouldLeaveNoRows() {
+        long doctors = doctorRepository.count();
+        long patients = patientRepository.count();
+        long visits = visitRepository.count();
+        long changes = visitChangeRepository.count();
+
+        visitService.warmUpBooking("2099-01-05 10:00:00", "2099-01-05 10:30:00");
+        visitService.warmUpBooking("2099-01-05 10:00:00", "2099-01-05 10:30:00");
+
+        assertEquals(doctors, doctorRepository.count());
+        assertEquals(patients, patientRepository.count());
+        assertEquals(visits, visitRepository.count());
+        assertEquals(changes, visitChangeRepository.count());
+    }
+
+    @Test
+    @DisplayName("Пациент не может быть записан к двум врачам на пересекающееся время")
+    void shouldReturnBadRequestWhenPatientIsAlreadyBooked() throws Exception {
+        Patient busyPatient = patientRepository.save(new Patient(null, "Busy", "Patient"));
+        Doctor london = doctorRepository.save(new Doctor(null, "Noah", "London", "Europe/London", null));
+        Doctor newYork = doctorRepository.save(new Doctor(null, "Liam", "NewYork", "America/New_York", null));
+
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2024-02-12 15:00:00", "2024-02-12 16:00:00", busyPatient.getId(), london.getId()))))
+                .andExpect(status().isOk());
+
+        // 10:30 в Нью-Йорке - это 15:30 в Лондоне: врач свободен, пациент занят
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2024-02-12 10:30:00", "2024-02-12 11:00:00", busyPatient.getId(), newYork.getId()))))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Patient already has a visit at this time"));
+
+        // Сразу после окончания первого визита - можно
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2024-02-12 11:00:00", "2024-02-12 11:30:00", busyPatient.getId(), newYork.getId()))))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @DisplayName("Смена таймзоны врача учитывается при следующем бронировании, хоть старая и в кеше")
+    void shouldBookInDoctorsUpdatedTimezone() throws Exception {
+        Patient movedPatient = patientRepository.save(new Patient(null, "Moved", "Patient"));
+        Doctor moved = doctorRepository.save(new Doctor(null, "Moved", "Doctor", "Europe/London", null));
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2025-01-10 10:00:00", "2025-01-10 10:30:00", movedPatient.getId(), moved.getId()))))
+                .andExpect(status().isOk());
+
+        moved.setTimezone("America/New_York");
+        doctorRepository.save(moved);
+        String response = mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2025-01-11 10:00:00", "2025-01-11 10:30:00", movedPatient.getId(), moved.getId()))))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        Integer visitId = objectMapper.readTree(response).get("id").asInt();
+        assertEquals(Instant.parse("2025-01-11T15:00:00Z"), visitRepository.findById(visitId).orElseThrow().getStartDateTime());
+    }
+
     @Test
     void shouldReturnNotFoundWhenDoctorDoesNotExist() throws Exception {
         VisitRequest request = new VisitRequest("2025-06-15 10:00:00", "2025-06-15 11:00:00", 1, 9999);
@@ -715,4 +825,281 @@ class VisitControllerTest {
         }
 
 
-}
\ No newline at end of file
+    @Test
+    void shouldReplayBookingWithSameIdempotencyKey() throws Exception {
+        setup();
+        VisitRequest request = new VisitRequest("2025-06-15 14:00:00", "2025-06-15 14:30:00", patient.getId(), doctor.getId());
+        String idempotencyKey = "booking-" + patient.getId();
+
+        String first = mockMvc.perform(post("/api/visits")
+                        .header("Idempotency-Key", idempotencyKey)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        // Повтор не должен упасть с "already booked" на собственной записи
+        mockMvc.perform(post("/api/visits")
+                        .header("Idempotency-Key", idempotencyKey)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(content().json(first));
+    }
+
+    @Test
+    @DisplayName("Тот же ключ идемпотентности с другим телом запроса - 422")
+    void shouldRejectIdempotencyKeyReusedForDifferentRequest() throws Exception {
+        setup();
+        String idempotencyKey = "reused-" + patient.getId();
+        mockMvc.perform(post("/api/visits")
+                        .header("Idempotency-Key", idempotencyKey)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2025-06-15 15:00:00", "2025-06-15 15:30:00", patient.getId(), doctor.getId()))))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(post("/api/visits")
+                        .header("Idempotency-Key", idempotencyKey)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2025-06-15 16:00:00", "2025-06-15 16:30:00", patient.getId(), doctor.getId()))))
+                .andExpect(status().isUnprocessableEntity());
+    }
+
+
+    @Test
+    @DisplayName("Дельта по токену содержит только пациентов с новыми визитами")
+    void shouldReturnOnlyPatientsChangedSinceSyncToken() throws Exception {
+        String token = objectMapper.readTree(mockMvc.perform(get("/api/visits"))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.syncToken").isNotEmpty())
+                        .andReturn().getResponse().getContentAsString())
+                .get("syncToken").asText();
+
+        Patient changed = patientRepository.save(new Patient(null, "Delta", "Changed"));
+        Doctor deltaDoctor = doctorRepository.save(new Doctor(null, "Delta", "Doctor", "Europe/London", null));
+        VisitRequest request = new VisitRequest("2025-07-01 10:00:00", "2025-07-01 10:30:00", changed.getId(), deltaDoctor.getId());
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk());
+        Thread.sleep(10);
+
+        String nextToken = objectMapper.readTree(mockMvc.perform(get("/api/visits/changes").param("since", token))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.fullResync").value(false))
+                        .andExpect(jsonPath("$.count").value(1))
+                        .andExpect(jsonPath("$.data[0].lastName").value("Changed"))
+                        .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2025-07-01 10:00:00"))
+                        .andReturn().getResponse().getContentAsString())
+                .get("syncToken").asText();
+
+        mockMvc.perform(get("/api/visits/changes").param("since", nextToken))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(0));
+    }
+
+    @Test
+    @DisplayName("Токен не обгоняет незакоммиченное изменение, даже если более поздние уже закоммичены")
+    void syncTokenShouldNotPassUncommittedChange() throws Exception {
+        Patient slow = patientRepository.save(new Patient(null, "Slow", "Writer"));
+        Patient fast = patientRepository.save(new Patient(null, "Fast", "Writer"));
+        // Разные врачи: внешний ключ долгой транзакции держит S-блокировку строки своего врача
+        Doctor slowDoctor = doctorRepository.save(new Doctor(null, "Slow", "Doctor", "Europe/London", null));
+        Doctor fastDoctor = doctorRepository.save(new Doctor(null, "Fast", "Doctor", "Europe/London", null));
+        CountDownLatch inserted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Долгая транзакция (например, ожидание блокировки): запись журнала вставлена, коммит позже
+            Future<?> slowTransaction = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+                Instant start = Instant.parse("2025-08-01T08:00:00Z");
+                visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), slow, slowDoctor));
+                visitChangeRepository.save(new VisitChange(null, slow.getId(), slowDoctor.getId(), Instant.now()));
+                inserted.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            assertTrue(inserted.await(10, TimeUnit.SECONDS));
+            mockMvc.perform(post("/api/visits")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(new VisitRequest(
+                                    "2025-08-01 10:00:00", "2025-08-01 10:30:00", fast.getId(), fastDoctor.getId()))))
+                    .andExpect(status().isOk());
+
+            String token = objectMapper.readTree(mockMvc.perform(get("/api/visits"))
+                            .andExpect(status().isOk())
+                            .andReturn().getResponse().getContentAsString())
+                    .get("syncToken").asText();
+            release.countDown();
+            slowTransaction.get(10, TimeUnit.SECONDS);
+
+            mockMvc.perform(get("/api/visits/changes").param("since", token))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.fullResync").value(false))
+                    .andExpect(jsonPath("$.data[*].firstName", hasItem("Slow")));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void shouldReturnBadRequestForInvalidSyncToken() throws Exception {
+        mockMvc.perform(get("/api/visits/changes").param("since", "not-a-token"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Invalid sync token"));
+    }
+
+    @Test
+    @DisplayName("CBOR-ответ списка: врачи вынесены в таблицу и указаны индексом")
+    void shouldReturnCompactCborWithDoctorTable() throws Exception {
+        setup();
+        byte[] body = mockMvc.perform(get("/api/visits")
+                        .param("search", "Test")
+                        .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        JsonNode root = new CBORMapper().readTree(body);
+        JsonNode visit = root.get("data").get(0).get("lastVisits").get(0);
+        JsonNode doctorNode = root.get("doctors").get(visit.get("doctor").asInt());
+        assertEquals("Doctor", doctorNode.get("lastName").asText());
+        assertEquals("2025-06-15 12:00:00", visit.get("start").asText());
+    }
+
+    @Test
+    @DisplayName("Список отдает Server-Timing с временем JDBC и сериализации")
+    void shouldReturnServerTimingHeader() throws Exception {
+        setup();
+        mockMvc.perform(get("/api/visits").param("search", "Test"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Server-Timing", matchesPattern(
+                        "pool;dur=[\\d.]+, db;dur=[\\d.]+;desc=\"[1-9]\\d* statements\".*, ser;dur=[\\d.]+, app;dur=[\\d.]+, total;dur=[\\d.]+")));
+    }
+
+    @Test
+    @DisplayName("Поэтапный список совпадает с JPQL-запросом")
+    void listingPipelineShouldMatchSingleQuery() {
+        // Без @Transactional: этапы пайплайна идут на отдельных соединениях и видят только закоммиченное
+        Doctor first = doctorRepository.save(new Doctor(null, "Pipe", "First", "Europe/London", null));
+        Doctor second = doctorRepository.save(new Doctor(null, "Pipe", "Second", "Asia/Tokyo", null));
+        Instant base = Instant.parse("2030-03-01T09:00:00Z");
+        for (int i = 0; i < 4; i++) {
+            Patient pipePatient = patientRepository.save(new Patient(null, "Pipe" + i, i % 2 == 0 ? "Same" : "same"));
+            for (int j = 0; j <= i; j++) {
+                Doctor visitDoctor = j % 2 == 0 ? first : second;
+                Instant start = base.plus(Duration.ofHours(i * 10L + j));
+                visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), pipePatient, visitDoctor));
+            }
+        }
+
+        for (String search : new String[]{null, "pipe", "SAME", "nobody"}) {
+            for (Set<Integer> doctorIds : Arrays.asList(null, Set.of(second.getId()), Set.of(first.getId(), second.getId()))) {
+                for (int page = 0; page < 3; page++) {
+                    Pageable pageable = PageRequest.of(page, 3);
+                    assertEquals(visitService.findPatientsWithLastVisits(search, doctorIds, null, null, pageable).getData(),
+                            listingPipeline.find(search, doctorIds, pageable),
+                            "search=" + search + " doctors=" + doctorIds + " page=" + page);
+                }
+            }
+        }
+    }
+
+    @Test
+    @Transactional
+    @DisplayName("Серия визитов сохраняет местное время врача при переходе на летнее время")
+    void shouldCreateWeeklySeriesAcrossDstChange() throws Exception {
+        Patient seriesPatient = patientRepository.save(new Patient(null, "Series", "Patient"));
+        Doctor seriesDoctor = doctorRepository.save(new Doctor(null, "Series", "Doctor", "Europe/London", null));
+        // В Лондоне летнее время с 2025-03-30
+        VisitSeriesRequest request = new VisitSeriesRequest("2025-03-23 09:00:00", "2025-03-23 09:45:00",
+                seriesPatient.getId(), seriesDoctor.getId(), "WEEKLY", 1, 3);
+
+        mockMvc.perform(post("/api/visits/series")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.ids.length()").value(3));
+
+        List<Visit> visits = visitRepository.findPatientHistory(seriesPatient.getId(), PageRequest.of(0, 10));
+        assertEquals(List.of(Instant.parse("2025-04-06T08:00:00Z"), Instant.parse("2025-03-30T08:00:00Z"),
+                        Instant.parse("2025-03-23T09:00:00Z")),
+                visits.stream().map(Visit::getStartDateTime).toList());
+
+        // Повтор той же серии целиком отклоняется, первый занятый визит - в сообщении
+        mockMvc.perform(post("/api/visits/series")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Doctor is already booked at 2025-03-23 09:00:00"));
+    }
+
+    @Test
+    @Transactional
+    @DisplayName("Серия с занятым визитом не сохраняется целиком")
+    void shouldRejectWholeSeriesWhenOneVisitIsBooked() throws Exception {
+        Patient seriesPatient = patientRepository.save(new Patient(null, "Series", "Partial"));
+        Doctor seriesDoctor = doctorRepository.save(new Doctor(null, "Series", "Busy", "Europe/London", null));
+        Instant taken = Instant.parse("2025-01-15T10:15:00Z");
+        visitRepository.save(new Visit(null, taken, taken.plus(Duration.ofMinutes(30)), seriesPatient, seriesDoctor));
+        VisitSeriesRequest request = new VisitSeriesRequest("2025-01-13 10:00:00", "2025-01-13 10:30:00",
+                seriesPatient.getId(), seriesDoctor.getId(), "DAILY", 1, 5);
+
+        mockMvc.perform(post("/api/visits/series")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Doctor is already booked at 2025-01-15 10:00:00"));
+        assertEquals(1, visitRepository.findPatientHistory(seriesPatient.getId(), PageRequest.of(0, 10)).size());
+    }
+
+    @Test
+    @Transactional
+    @DisplayName("Фильтр списка по датам считает дату визита в таймзоне врача")
+    void shouldFilterLastVisitsByDoctorLocalDate() throws Exception {
+        Patient rangedPatient = patientRepository.save(new Patient(null, "Ranged", "Patient"));
+        Doctor london = doctorRepository.save(new Doctor(null, "Range", "London", "Europe/London", null));
+        Doctor tokyo = doctorRepository.save(new Doctor(null, "Range", "Tokyo", "Asia/Tokyo", null));
+        // 2025-05-05 23:30 UTC - уже 6 мая в Лондоне (BST), 2025-05-05 16:00 UTC - 6 мая в Токио
+        Instant londonLate = Instant.parse("2025-05-05T23:30:00Z");
+        Instant tokyoLate = Instant.parse("2025-05-05T16:00:00Z");
+        Instant early = Instant.parse("2025-05-01T10:00:00Z");
+        for (Instant start : List.of(londonLate, early)) {
+            visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), rangedPatient, london));
+        }
+        for (Instant start : List.of(tokyoLate, early)) {
+            visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), rangedPatient, tokyo));
+        }
+
+        mockMvc.perform(get("/api/visits")
+                        .param("search", "Ranged")
+                        .param("from", "2025-05-06")
+                        .param("to", "2025-05-06"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.data[0].lastVisits.length()").value(2))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2025-05-06 00:30:00"))
+                .andExpect(jsonPath("$.data[0].lastVisits[1].start").value("2025-05-06 01:00:00"));
+
+        // Более поздние визиты вне диапазона не учитываются: последний - до to
+        mockMvc.perform(get("/api/visits")
+                        .param("search", "Ranged")
+                        .param("to", "2025-05-05"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data[0].lastVisits.length()").value(2))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2025-05-01 11:00:00"))
+                .andExpect(jsonPath("$.data[0].lastVisits[1].start").value("2025-05-01 19:00:00"));
+
+        mockMvc.perform(get("/api/visits")
+                        .param("from", "2025-05-07")
+                        .param("to", "2025-05-06"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("From date must not be after to date"));
+    }
+}
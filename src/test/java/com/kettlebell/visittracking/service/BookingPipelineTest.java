@@ -0,0 +1,213 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitResponse;
+import com.kettlebell.visittracking.exception.BrookedTimeException;
+import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
+import com.kettlebell.visittracking.exception.OverloadedException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BookingPipelineTest {
+    private static final int BAD_PATIENT = 13;
+
+    private final VisitRepository visitRepo = mock(VisitRepository.class);
+    private final DoctorRepository doctorRepo = mock(DoctorRepository.class);
+    private final PatientRepository patientRepo = mock(PatientRepository.class);
+    private final DoctorStatsService doctorStatsService = mock(DoctorStatsService.class);
+    private final NoOpTransactionManager transactionManager = new NoOpTransactionManager();
+    private final AtomicInteger visitIds = new AtomicInteger();
+    private final ExecutorService callers = Executors.newFixedThreadPool(8);
+    private BookingPipeline pipeline;
+
+    BookingPipelineTest() {
+        when(doctorRepo.findAllByIdForUpdate(anyCollection())).thenAnswer(invocation -> {
+            Collection<Integer> ids = invocation.getArgument(0);
+            return ids.stream().map(id -> new Doctor(id, "Doctor", "D" + id, "America/New_York", null)).toList();
+        });
+        when(patientRepo.findAllByIdForUpdate(anyCollection())).thenAnswer(invocation -> {
+            Collection<Integer> ids = invocation.getArgument(0);
+            return ids.stream().map(id -> new Patient(id, "Patient", "P" + id)).toList();
+        });
+        // Пациент BAD_PATIENT роняет вставку ошибкой БД, как нарушение ограничения
+        when(visitRepo.saveAll(any())).thenAnswer(invocation -> {
+            List<Visit> saved = new ArrayList<>();
+            for (Visit visit : invocation.<Iterable<Visit>>getArgument(0)) {
+                if (visit.getPatient().getId() == BAD_PATIENT) {
+                    throw new DataIntegrityViolationException("Check constraint 'chk_visit_time' is violated");
+                }
+                visit.setId(visitIds.incrementAndGet());
+                saved.add(visit);
+            }
+            return saved;
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        callers.shutdownNow();
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    private BookingPipeline start(int batchSize, Duration maxWait, Duration submitTimeout) {
+        pipeline = new BookingPipeline(visitRepo, doctorRepo, patientRepo, doctorStatsService,
+                new ShardRouter(false, List.of(), 1, false), event -> { }, new TransactionTemplate(transactionManager),
+                64, batchSize, maxWait, submitTimeout);
+        pipeline.start();
+        return pipeline;
+    }
+
+    private static VisitRequest request(int doctorId, int patientId, String start, String end) {
+        return new VisitRequest(start, end, patientId, doctorId);
+    }
+
+    private List<Future<VisitResponse>> submitAll(List<VisitRequest> requests) {
+        return requests.stream().map(request -> callers.submit(() -> pipeline.submit(request))).toList();
+    }
+
+    private static Throwable failure(Future<VisitResponse> future) {
+        return assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS)).getCause();
+    }
+
+    @Test
+    @DisplayName("Одновременные запросы коммитятся одной транзакцией")
+    void shouldCommitConcurrentBookingsAsOneBatch() throws Exception {
+        start(4, Duration.ofSeconds(2), Duration.ofSeconds(10));
+
+        List<Future<VisitResponse>> results = submitAll(List.of(
+                request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00"),
+                request(1, 2, "2030-01-10 11:00:00", "2030-01-10 11:30:00"),
+                request(2, 3, "2030-01-10 10:00:00", "2030-01-10 10:30:00"),
+                request(3, 4, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+
+        for (Future<VisitResponse> result : results) {
+            assertNotNull(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, transactionManager.commits.get());
+    }
+
+    @Test
+    @DisplayName("Ошибка одного запроса не роняет остальные запросы пачки")
+    void shouldIsolateFailingBookingInBatch() throws Exception {
+        start(5, Duration.ofSeconds(2), Duration.ofSeconds(10));
+
+        List<Future<VisitResponse>> results = submitAll(List.of(
+                request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00"),
+                request(2, BAD_PATIENT, "2030-01-10 10:00:00", "2030-01-10 10:30:00"),
+                // Начало и конец совпадают: отказ в Java, до CHECK в БД
+                request(3, 3, "2030-01-10 10:00:00", "2030-01-10 10:00:00"),
+                // 02:30 попадает в "дыру" перехода на летнее время и становится позже 03:10
+                request(4, 4, "2030-03-10 02:30:00", "2030-03-10 03:10:00"),
+                request(5, 5, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+
+        assertNotNull(results.get(0).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(DataIntegrityViolationException.class, failure(results.get(1)));
+        assertInstanceOf(InvalidTimeRangeException.class, failure(results.get(2)));
+        assertInstanceOf(InvalidTimeRangeException.class, failure(results.get(3)));
+        assertNotNull(results.get(4).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @DisplayName("Пересечение внутри пачки отклоняет более поздний запрос")
+    void shouldRejectOverlapWithinBatch() throws Exception {
+        start(2, Duration.ofSeconds(2), Duration.ofSeconds(10));
+
+        Future<VisitResponse> first = callers.submit(() -> pipeline.submit(
+                request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+        Thread.sleep(100);
+        Future<VisitResponse> second = callers.submit(() -> pipeline.submit(
+                request(1, 2, "2030-01-10 10:15:00", "2030-01-10 10:45:00")));
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(BrookedTimeException.class, failure(second));
+        assertEquals(1, transactionManager.commits.get());
+    }
+
+    @Test
+    @DisplayName("Писатель переживает Error при обработке пачки")
+    void shouldKeepWriterAliveAfterError() throws Exception {
+        AtomicBoolean failOnce = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (failOnce.getAndSet(false)) {
+                throw new AssertionError("boom");
+            }
+            return null;
+        }).when(doctorStatsService).recordVisit(any());
+        start(1, Duration.ZERO, Duration.ofSeconds(5));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> pipeline.submit(request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+        assertInstanceOf(AssertionError.class, e.getCause());
+
+        assertNotNull(pipeline.submit(request(1, 2, "2030-01-10 11:00:00", "2030-01-10 11:30:00")));
+        assertEquals(1, transactionManager.rollbacks.get());
+    }
+
+    @Test
+    @DisplayName("Ожидание результата ограничено таймаутом: невзятый запрос получает 503")
+    void shouldTimeOutWaitingCallers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(doctorStatsService).recordVisit(any());
+        start(1, Duration.ZERO, Duration.ofMillis(300));
+        try {
+            Future<VisitResponse> inBatch = callers.submit(() -> pipeline.submit(
+                    request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+            Thread.sleep(100);
+            Future<VisitResponse> queued = callers.submit(() -> pipeline.submit(
+                    request(2, 2, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+
+            assertInstanceOf(IllegalStateException.class, failure(inBatch));
+            assertInstanceOf(OverloadedException.class, failure(queued));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("После остановки пайплайн сразу отказывает")
+    void shouldRejectBookingsAfterShutdown() throws Exception {
+        start(1, Duration.ZERO, Duration.ofSeconds(5));
+        pipeline.stop();
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> pipeline.submit(request(1, 1, "2030-01-10 10:00:00", "2030-01-10 10:30:00")));
+        assertEquals("Booking pipeline is shut down", e.getMessage());
+    }
+}
@@ -0,0 +1,67 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.exception.NotFoundException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DoctorTimezonesTest {
+    private final DoctorRepository doctorRepo = mock(DoctorRepository.class);
+
+    @Test
+    @DisplayName("В пределах ttl таймзона берется из кеша")
+    void shouldCacheWithinTtl() {
+        when(doctorRepo.findTimezoneById(1)).thenReturn(Optional.of("Europe/London"));
+        DoctorTimezones timezones = new DoctorTimezones(doctorRepo, Duration.ofMinutes(1), 10);
+
+        assertEquals("Europe/London", timezones.get(1));
+        assertEquals("Europe/London", timezones.get(1));
+        verify(doctorRepo, times(1)).findTimezoneById(1);
+    }
+
+    @Test
+    @DisplayName("По истечении ttl таймзона перечитывается: смена на другом экземпляре становится видна")
+    void shouldReloadAfterTtl() throws InterruptedException {
+        when(doctorRepo.findTimezoneById(1)).thenReturn(Optional.of("Europe/London"), Optional.of("Asia/Tokyo"));
+        DoctorTimezones timezones = new DoctorTimezones(doctorRepo, Duration.ofMillis(20), 10);
+
+        assertEquals("Europe/London", timezones.get(1));
+        Thread.sleep(30);
+        assertEquals("Asia/Tokyo", timezones.get(1));
+    }
+
+    @Test
+    @DisplayName("Кеш не растет больше max-entries")
+    void shouldStayBounded() {
+        for (int id = 1; id <= 5; id++) {
+            when(doctorRepo.findTimezoneById(id)).thenReturn(Optional.of("UTC"));
+        }
+        DoctorTimezones timezones = new DoctorTimezones(doctorRepo, Duration.ofMinutes(1), 2);
+
+        for (int id = 1; id <= 5; id++) {
+            timezones.get(id);
+        }
+        timezones.get(1);
+        // Врач 1 вытеснен переполнением и прочитан заново
+        verify(doctorRepo, times(2)).findTimezoneById(1);
+    }
+
+    @Test
+    @DisplayName("Неизвестный врач - NotFoundException")
+    void shouldFailForUnknownDoctor() {
+        when(doctorRepo.findTimezoneById(9)).thenReturn(Optional.empty());
+        DoctorTimezones timezones = new DoctorTimezones(doctorRepo, Duration.ofMinutes(1), 10);
+
+        assertThrows(NotFoundException.class, () -> timezones.get(9));
+    }
+}
@@ -0,0 +1,209 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.controller.record.VisitResponse;
+import com.kettlebell.visittracking.exception.IdempotencyKeyInProgressException;
+import com.kettlebell.visittracking.exception.IdempotencyKeyMismatchException;
+import com.kettlebell.visittracking.repository.IdempotencyKeyRepository;
+import com.kettlebell.visittracking.repository.entity.IdempotencyKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IdempotencyStoreTest {
+    private static final VisitRequest REQUEST = new VisitRequest("2030-01-10 10:00:00", "2030-01-10 10:30:00", 2, 1);
+    private static final String HASH = IdempotencyStore.requestHash(REQUEST);
+
+    private final AtomicInteger bookings = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService callers = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        callers.shutdownNow();
+    }
+
+    private final IdempotencyKeyRepository keyRepo = mock(IdempotencyKeyRepository.class);
+
+    private IdempotencyStore persistentStore(Duration waitTimeout) {
+        return new IdempotencyStore(keyRepo, Duration.ofHours(1), 100, true, waitTimeout);
+    }
+
+    private static IdempotencyStore store(int maxEntries, Duration waitTimeout) {
+        return new IdempotencyStore(mock(IdempotencyKeyRepository.class), Duration.ofHours(1), maxEntries, false,
+                waitTimeout);
+    }
+
+    // Бронирование держится до release и возвращает новый id на каждый вызов
+    private Supplier<VisitResponse> blockingBooking() {
+        return () -> {
+            int id = bookings.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new VisitResponse(id);
+        };
+    }
+
+    private Future<VisitResponse> submit(IdempotencyStore store, String key) {
+        return callers.submit(() -> store.execute(key, HASH, blockingBooking()));
+    }
+
+    private void awaitBookings(int expected) throws InterruptedException {
+        for (int i = 0; i < 100 && bookings.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, bookings.get());
+    }
+
+    @Test
+    @DisplayName("Параллельные дубли ждут первый запрос: бронирование выполняется один раз")
+    void shouldBookConcurrentDuplicatesOnce() throws Exception {
+        IdempotencyStore store = store(100, Duration.ofSeconds(5));
+
+        List<Future<VisitResponse>> results = List.of(submit(store, "key"), submit(store, "key"),
+                submit(store, "key"), submit(store, "key"));
+        awaitBookings(1);
+        release.countDown();
+
+        for (Future<VisitResponse> result : results) {
+            assertEquals(1, result.get(5, TimeUnit.SECONDS).getId());
+        }
+        assertEquals(1, bookings.get());
+    }
+
+    @Test
+    @DisplayName("Тот же ключ с другим телом запроса отклоняется")
+    void shouldRejectKeyReusedForDifferentRequest() {
+        IdempotencyStore store = store(100, Duration.ofSeconds(5));
+        release.countDown();
+        store.execute("key", HASH, blockingBooking());
+
+        String otherHash = IdempotencyStore.requestHash(
+                new VisitRequest("2030-01-10 11:00:00", "2030-01-10 11:30:00", 2, 1));
+        assertNotEquals(HASH, otherHash);
+        assertThrows(IdempotencyKeyMismatchException.class, () -> store.execute("key", otherHash, blockingBooking()));
+        assertEquals(1, bookings.get());
+    }
+
+    @Test
+    @DisplayName("Ожидание дубля ограничено wait-timeout")
+    void shouldTimeOutWaitingDuplicate() throws Exception {
+        IdempotencyStore store = store(100, Duration.ofMillis(200));
+        Future<VisitResponse> first = submit(store, "key");
+        awaitBookings(1);
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> submit(store, "key").get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IdempotencyKeyInProgressException.class, e.getCause());
+        assertEquals(1, ((IdempotencyKeyInProgressException) e.getCause()).getRetryAfterSeconds());
+
+        release.countDown();
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    @DisplayName("Переполнение не вытесняет незавершенный ключ")
+    void shouldNotEvictInFlightKeyOnOverflow() throws Exception {
+        IdempotencyStore store = store(1, Duration.ofSeconds(5));
+        Future<VisitResponse> inFlight = submit(store, "in-flight");
+        awaitBookings(1);
+
+        // Завершенные ключи переполняют хранилище
+        for (int i = 0; i < 3; i++) {
+            int id = 100 + i;
+            store.execute("done-" + i, HASH, () -> new VisitResponse(id));
+        }
+        Future<VisitResponse> duplicate = submit(store, "in-flight");
+        release.countDown();
+
+        assertEquals(1, inFlight.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(1, duplicate.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(1, bookings.get());
+    }
+
+    @Test
+    @DisplayName("Сбой записи результата после бронирования не освобождает ключ: повтор получает тот же визит")
+    void shouldKeepKeyWhenCompletionFailsAfterBooking() {
+        IdempotencyStore store = persistentStore(Duration.ofSeconds(5));
+        when(keyRepo.findById("key")).thenReturn(Optional.empty());
+        doThrow(new DataAccessResourceFailureException("connection lost")).when(keyRepo).complete("key", 7);
+
+        assertEquals(7, store.execute("key", HASH, () -> new VisitResponse(bookings.incrementAndGet() + 6)).getId());
+        assertEquals(7, store.execute("key", HASH, () -> new VisitResponse(bookings.incrementAndGet() + 6)).getId());
+        assertEquals(1, bookings.get());
+        verify(keyRepo, never()).release(any(), any());
+        verify(keyRepo, never()).deleteById(any());
+    }
+
+    @Test
+    @DisplayName("Неуспешное бронирование освобождает свой захват ключа")
+    void shouldReleaseClaimWhenBookingFails() {
+        IdempotencyStore store = persistentStore(Duration.ofSeconds(5));
+        when(keyRepo.findById("key")).thenReturn(Optional.empty());
+
+        assertThrows(IllegalArgumentException.class, () -> store.execute("key", HASH, () -> {
+            throw new IllegalArgumentException("booking failed");
+        }));
+        verify(keyRepo).release(eq("key"), any());
+        verify(keyRepo, never()).complete(any(), any());
+    }
+
+    @Test
+    @DisplayName("Ключ, брошенный упавшим экземпляром, перехватывается после wait-timeout")
+    void shouldTakeOverAbandonedClaim() {
+        IdempotencyStore store = persistentStore(Duration.ofSeconds(10));
+        IdempotencyKey abandoned = new IdempotencyKey("key", HASH, null, Instant.now().minus(Duration.ofMinutes(5)));
+        when(keyRepo.findById("key")).thenReturn(Optional.of(abandoned));
+        when(keyRepo.takeOver(eq("key"), any(), any())).thenReturn(1);
+
+        assertEquals(42, store.execute("key", HASH, () -> new VisitResponse(42)).getId());
+        verify(keyRepo).complete("key", 42);
+        verify(keyRepo, never()).claim(any(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Ключ держит другой экземпляр: после wait-timeout - 409 с Retry-After, без бронирования")
+    void shouldReportInProgressClaimAfterWaitTimeout() {
+        IdempotencyStore store = persistentStore(Duration.ofMillis(100));
+        IdempotencyKey claimed = new IdempotencyKey("key", HASH, null, Instant.now());
+        when(keyRepo.findById("key")).thenReturn(Optional.of(claimed));
+        // Перехват уже выполнил другой экземпляр
+        when(keyRepo.takeOver(eq("key"), any(), any())).thenReturn(0);
+
+        IdempotencyKeyInProgressException e = assertThrows(IdempotencyKeyInProgressException.class,
+                () -> store.execute("key", HASH, blockingBooking()));
+        assertEquals(1, e.getRetryAfterSeconds());
+        assertEquals(0, bookings.get());
+        verify(keyRepo, never()).claim(any(), any(), any());
+    }
+}
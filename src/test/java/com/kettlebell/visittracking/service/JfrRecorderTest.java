@@ -0,0 +1,53 @@
+package com.kettlebell.visittracking.service;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JfrRecorderTest {
+
+    private final JfrRecorder recorder = new JfrRecorder("default", Duration.ofMinutes(1), DataSize.ofMegabytes(8));
+
+    @AfterEach
+    void tearDown() {
+        recorder.close();
+    }
+
+    @Test
+    @DisplayName("Дамп записи содержит события бронирования, но не переменные окружения")
+    void shouldDumpApplicationEvents() throws Exception {
+        assertThat(recorder.dump()).isNull();
+        assertThat(recorder.start(null, null).getState()).isEqualTo("RUNNING");
+
+        BookingJfrEvent event = new BookingJfrEvent();
+        event.begin();
+        event.doctorId = 7;
+        event.patientId = 3;
+        event.outcome = "created";
+        event.commit();
+
+        Path file = recorder.dump();
+        try {
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertThat(events)
+                    .filteredOn(e -> e.getEventType().getName().equals("com.kettlebell.visittracking.Booking"))
+                    .singleElement()
+                    .satisfies(e -> assertThat(e.getInt("doctorId")).isEqualTo(7));
+            assertThat(events).noneMatch(e -> e.getEventType().getName().equals("jdk.InitialEnvironmentVariable"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        assertThat(recorder.stop().getState()).isEqualTo("STOPPED");
+        assertThat(recorder.status()).isNull();
+    }
+}
@@ -0,0 +1,176 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.dto.DoctorDto;
+import com.kettlebell.visittracking.controller.dto.PatientDto;
+import com.kettlebell.visittracking.controller.dto.VisitDto;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ListingIndexTest {
+
+    private static final long BASE = Instant.parse("2024-01-01T00:00:00Z").getEpochSecond();
+    private static final List<String> TIMEZONES = List.of("Europe/London", "Asia/Tokyo", "America/New_York");
+    private static final List<String> NAMES = List.of("Smith", "smith", "Brown", "Adams", "Zed", "O'Neil");
+
+    @Test
+    @DisplayName("У пары пациент-врач остается последний визит, у врача - число уникальных пациентов")
+    void shouldKeepLastVisitPerDoctor() {
+        ListingIndex index = new ListingIndex();
+        index.putDoctor(1, "Jack", "Doe", "UTC");
+        index.putDoctor(2, "Nata", "Roe", "UTC");
+        index.putPatient(10, "Sarah", "Wilson");
+        index.putPatient(11, "Merry", "Adams");
+
+        index.recordVisit(10, 1, BASE + 7200, BASE + 9000);
+        index.recordVisit(10, 1, BASE, BASE + 1800);
+        index.recordVisit(10, 2, BASE + 3600, BASE + 5400);
+        index.recordVisit(11, 1, BASE, BASE + 1800);
+
+        List<PatientDto> patients = index.find(null, null, 0, 10);
+        assertThat(patients).extracting(PatientDto::getLastName).containsExactly("Adams", "Wilson");
+        assertThat(patients.get(1).getLastVisits()).containsExactly(
+                new VisitDto("2024-01-01 02:00:00", "2024-01-01 02:30:00", new DoctorDto("Jack", "Doe", 2L)),
+                new VisitDto("2024-01-01 01:00:00", "2024-01-01 01:30:00", new DoctorDto("Nata", "Roe", 1L)));
+    }
+
+    @Test
+    @DisplayName("Страница считается по строкам пациент-врач, как в SQL-запросе")
+    void shouldPageByRows() {
+        ListingIndex index = new ListingIndex();
+        index.putDoctor(1, "Jack", "Doe", "UTC");
+        index.putDoctor(2, "Nata", "Roe", "UTC");
+        index.putPatient(10, "Sarah", "Adams");
+        index.putPatient(11, "Merry", "Brown");
+        index.recordVisit(10, 1, BASE, BASE + 1800);
+        index.recordVisit(10, 2, BASE + 3600, BASE + 5400);
+        index.recordVisit(11, 1, BASE + 7200, BASE + 9000);
+
+        List<PatientDto> first = index.find(null, null, 0, 1);
+        assertThat(first).hasSize(1);
+        assertThat(first.get(0).getLastVisits()).extracting(VisitDto::getStart).containsExactly("2024-01-01 01:00:00");
+
+        List<PatientDto> second = index.find(null, null, 1, 2);
+        assertThat(second).extracting(PatientDto::getLastName).containsExactly("Adams", "Brown");
+        assertThat(index.find(null, Set.of(2), 0, 10)).extracting(PatientDto::getLastName).containsExactly("Adams");
+        assertThat(index.find("BRO", null, 0, 10)).extracting(PatientDto::getLastName).containsExactly("Brown");
+    }
+
+    @Test
+    @DisplayName("Поиск без учета регистра и диакритики, как LIKE в коллации MySQL; % и _ - обычные символы")
+    void shouldSearchIgnoringAccents() {
+        ListingIndex index = new ListingIndex();
+        index.putDoctor(1, "Jack", "Doe", "UTC");
+        index.putPatient(10, "Émile", "Zoë");
+        index.putPatient(11, "Łukasz", "Søren");
+        index.putPatient(12, "Percent", "100%");
+        index.recordVisit(10, 1, BASE, BASE + 1800);
+        index.recordVisit(11, 1, BASE, BASE + 1800);
+        index.recordVisit(12, 1, BASE, BASE + 1800);
+
+        assertThat(index.find("emile", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Émile");
+        assertThat(index.find("ZOE", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Émile");
+        assertThat(index.find("ÉMI", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Émile");
+        assertThat(index.find("luk", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Łukasz");
+        assertThat(index.find("soren", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Łukasz");
+        assertThat(index.find("0%", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Percent");
+        assertThat(index.find("%", null, 0, 10)).extracting(PatientDto::getFirstName).containsExactly("Percent");
+        assertThat(index.find("_", null, 0, 10)).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Результат совпадает с эталонной реализацией SQL-запроса на случайных данных")
+    void shouldMatchReferenceListing() {
+        Random random = new Random(7);
+        ListingIndex index = new ListingIndex();
+        Reference reference = new Reference();
+        for (int doctorId = 1; doctorId <= 5; doctorId++) {
+            String timezone = TIMEZONES.get(random.nextInt(TIMEZONES.size()));
+            index.putDoctor(doctorId, "Doctor" + doctorId, "Last" + doctorId, timezone);
+            reference.doctors.put(doctorId, new String[]{"Doctor" + doctorId, "Last" + doctorId, timezone});
+        }
+        // Половина пациентов - начальной загрузкой, половина - по одному, как после бронирования
+        for (int patientId = 1; patientId <= 60; patientId++) {
+            String firstName = NAMES.get(random.nextInt(NAMES.size()));
+            String lastName = NAMES.get(random.nextInt(NAMES.size()));
+            if (patientId <= 30) {
+                index.appendPatient(patientId, firstName, lastName);
+            } else {
+                if (patientId == 31) {
+                    index.sortPatients();
+                }
+                index.putPatient(patientId, firstName, lastName);
+            }
+            reference.patients.put(patientId, new String[]{firstName, lastName});
+        }
+        // Совпадающие начала проверяют досортировку по id пациента и врача
+        for (int i = 0; i < 400; i++) {
+            long start = BASE + random.nextInt(100) * 3600L;
+            int patientId = 1 + random.nextInt(60);
+            int doctorId = 1 + random.nextInt(5);
+            index.recordVisit(patientId, doctorId, start, start + 1800);
+            reference.visits.add(new long[]{patientId, doctorId, start, start + 1800});
+        }
+
+        List<String> searches = Arrays.asList(null, "", "smi", "SMITH", "'n", "zz");
+        List<Set<Integer>> doctorFilters = Arrays.asList(null, Set.of(1), Set.of(2, 4), Set.of(99));
+        for (String search : searches) {
+            for (Set<Integer> doctorIds : doctorFilters) {
+                for (int offset = 0; offset < 200; offset += 17) {
+                    assertThat(index.find(search, doctorIds, offset, 10))
+                            .as("search=%s doctors=%s offset=%d", search, doctorIds, offset)
+                            .isEqualTo(reference.find(search, doctorIds, offset, 10));
+                }
+            }
+        }
+    }
+
+    // Прямолинейная копия семантики VisitRepository#findPatientsWithLastVisits
+    private static final class Reference {
+        private final Map<Integer, String[]> doctors = new HashMap<>();
+        private final Map<Integer, String[]> patients = new HashMap<>();
+        private final List<long[]> visits = new ArrayList<>();
+
+        List<PatientDto> find(String search, Set<Integer> doctorIds, int offset, int size) {
+            Map<List<Long>, long[]> last = new HashMap<>();
+            Map<Long, Set<Long>> doctorPatients = new HashMap<>();
+            for (long[] visit : visits) {
+                last.merge(List.of(visit[0], visit[1]), visit, (a, b) -> a[2] >= b[2] ? a : b);
+                doctorPatients.computeIfAbsent(visit[1], d -> new HashSet<>()).add(visit[0]);
+            }
+            List<long[]> rows = new ArrayList<>();
+            for (long[] row : last.values()) {
+                String[] patient = patients.get((int) row[0]);
+                boolean found = search == null || search.isEmpty()
+                        || patient[0].toLowerCase().contains(search.toLowerCase())
+                        || patient[1].toLowerCase().contains(search.toLowerCase());
+                if (found && (doctorIds == null || doctorIds.contains((int) row[1]))) {
+                    rows.add(row);
+                }
+            }
+            rows.sort(Comparator
+                    .comparing((long[] row) -> patients.get((int) row[0])[1], String.CASE_INSENSITIVE_ORDER)
+                    .thenComparing(row -> patients.get((int) row[0])[0], String.CASE_INSENSITIVE_ORDER)
+                    .thenComparing(row -> row[2], Comparator.reverseOrder())
+                    .thenComparing(row -> row[0])
+                    .thenComparing(row -> row[1]));
+
+            Map<Long, PatientDto> page = new LinkedHashMap<>();
+            for (long[] row : rows.subList(Math.min(offset, rows.size()), Math.min(offset + size, rows.size()))) {
+                String[] patient = patients.get((int) row[0]);
+                String[] doctor = doctors.get((int) row[1]);
+                TimestampCodec zone = TimestampCodec.forZone(doctor[2]);
+                page.computeIfAbsent(row[0], id -> new PatientDto(patient[0], patient[1], new ArrayList<>()))
+                        .getLastVisits().add(new VisitDto(
+                                zone.format(Instant.ofEpochSecond(row[2])),
+                                zone.format(Instant.ofEpochSecond(row[3])),
+                                new DoctorDto(doctor[0], doctor[1], (long) doctorPatients.get(row[1]).size())));
+            }
+            return new ArrayList<>(page.values());
+        }
+    }
+}
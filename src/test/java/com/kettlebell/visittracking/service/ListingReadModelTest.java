@@ -0,0 +1,242 @@
+package com.kettlebell.visittracking.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitChangeRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import com.kettlebell.visittracking.repository.entity.VisitChange;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * GET /api/visits из read-модели (путь по умолчанию). Данные пишутся без тестовой транзакции;
+ * "чужое" бронирование - визит и запись журнала мимо сервиса, как их пишет другой экземпляр.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+@AutoConfigureMockMvc
+class ListingReadModelTest {
+
+    @Container
+    static MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0")
+            .withDatabaseName("testdb")
+            .withUsername("testuser")
+            .withPassword("testpass");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", mysql::getJdbcUrl);
+        registry.add("spring.datasource.username", mysql::getUsername);
+        registry.add("spring.datasource.password", mysql::getPassword);
+        registry.add("spring.flyway.url", mysql::getJdbcUrl);
+        registry.add("spring.flyway.user", mysql::getUsername);
+        registry.add("spring.flyway.password", mysql::getPassword);
+        registry.add("visit.sync.token-max-age", () -> "0s");
+        // Догон по расписанию не запускается: тест вызывает его сам
+        registry.add("visit.read-model.catch-up-interval-ms", () -> "3600000");
+        registry.add("visit.warmup.enabled", () -> "false");
+    }
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ListingReadModel listingReadModel;
+
+    @Autowired
+    private VisitRepository visitRepository;
+
+    @Autowired
+    private VisitChangeRepository visitChangeRepository;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    private String listingToken(String search, int expectedCount) throws Exception {
+        return objectMapper.readTree(mockMvc.perform(get("/api/visits").param("search", search))
+                        .andExpect(status().isOk())
+                        .andExpect(jsonPath("$.count").value(expectedCount))
+                        .andReturn().getResponse().getContentAsString())
+                .get("syncToken").asText();
+    }
+
+    @Test
+    @DisplayName("Свое бронирование видно в списке сразу после ответа")
+    void shouldServeOwnBookingImmediately() throws Exception {
+        assertTrue(listingReadModel.isReady());
+        Patient patient = patientRepository.save(new Patient(null, "Local", "Writer"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Local", "Doctor", "Europe/London", null));
+
+        mockMvc.perform(post("/api/visits")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new VisitRequest(
+                                "2030-01-10 10:00:00", "2030-01-10 10:30:00", patient.getId(), doctor.getId()))))
+                .andExpect(status().isOk());
+
+        mockMvc.perform(get("/api/visits").param("search", "Writer"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2030-01-10 10:00:00"))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].doctor.lastName").value("Doctor"));
+    }
+
+    @Test
+    @DisplayName("Бронирование другого экземпляра: токен его не обгоняет, догон по журналу его применяет")
+    void shouldCatchUpWithOtherInstanceBooking() throws Exception {
+        assertTrue(listingReadModel.isReady());
+        Patient patient = patientRepository.save(new Patient(null, "Remote", "Booker"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Remote", "Doctor", "Asia/Tokyo", null));
+        Instant start = Instant.parse("2030-02-01T01:00:00Z");
+        visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), patient, doctor));
+        visitChangeRepository.save(new VisitChange(null, patient.getId(), doctor.getId(), Instant.now()));
+
+        // Модель еще не видела визит, и ее токен не должен его покрывать
+        String token = listingToken("Remote", 0);
+        mockMvc.perform(get("/api/visits/changes").param("since", token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fullResync").value(false))
+                .andExpect(jsonPath("$.data[*].lastName", hasItem("Booker")));
+
+        listingReadModel.catchUp();
+
+        mockMvc.perform(get("/api/visits").param("search", "Remote"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2030-02-01 10:00:00"))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].doctor.firstName").value("Remote"))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].doctor.totalPatients").value(1));
+        String caughtUp = listingToken("Remote", 1);
+        mockMvc.perform(get("/api/visits/changes").param("since", caughtUp))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(0));
+    }
+
+    @Test
+    @DisplayName("Повторный догон и более ранний визит пары не меняют последний визит")
+    void shouldApplyChangesIdempotently() throws Exception {
+        Patient patient = patientRepository.save(new Patient(null, "Twice", "Applied"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Twice", "Doctor", "Europe/London", null));
+        Instant later = Instant.parse("2030-03-05T09:00:00Z");
+        Instant earlier = Instant.parse("2030-03-01T09:00:00Z");
+        visitRepository.save(new Visit(null, later, later.plus(Duration.ofMinutes(30)), patient, doctor));
+        visitChangeRepository.save(new VisitChange(null, patient.getId(), doctor.getId(), Instant.now()));
+        listingReadModel.catchUp();
+        visitRepository.save(new Visit(null, earlier, earlier.plus(Duration.ofMinutes(30)), patient, doctor));
+        visitChangeRepository.save(new VisitChange(null, patient.getId(), doctor.getId(), Instant.now()));
+        listingReadModel.catchUp();
+        listingReadModel.catchUp();
+
+        mockMvc.perform(get("/api/visits").param("search", "Twice"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count").value(1))
+                .andExpect(jsonPath("$.data[0].lastVisits.length()").value(1))
+                .andExpect(jsonPath("$.data[0].lastVisits[0].start").value("2030-03-05 09:00:00"));
+    }
+
+    @Test
+    @DisplayName("Поиск в read-модели и в SQL: без учета диакритики, % и _ - обычные символы")
+    void shouldSearchLikeDatabase() throws Exception {
+        String token = objectMapper.readTree(mockMvc.perform(get("/api/visits"))
+                        .andReturn().getResponse().getContentAsString())
+                .get("syncToken").asText();
+        Patient accented = patientRepository.save(new Patient(null, "Émile", "Dürr"));
+        Patient percent = patientRepository.save(new Patient(null, "Hundred", "Per%cent"));
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Search", "Doctor", "Europe/London", null));
+        for (Patient patient : List.of(accented, percent)) {
+            mockMvc.perform(post("/api/visits")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(new VisitRequest(
+                                    "2030-04-01 10:00:00", "2030-04-01 10:30:00", patient.getId(), doctor.getId()))))
+                    .andExpect(status().isOk());
+        }
+
+        // Read-модель и delta-sync (SQL) отвечают одинаково
+        for (String path : List.of("/api/visits", "/api/visits/changes")) {
+            mockMvc.perform(get(path).param("since", token).param("search", "emile"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.count").value(1))
+                    .andExpect(jsonPath("$.data[0].lastName").value("Dürr"));
+            mockMvc.perform(get(path).param("since", token).param("search", "DURR"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.count").value(1));
+            mockMvc.perform(get(path).param("since", token).param("search", "r%c"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.count").value(1))
+                    .andExpect(jsonPath("$.data[0].lastName").value("Per%cent"));
+            mockMvc.perform(get(path).param("since", token).param("search", "r_c"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.count").value(0));
+        }
+    }
+
+    @Test
+    @DisplayName("Пересборка не падает на пациентах, созданных во время загрузки; их визиты применяет догон")
+    void shouldRebuildWhileNewPatientsAreBooked() throws Exception {
+        Doctor doctor = doctorRepository.save(new Doctor(null, "Busy", "Doctor", "Europe/London", null));
+        AtomicBoolean rebuilding = new AtomicBoolean(true);
+        AtomicInteger created = new AtomicInteger();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        // Пациент и его визит пишутся между чтением справочников и визитов в load()
+        Future<?> writes = writer.submit(() -> {
+            while (rebuilding.get() && created.get() < 100) {
+                int n = created.incrementAndGet();
+                Patient patient = patientRepository.save(new Patient(null, "Racing", "Racer" + n));
+                Instant start = Instant.parse("2030-06-01T00:00:00Z").plus(Duration.ofHours(n));
+                visitRepository.save(new Visit(null, start, start.plus(Duration.ofMinutes(30)), patient, doctor));
+                visitChangeRepository.save(new VisitChange(null, patient.getId(), doctor.getId(), Instant.now()));
+            }
+            return null;
+        });
+        try {
+            for (int i = 0; i < 20; i++) {
+                listingReadModel.rebuild();
+            }
+        } finally {
+            rebuilding.set(false);
+            writes.get(30, TimeUnit.SECONDS);
+            writer.shutdown();
+        }
+
+        listingReadModel.catchUp();
+        assertEquals(created.get(), listingReadModel.find("Racer", null, PageRequest.of(0, 100)).size());
+    }
+}
@@ -0,0 +1,57 @@
+package com.kettlebell.visittracking.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NameCollationTest {
+
+    @Test
+    @DisplayName("Регистр и диакритика не различаются, буквы со штрихом - тоже")
+    void shouldIgnoreCaseAndAccents() {
+        assertEquals(0, NameCollation.compare("Émile", "emile"));
+        assertEquals(0, NameCollation.compare("Straße", "STRASSE"));
+        assertEquals(0, NameCollation.compare("Łukasz", "Lukasz"));
+        assertEquals(0, NameCollation.compare("Øst", "Ost"));
+        assertTrue(NameCollation.compare("Émile", "Fox") < 0);
+        assertTrue(String.CASE_INSENSITIVE_ORDER.compare("Émile", "Fox") > 0);
+    }
+
+    @Test
+    @DisplayName("Пробелы и знаки не игнорируются и идут раньше букв")
+    void shouldOrderSeparatorsBeforeLetters() {
+        assertTrue(NameCollation.compare("de la", "dela") < 0);
+        assertTrue(NameCollation.compare("de la", "del") < 0);
+        assertTrue(NameCollation.compare("Smith Jones", "Smith-Jones") < 0);
+        assertTrue(NameCollation.compare("Smith-Jones", "Smithjones") < 0);
+        assertTrue(NameCollation.compare("O'Neil", "Oneil") < 0);
+        assertTrue(NameCollation.compare("de", "de la") < 0);
+    }
+
+    @Test
+    @DisplayName("Ключ поиска - нижний регистр без диакритики, буквы со штрихом - базовые")
+    void shouldFoldSearchKey() {
+        assertEquals("emile", NameCollation.searchKey("Émile"));
+        assertEquals("zoe", NameCollation.searchKey("ZOË"));
+        assertEquals("lukasz soren", NameCollation.searchKey("Łukasz Søren"));
+        assertEquals("o'neil 100%_", NameCollation.searchKey("O'Neil 100%_"));
+    }
+
+    @Test
+    @DisplayName("Порядок совпадает с ORDER BY в коллации UCA ai_ci")
+    void shouldSortLikeDatabase() {
+        // Порядок ORDER BY ... COLLATE utf8mb4_uca1400_ai_ci; равные по коллации имена стоят рядом
+        List<String> expected = List.of("de la", "del", "dela", "Ellis", "Émile", "Fox", "Lukasz", "Mz",
+                "O-", "O.", "O'Neil", "Oneil", "Oz", "Smith Jones", "Smith-Jones", "Smithjones");
+        List<String> names = new ArrayList<>(expected);
+        Collections.reverse(names);
+        names.sort(NameCollation.ORDER);
+        assertEquals(expected, names);
+    }
+}
@@ -0,0 +1,37 @@
+package com.kettlebell.visittracking.service;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Менеджер транзакций для модульных тестов без БД: только считает коммиты и откаты.
+ */
+class NoOpTransactionManager implements PlatformTransactionManager {
+    final AtomicInteger commits = new AtomicInteger();
+    final AtomicInteger rollbacks = new AtomicInteger();
+    volatile TransactionDefinition lastDefinition;
+
+    @Override
+    public TransactionStatus getTransaction(TransactionDefinition definition) {
+        lastDefinition = definition;
+        return new SimpleTransactionStatus();
+    }
+
+    @Override
+    public void commit(TransactionStatus status) {
+        if (status.isRollbackOnly()) {
+            rollbacks.incrementAndGet();
+        } else {
+            commits.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void rollback(TransactionStatus status) {
+        rollbacks.incrementAndGet();
+    }
+}
@@ -0,0 +1,108 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.exception.InvalidTimeFormatException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TimestampCodecTest {
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final List<String> ZONES = List.of(
+            "America/New_York", "Europe/London", "Asia/Tokyo", "Europe/Berlin", "America/Los_Angeles",
+            "Australia/Lord_Howe", "Asia/Kolkata", "America/Sao_Paulo", "Pacific/Apia", "Africa/Casablanca",
+            "Europe/Moscow", "UTC", "Etc/GMT+5");
+
+    @Test
+    @DisplayName("Форматирование совпадает с DateTimeFormatter.withZone для всех таймзон")
+    void shouldFormatLikeJavaTime() {
+        Random random = new Random(42);
+        long from = LocalDateTime.of(1850, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+        long to = LocalDateTime.of(2150, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+        for (String timezone : ZoneId.getAvailableZoneIds()) {
+            TimestampCodec codec = TimestampCodec.forZone(timezone);
+            DateTimeFormatter expected = FORMATTER.withZone(ZoneId.of(timezone));
+            for (int i = 0; i < 500; i++) {
+                Instant instant = Instant.ofEpochSecond(from + (long) (random.nextDouble() * (to - from)));
+                assertThat(codec.format(instant)).as("%s %s", timezone, instant).isEqualTo(expected.format(instant));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Форматирование и разбор вокруг каждого DST-перехода")
+    void shouldHandleTransitionsLikeJavaTime() {
+        for (String timezone : ZONES) {
+            ZoneId zone = ZoneId.of(timezone);
+            TimestampCodec codec = TimestampCodec.forZone(timezone);
+            DateTimeFormatter expected = FORMATTER.withZone(zone);
+            ZoneOffsetTransition transition = zone.getRules().nextTransition(Instant.parse("1970-01-01T00:00:00Z"));
+            while (transition != null && transition.getInstant().isBefore(Instant.parse("2110-01-01T00:00:00Z"))) {
+                for (long delta = -7200; delta <= 7200; delta += 900) {
+                    Instant instant = transition.getInstant().plusSeconds(delta);
+                    assertThat(codec.format(instant)).as("%s %s", timezone, instant).isEqualTo(expected.format(instant));
+
+                    // Локальное время вокруг перехода, включая "дыру" и "перекрытие"
+                    LocalDateTime local = transition.getDateTimeBefore().plusSeconds(delta);
+                    assertThat(codec.toUtc(TimestampCodec.parseLocal(FORMATTER.format(local))))
+                            .as("%s %s", timezone, local)
+                            .isEqualTo(local.atZone(zone).toEpochSecond());
+                }
+                transition = zone.getRules().nextTransition(transition.getInstant());
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Начало дня совпадает с LocalDate.atStartOfDay(zone), в том числе при переходе в полночь")
+    void shouldComputeStartOfDayLikeJavaTime() {
+        for (String timezone : ZONES) {
+            ZoneId zone = ZoneId.of(timezone);
+            TimestampCodec codec = TimestampCodec.forZone(timezone);
+            for (LocalDate date = LocalDate.of(1970, 1, 1); date.getYear() < 2110; date = date.plusDays(1)) {
+                assertThat(codec.startOfDay(date)).as("%s %s", timezone, date)
+                        .isEqualTo(date.atStartOfDay(zone).toEpochSecond());
+            }
+        }
+        // 30.12.2011 на Самоа пропущен: сутки начинаются сразу 31.12 по новому смещению
+        assertThat(TimestampCodec.forZone("Pacific/Apia").startOfDay(LocalDate.of(2011, 12, 30)))
+                .isEqualTo(Instant.parse("2011-12-30T10:00:00Z").getEpochSecond());
+    }
+
+    @Test
+    void shouldParseLikeJavaTime() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            LocalDateTime local = LocalDateTime.ofEpochSecond(
+                    random.nextLong(-2_000_000_000L, 5_000_000_000L), 0, ZoneOffset.UTC);
+            String text = FORMATTER.format(local);
+            assertThat(TimestampCodec.parseLocal(text)).as(text).isEqualTo(local.toEpochSecond(ZoneOffset.UTC));
+        }
+        // Значения, которые SMART-резолвер форматтера поправляет, разбираются так же, как раньше
+        assertThat(TimestampCodec.parseLocal("2023-02-30 10:00:00"))
+                .isEqualTo(LocalDateTime.parse("2023-02-30 10:00:00", FORMATTER).toEpochSecond(ZoneOffset.UTC));
+    }
+
+    @Test
+    void shouldRejectInvalidFormat() {
+        for (String text : List.of("invalid-date", "2024-02-14T10:00:00", "2024-13-01 10:00:00",
+                "2024-02-14 25:00:00", "2024-02-14 10:00", "")) {
+            assertThatThrownBy(() -> TimestampCodec.parseLocal(text))
+                    .as(text)
+                    .isInstanceOf(InvalidTimeFormatException.class)
+                    .hasMessage("Invalid date format. Expected format: yyyy-MM-dd HH:mm:ss");
+        }
+    }
+}
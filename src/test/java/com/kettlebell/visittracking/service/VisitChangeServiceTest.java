@@ -0,0 +1,78 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.repository.VisitChangeLogRepository;
+import com.kettlebell.visittracking.repository.VisitChangeRepository;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.CannotAcquireLockException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class VisitChangeServiceTest {
+    private final VisitChangeRepository changeRepo = mock(VisitChangeRepository.class);
+    private final VisitChangeLogRepository changeLogRepo = mock(VisitChangeLogRepository.class);
+    // seq незавершенной транзакции; 0 - таких нет
+    private final AtomicLong uncommitted = new AtomicLong();
+    private final VisitChangeService service = new VisitChangeService(changeRepo, changeLogRepo,
+            new ShardRouter(false, List.of(), 1, false), Duration.ofDays(7), 1000, Duration.ZERO);
+
+    VisitChangeServiceTest() {
+        doAnswer(invocation -> {
+            long from = invocation.getArgument(0);
+            long to = invocation.getArgument(1);
+            long seq = uncommitted.get();
+            if (seq > from && seq <= to) {
+                throw new CannotAcquireLockException("Lock wait timeout exceeded");
+            }
+            return null;
+        }).when(changeLogRepo).lockRangeNoWait(anyLong(), anyLong());
+    }
+
+    private static String decode(String token) {
+        return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    @DisplayName("Токен останавливается перед незакоммиченной записью, хотя более поздние закоммичены")
+    void shouldStopBeforeUncommittedChange() {
+        when(changeRepo.findMinSeq()).thenReturn(1L);
+        when(changeRepo.findMaxSeq()).thenReturn(30_000L);
+        uncommitted.set(12_345);
+
+        assertEquals("12344", decode(service.currentToken()));
+
+        // Транзакция закоммичена: знак доходит до конца журнала
+        uncommitted.set(0);
+        assertEquals("30000", decode(service.currentToken()));
+    }
+
+    @Test
+    @DisplayName("Знак не откатывается назад и идет от последнего значения")
+    void shouldAdvanceFromPreviousWatermark() {
+        when(changeRepo.findMinSeq()).thenReturn(1L);
+        when(changeRepo.findMaxSeq()).thenReturn(10L, 20L);
+
+        assertEquals("10", decode(service.currentToken()));
+        uncommitted.set(11);
+        assertEquals("10", decode(service.currentToken()));
+    }
+
+    @Test
+    @DisplayName("Пустой журнал дает нулевой токен")
+    void shouldReturnZeroForEmptyLog() {
+        when(changeRepo.findMinSeq()).thenReturn(null);
+        when(changeRepo.findMaxSeq()).thenReturn(null);
+
+        assertEquals("0", decode(service.currentToken()));
+    }
+}
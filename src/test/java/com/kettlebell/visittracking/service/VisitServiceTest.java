@@ -0,0 +1,179 @@
+package com.kettlebell.visittracking.service;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.exception.BrookedTimeException;
+import com.kettlebell.visittracking.exception.InvalidTimeRangeException;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitBookingRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.TransactionDefinition;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VisitServiceTest {
+    private static final String ZONE = "America/New_York";
+    private static final Doctor DOCTOR = new Doctor(1, "Ivan", "Petrov", ZONE, null);
+    private static final Patient PATIENT = new Patient(2, "Anna", "Ivanova");
+    private static final VisitRequest REQUEST = new VisitRequest("2030-01-10 10:00:00", "2030-01-10 10:30:00", 2, 1);
+
+    private final VisitRepository visitRepo = mock(VisitRepository.class);
+    private final VisitBookingRepository visitBookingRepo = mock(VisitBookingRepository.class);
+    private final DoctorRepository doctorRepo = mock(DoctorRepository.class);
+    private final PatientRepository patientRepo = mock(PatientRepository.class);
+    private final NoOpTransactionManager transactionManager = new NoOpTransactionManager();
+    private final VisitService visitService = new VisitService(visitRepo, visitBookingRepo,
+            new DoctorTimezones(doctorRepo, Duration.ofMinutes(1), 100), doctorRepo, patientRepo, Optional.empty(),
+            mock(DoctorStatsService.class), new ShardRouter(false, List.of(), 1, false),
+            mock(VisitChangeService.class), event -> { }, new BookingTransactions(transactionManager),
+            mock(ListingReadModel.class),
+            mock(ListingPipeline.class));
+
+    VisitServiceTest() {
+        when(doctorRepo.findTimezoneById(1)).thenReturn(Optional.of(ZONE));
+        when(doctorRepo.findById(1)).thenReturn(Optional.of(DOCTOR));
+        when(patientRepo.findById(2)).thenReturn(Optional.of(PATIENT));
+    }
+
+    private void insertReturns(Integer first, Integer... next) {
+        when(visitBookingRepo.insertIfFree(eq(1), anyString(), eq(2), any(), any())).thenReturn(first, next);
+    }
+
+    @Test
+    @DisplayName("Свободное время бронируется одной вставкой в транзакции READ COMMITTED")
+    void shouldBookWithSingleInsert() {
+        insertReturns(7);
+
+        assertEquals(7, visitService.createVisit(REQUEST).getId());
+        // 10:00 в Нью-Йорке зимой - 15:00 UTC
+        verify(visitBookingRepo).insertIfFree(1, ZONE, 2, Instant.parse("2030-01-10T15:00:00Z"),
+                Instant.parse("2030-01-10T15:30:00Z"));
+        verify(visitRepo, never()).existsByDoctorAndTimeOverlap(any(), any(), any());
+        assertEquals(1, transactionManager.commits.get());
+        assertEquals(TransactionDefinition.ISOLATION_READ_COMMITTED,
+                transactionManager.lastDefinition.getIsolationLevel());
+    }
+
+    @Test
+    @DisplayName("Дедлок или таймаут блокировки повторяет транзакцию целиком")
+    void shouldRetryOnLockFailure() {
+        when(visitBookingRepo.insertIfFree(eq(1), anyString(), eq(2), any(), any()))
+                .thenThrow(new CannotAcquireLockException("Deadlock found"))
+                .thenReturn(7);
+
+        assertEquals(7, visitService.createVisit(REQUEST).getId());
+        assertEquals(1, transactionManager.rollbacks.get());
+        assertEquals(1, transactionManager.commits.get());
+    }
+
+    @Test
+    @DisplayName("После трех неудач с блокировкой ошибка уходит клиенту")
+    void shouldGiveUpAfterRepeatedLockFailures() {
+        when(visitBookingRepo.insertIfFree(eq(1), anyString(), eq(2), any(), any()))
+                .thenThrow(new CannotAcquireLockException("Lock wait timeout exceeded"));
+
+        assertThrows(CannotAcquireLockException.class, () -> visitService.createVisit(REQUEST));
+        assertEquals(3, transactionManager.rollbacks.get());
+    }
+
+    @Test
+    @DisplayName("Смена таймзоны врача: кеш сбрасывается, визит бронируется в новой таймзоне")
+    void shouldRebookWithFreshTimezone() {
+        when(doctorRepo.findTimezoneById(1)).thenReturn(Optional.of("Europe/London"), Optional.of(ZONE));
+        when(visitBookingRepo.insertIfFree(eq(1), eq("Europe/London"), eq(2), any(), any())).thenReturn(null);
+        when(visitBookingRepo.insertIfFree(eq(1), eq(ZONE), eq(2), any(), any())).thenReturn(7);
+
+        assertEquals(7, visitService.createVisit(REQUEST).getId());
+        verify(visitBookingRepo).insertIfFree(1, ZONE, 2, Instant.parse("2030-01-10T15:00:00Z"),
+                Instant.parse("2030-01-10T15:30:00Z"));
+        verify(visitRepo, never()).existsByDoctorAndTimeOverlap(any(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Отказ вставки с пересечением у врача - ошибка врача")
+    void shouldReportDoctorConflict() {
+        insertReturns(null);
+        when(visitRepo.existsByDoctorAndTimeOverlap(eq(DOCTOR), any(), any())).thenReturn(true);
+
+        BrookedTimeException e = assertThrows(BrookedTimeException.class, () -> visitService.createVisit(REQUEST));
+        assertEquals("Doctor is already booked at this time", e.getMessage());
+    }
+
+    @Test
+    @DisplayName("Ошибка пациента - только если пересечение у пациента действительно найдено")
+    void shouldReportPatientConflictOnlyWhenFound() {
+        insertReturns(null);
+        when(visitRepo.existsByPatientAndTimeOverlap(eq(PATIENT), any(), any())).thenReturn(true);
+
+        BrookedTimeException e = assertThrows(BrookedTimeException.class, () -> visitService.createVisit(REQUEST));
+        assertEquals("Patient already has a visit at this time", e.getMessage());
+    }
+
+    @Test
+    @DisplayName("Если мешавший визит исчез до проверки, бронирование повторяется")
+    void shouldRetryWhenConflictVanished() {
+        insertReturns(null, 42);
+
+        assertEquals(42, visitService.createVisit(REQUEST).getId());
+        verify(visitBookingRepo, times(2)).insertIfFree(anyInt(), anyString(), anyInt(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Число повторов без найденного пересечения ограничено")
+    void shouldGiveUpAfterRepeatedUnexplainedRejections() {
+        insertReturns(null);
+
+        assertThrows(IllegalStateException.class, () -> visitService.createVisit(REQUEST));
+        verify(visitBookingRepo, times(3)).insertIfFree(anyInt(), anyString(), anyInt(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Совпадающие начало и конец отклоняются до обращения к БД")
+    void shouldRejectEmptyRange() {
+        VisitRequest request = new VisitRequest("2030-01-10 10:00:00", "2030-01-10 10:00:00", 2, 1);
+
+        assertThrows(InvalidTimeRangeException.class, () -> visitService.createVisit(request));
+        verify(visitBookingRepo, never()).insertIfFree(anyInt(), anyString(), anyInt(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Интервал, развернутый переходом на летнее время, отклоняется до обращения к БД")
+    void shouldRejectRangeReversedByDstGap() {
+        // 02:30 в "дыре" 10.03.2030 сдвигается на 03:30 EDT - позже конца 03:10
+        VisitRequest request = new VisitRequest("2030-03-10 02:30:00", "2030-03-10 03:10:00", 2, 1);
+
+        assertThrows(InvalidTimeRangeException.class, () -> visitService.createVisit(request));
+        verify(visitBookingRepo, never()).insertIfFree(anyInt(), anyString(), anyInt(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Нарушение ограничения БД не выдается за занятость пациента")
+    void shouldNotReportConstraintViolationAsConflict() {
+        when(visitBookingRepo.insertIfFree(anyInt(), anyString(), anyInt(), any(Instant.class), any(Instant.class)))
+                .thenThrow(new DataIntegrityViolationException("constraint"));
+
+        assertThrows(DataIntegrityViolationException.class, () -> visitService.createVisit(REQUEST));
+        verify(visitRepo, never()).existsByPatientAndTimeOverlap(any(), any(), any());
+    }
+}
@@ -0,0 +1,214 @@
+package com.kettlebell.visittracking.stress;
+
+import com.kettlebell.visittracking.controller.record.VisitRequest;
+import com.kettlebell.visittracking.repository.DoctorRepository;
+import com.kettlebell.visittracking.repository.PatientRepository;
+import com.kettlebell.visittracking.repository.VisitRepository;
+import com.kettlebell.visittracking.repository.entity.Doctor;
+import com.kettlebell.visittracking.repository.entity.Patient;
+import com.kettlebell.visittracking.repository.entity.Visit;
+import com.kettlebell.visittracking.service.TimestampCodec;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Нагрузочная проверка бронирования: тысячи параллельных POST /api/visits на нескольких
+ * "горячих" врачей. Проверяет, что ни у врача, ни у пациента нет пересекающихся визитов, что
+ * каждый отказ - реальный конфликт, и пишет в лог пропускную способность. Размер задается через
+ * -Dstress.requests / -Dstress.threads; другой путь записи - через свойства visit.booking.*.
+ * В обычный mvn test не входит: mvn -Pstress test.
+ */
+@Slf4j
+@Tag("stress")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Testcontainers
+class BookingStressTest {
+    private static final int REQUESTS = Integer.getInteger("stress.requests", 2000);
+    private static final int THREADS = Integer.getInteger("stress.threads", 32);
+    private static final String[] HOT_TIMEZONES = {"Europe/London", "America/New_York", "Asia/Tokyo"};
+    private static final String BOOKED = "Doctor is already booked at this time";
+    private static final String PATIENT_BOOKED = "Patient already has a visit at this time";
+
+    @Container
+    static MySQLContainer<?> mysql = new MySQLContainer<>("mysql:8.0")
+            .withDatabaseName("testdb")
+            .withUsername("testuser")
+            .withPassword("testpass");
+
+    @DynamicPropertySource
+    static void configureProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", mysql::getJdbcUrl);
+        registry.add("spring.datasource.username", mysql::getUsername);
+        registry.add("spring.datasource.password", mysql::getPassword);
+        registry.add("spring.flyway.url", mysql::getJdbcUrl);
+        registry.add("spring.flyway.user", mysql::getUsername);
+        registry.add("spring.flyway.password", mysql::getPassword);
+        // Здесь проверяется бронирование, а не сброс нагрузки: запросы ждут в очереди, а не получают 503
+        registry.add("visit.admission.write.max-limit", () -> "8");
+        registry.add("visit.admission.write.queue-target", () -> "60s");
+        registry.add("visit.warmup.enabled", () -> "false");
+    }
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private VisitRepository visitRepository;
+
+    private record Attempt(VisitRequest request, boolean contended, int status, String body, long latencyNanos) {
+    }
+
+    @Test
+    @DisplayName("Параллельные бронирования не создают пересечений ни у врача, ни у пациента, отказы - только при реальном конфликте")
+    void shouldNeverDoubleBookUnderConcurrentLoad() throws Exception {
+        List<Doctor> hotDoctors = new ArrayList<>();
+        for (String timezone : HOT_TIMEZONES) {
+            hotDoctors.add(doctorRepository.save(new Doctor(null, "Hot", timezone, timezone, null)));
+        }
+        Doctor quietDoctor = doctorRepository.save(new Doctor(null, "Quiet", "Doctor", "Europe/Berlin", null));
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            patients.add(patientRepository.save(new Patient(null, "Stress" + i, "Patient")));
+        }
+        // У "тихого" врача свои пациенты: их визиты не пересекаются с визитами у горячих врачей
+        List<Patient> quietPatients = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            quietPatients.add(patientRepository.save(new Patient(null, "Quiet" + i, "Patient")));
+        }
+
+        // Каждый 5-й запрос - в свой собственный слот у "тихого" врача, остальные толкаются
+        // в одном рабочем дне горячих врачей: старт с шагом 15 минут, длительность 15-60 минут.
+        // Рабочие дни Лондона и Нью-Йорка пересекаются по UTC - это конфликты у пациентов
+        Random random = new Random(42);
+        List<VisitRequest> requests = new ArrayList<>(REQUESTS);
+        List<Boolean> contended = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            Patient patient = patients.get(random.nextInt(patients.size()));
+            if (i % 5 == 0) {
+                patient = quietPatients.get(random.nextInt(quietPatients.size()));
+                String day = String.format("2031-%02d-%02d", 1 + i / 5 / 28 % 12, 1 + i / 5 % 28);
+                int hour = 8 + i / 5 / 336;
+                requests.add(new VisitRequest(String.format("%s %02d:00:00", day, hour),
+                        String.format("%s %02d:30:00", day, hour), patient.getId(), quietDoctor.getId()));
+                contended.add(false);
+            } else {
+                Doctor doctor = hotDoctors.get(random.nextInt(hotDoctors.size()));
+                int startMinute = 8 * 60 + 15 * random.nextInt(32);
+                int endMinute = startMinute + 15 * (1 + random.nextInt(4));
+                requests.add(new VisitRequest(time(startMinute), time(endMinute), patient.getId(), doctor.getId()));
+                contended.add(true);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Attempt>> futures = new ArrayList<>(REQUESTS);
+        long started = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            VisitRequest request = requests.get(i);
+            boolean isContended = contended.get(i);
+            futures.add(executor.submit(() -> {
+                long requestStarted = System.nanoTime();
+                ResponseEntity<String> response = restTemplate.postForEntity("/api/visits", request, String.class);
+                return new Attempt(request, isContended, response.getStatusCode().value(), response.getBody(),
+                        System.nanoTime() - requestStarted);
+            }));
+        }
+        List<Attempt> attempts = new ArrayList<>(REQUESTS);
+        for (Future<Attempt> future : futures) {
+            attempts.add(future.get(5, TimeUnit.MINUTES));
+        }
+        long elapsedNanos = System.nanoTime() - started;
+        executor.shutdown();
+
+        Map<Integer, Integer> acceptedByDoctor = new HashMap<>();
+        List<Attempt> rejected = new ArrayList<>();
+        for (Attempt attempt : attempts) {
+            if (attempt.status() == 200) {
+                acceptedByDoctor.merge(attempt.request().doctorId(), 1, Integer::sum);
+            } else {
+                assertEquals(400, attempt.status(), attempt.body());
+                assertTrue(attempt.body().contains(BOOKED) || attempt.body().contains(PATIENT_BOOKED), attempt.body());
+                assertTrue(attempt.contended(), "Non-overlapping booking was rejected: " + attempt.request());
+                rejected.add(attempt);
+            }
+        }
+
+        Map<Integer, List<Instant[]>> byDoctor = new HashMap<>();
+        Map<Integer, List<Instant[]>> byPatient = new HashMap<>();
+        for (Visit visit : visitRepository.findAll()) {
+            Instant[] interval = {visit.getStartDateTime(), visit.getEndDateTime()};
+            byDoctor.computeIfAbsent(visit.getDoctor().getId(), id -> new ArrayList<>()).add(interval);
+            byPatient.computeIfAbsent(visit.getPatient().getId(), id -> new ArrayList<>()).add(interval);
+        }
+        for (Doctor doctor : hotDoctors) {
+            assertNoOverlaps("doctor " + doctor.getId(), byDoctor.getOrDefault(doctor.getId(), List.of()));
+            assertEquals(acceptedByDoctor.getOrDefault(doctor.getId(), 0),
+                    byDoctor.getOrDefault(doctor.getId(), List.of()).size());
+        }
+        byPatient.forEach((patientId, intervals) -> assertNoOverlaps("patient " + patientId, intervals));
+        assertEquals(REQUESTS / 5 + (REQUESTS % 5 == 0 ? 0 : 1), acceptedByDoctor.get(quietDoctor.getId()));
+
+        // Визиты не удаляются, так что визит, из-за которого был отказ, есть в итоговом наборе
+        for (Attempt attempt : rejected) {
+            Doctor doctor = hotDoctors.stream().filter(d -> d.getId().equals(attempt.request().doctorId())).findFirst().orElseThrow();
+            TimestampCodec zone = TimestampCodec.forZone(doctor.getTimezone());
+            Instant start = Instant.ofEpochSecond(zone.toUtc(TimestampCodec.parseLocal(attempt.request().start())));
+            Instant end = Instant.ofEpochSecond(zone.toUtc(TimestampCodec.parseLocal(attempt.request().end())));
+            Map<Integer, List<Instant[]>> stored = attempt.body().contains(BOOKED) ? byDoctor : byPatient;
+            Integer ownerId = attempt.body().contains(BOOKED) ? doctor.getId() : attempt.request().patientId();
+            assertTrue(stored.getOrDefault(ownerId, List.of()).stream().anyMatch(t -> t[0].isBefore(end) && t[1].isAfter(start)),
+                    "Rejected booking has no conflicting visit: " + attempt.request() + " " + attempt.body());
+        }
+
+        long[] latencies = attempts.stream().mapToLong(Attempt::latencyNanos).sorted().toArray();
+        int accepted = attempts.size() - rejected.size();
+        double seconds = elapsedNanos / 1e9;
+        log.info(String.format(Locale.ROOT, "Booking stress: %d requests, %d threads, %.2f s, %.0f req/s, "
+                        + "%d accepted (%.0f/s), %d rejected, p50 %.1f ms, p99 %.1f ms",
+                REQUESTS, THREADS, seconds, REQUESTS / seconds, accepted, accepted / seconds, rejected.size(),
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6));
+    }
+
+    private static void assertNoOverlaps(String owner, List<Instant[]> intervals) {
+        intervals.sort(Comparator.comparing(interval -> interval[0]));
+        for (int i = 1; i < intervals.size(); i++) {
+            assertFalse(intervals.get(i - 1)[1].isAfter(intervals.get(i)[0]),
+                    "Overlapping visits for " + owner + ": "
+                            + Arrays.toString(intervals.get(i - 1)) + " and " + Arrays.toString(intervals.get(i)));
+        }
+    }
+
+    private static String time(int minuteOfDay) {
+        return String.format("2031-03-10 %02d:%02d:00", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+}